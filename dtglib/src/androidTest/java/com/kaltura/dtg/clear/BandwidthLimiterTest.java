@@ -0,0 +1,85 @@
+package com.kaltura.dtg.clear;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Measures the rate that {@link BandwidthLimiter} lets through, with threads that "read" 10k
+ * buffers as fast as they can.
+ */
+public class BandwidthLimiterTest {
+    private static final int BUFFER = 10 * 1024;
+
+    private List<Long> consume(final BandwidthLimiter limiter, String[] itemIds, final int buffersPerThread) throws Exception {
+        final long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(itemIds.length);
+        List<Future<Long>> futures = new ArrayList<>();
+        for (final String itemId : itemIds) {
+            futures.add(executor.submit(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    for (int i = 0; i < buffersPerThread; i++) {
+                        limiter.acquire(itemId, BUFFER);
+                    }
+                    return (System.nanoTime() - start) / 1000000;
+                }
+            }));
+        }
+        List<Long> elapsedMillis = new ArrayList<>();
+        for (Future<Long> future : futures) {
+            elapsedMillis.add(future.get());
+        }
+        executor.shutdown();
+        return elapsedMillis;
+    }
+
+    @Test
+    public void unlimitedDoesNotWait() throws Exception {
+        BandwidthLimiter limiter = new BandwidthLimiter();
+        List<Long> elapsed = consume(limiter, new String[]{"A", "B"}, 1000);
+        Assert.assertTrue(elapsed.toString(), elapsed.get(0) < 500 && elapsed.get(1) < 500);
+    }
+
+    @Test
+    public void globalLimitIsSharedFairly() throws Exception {
+        BandwidthLimiter limiter = new BandwidthLimiter();
+        limiter.setGlobalLimit(2 * 1024 * 1024);
+
+        // 4 threads x 500k = 2M, at 2M/s.
+        List<Long> elapsed = consume(limiter, new String[]{"A", "B", "C", "D"}, 50);
+        for (long millis : elapsed) {
+            Assert.assertTrue(elapsed.toString(), millis > 800 && millis < 1500);
+        }
+    }
+
+    @Test
+    public void itemLimitOnlyAppliesToItsItem() throws Exception {
+        BandwidthLimiter limiter = new BandwidthLimiter();
+        limiter.setItemLimit("A", 1024 * 1024);
+
+        // 500k each; only A is limited, to 1M/s.
+        List<Long> elapsed = consume(limiter, new String[]{"A", "B"}, 50);
+        Assert.assertTrue(elapsed.toString(), elapsed.get(0) > 400 && elapsed.get(0) < 900);
+        Assert.assertTrue(elapsed.toString(), elapsed.get(1) < 200);
+    }
+
+    @Test
+    public void limitCanBeRemoved() throws Exception {
+        BandwidthLimiter limiter = new BandwidthLimiter();
+        limiter.setGlobalLimit(100 * 1024);
+        limiter.setItemLimit("A", 100 * 1024);
+        limiter.setGlobalLimit(0);
+        limiter.setItemLimit("A", 0);
+
+        Assert.assertEquals(0, limiter.getItemLimit("A"));
+        List<Long> elapsed = consume(limiter, new String[]{"A"}, 100);
+        Assert.assertTrue(elapsed.toString(), elapsed.get(0) < 200);
+    }
+}
@@ -0,0 +1,76 @@
+package com.kaltura.dtg.clear;
+
+import android.support.test.InstrumentationRegistry;
+
+import com.kaltura.dtg.ContentManager;
+import com.kaltura.dtg.Utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+
+/**
+ * Verifies that download buffers are bounded and reused across tasks.
+ */
+public class BufferPoolTest {
+
+    @Test
+    public void poolIsBounded() {
+        BufferPool pool = new BufferPool(1024, 2);
+        ByteBuffer a = pool.acquire();
+        ByteBuffer b = pool.acquire();
+        ByteBuffer c = pool.acquire();
+        a.put((byte) 1);
+        pool.release(a);
+        pool.release(b);
+        pool.release(c);
+        Assert.assertEquals(2, pool.getPooledCount());
+
+        // Released buffers come back cleared.
+        ByteBuffer reused = pool.acquire();
+        Assert.assertTrue(reused == a || reused == b);
+        Assert.assertEquals(0, reused.position());
+        Assert.assertEquals(1024, reused.remaining());
+
+        // Buffers of another size are not kept.
+        pool.release(ByteBuffer.allocate(10));
+        Assert.assertEquals(1, pool.getPooledCount());
+    }
+
+    @Test
+    public void tasksShareOneBuffer() throws Exception {
+        LocalHttpServer server = new LocalHttpServer();
+        File dir = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "BufferPoolTest");
+        Utils.deleteRecursive(dir);
+        Assert.assertTrue(dir.mkdirs());
+        try {
+            // A buffer smaller than the files, so each file takes several writes.
+            BufferPool pool = new BufferPool(4096, 4);
+            DownloadTask.Listener listener = new DownloadTask.Listener() {
+                @Override
+                public void onTaskProgress(DownloadTask task, DownloadTask.State newState, int newBytes, Exception stopError) {
+                    Assert.assertNotEquals(DownloadTask.State.ERROR, newState);
+                }
+
+                @Override
+                public void onTaskContentInfo(DownloadTask task) {
+                }
+            };
+            for (int i = 0; i < 3; i++) {
+                File file = new File(dir, i + ".ts");
+                DownloadTask task = new DownloadTask(server.url("/bytes/" + (30000 + i) + ".ts"), file);
+                task.setListener(listener);
+                task.setDownloadSettings(new ContentManager.Settings());
+                task.setBufferPool(pool);
+                task.download();
+                Assert.assertEquals(30000 + i, file.length());
+            }
+            Assert.assertEquals(1, pool.getPooledCount());
+        } finally {
+            server.shutdown();
+            Utils.deleteRecursive(dir);
+        }
+    }
+}
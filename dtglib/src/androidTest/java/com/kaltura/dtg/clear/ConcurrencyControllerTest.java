@@ -0,0 +1,67 @@
+package com.kaltura.dtg.clear;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Drives {@link ConcurrencyController} with synthetic throughput and error samples.
+ */
+public class ConcurrencyControllerTest {
+    private static final long INTERVAL = 1000;
+
+    // Report the bytes of one interval and evaluate.
+    private int step(ConcurrencyController controller, long bytes, int errors, boolean saturated) {
+        controller.onBytes(bytes);
+        for (int i = 0; i < errors; i++) {
+            controller.onError();
+        }
+        return controller.evaluate(INTERVAL, saturated);
+    }
+
+    @Test
+    public void growsWhileThroughputGrows() {
+        ConcurrencyController controller = new ConcurrencyController(1, 8, 2);
+        // Throughput scales with the number of connections.
+        for (int i = 0; i < 10; i++) {
+            int concurrency = controller.getConcurrency();
+            step(controller, concurrency * 100000, 0, true);
+        }
+        Assert.assertEquals(8, controller.getConcurrency());
+    }
+
+    @Test
+    public void backsOffWhenMoreConnectionsDontHelp() {
+        ConcurrencyController controller = new ConcurrencyController(1, 8, 4);
+        Assert.assertEquals(5, step(controller, 1000000, 0, true));
+        // Same throughput with 5 as with 4: undo and hold.
+        Assert.assertEquals(4, step(controller, 1000000, 0, true));
+        for (int i = 0; i < ConcurrencyController.HOLD_INTERVALS; i++) {
+            Assert.assertEquals(4, step(controller, 1000000, 0, true));
+        }
+        Assert.assertEquals(5, step(controller, 1000000, 0, true));
+    }
+
+    @Test
+    public void halvesOnErrors() {
+        ConcurrencyController controller = new ConcurrencyController(1, 8, 8);
+        Assert.assertEquals(4, step(controller, 1000000, 1, true));
+        Assert.assertEquals(2, step(controller, 1000000, 3, true));
+        Assert.assertEquals(1, step(controller, 1000000, 1, true));
+        // Never below the floor.
+        Assert.assertEquals(1, step(controller, 1000000, 1, true));
+    }
+
+    @Test
+    public void staysPutWhenIdle() {
+        ConcurrencyController controller = new ConcurrencyController(2, 6, 3);
+        for (int i = 0; i < 5; i++) {
+            Assert.assertEquals(3, step(controller, 0, 0, false));
+        }
+    }
+
+    @Test
+    public void initialValueIsClamped() {
+        Assert.assertEquals(2, new ConcurrencyController(2, 6, 1).getConcurrency());
+        Assert.assertEquals(6, new ConcurrencyController(2, 6, 10).getConcurrency());
+    }
+}
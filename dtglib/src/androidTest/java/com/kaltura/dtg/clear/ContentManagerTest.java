@@ -8,6 +8,7 @@ import android.util.Log;
 import com.kaltura.dtg.ContentManager;
 import com.kaltura.dtg.DownloadItem;
 import com.kaltura.dtg.DownloadStateListener;
+import com.kaltura.dtg.DownloadStateReason;
 
 import org.junit.Assert;
 import org.junit.Before;
@@ -83,7 +84,7 @@ public class ContentManagerTest {
             }
 
             @Override
-            public void onDownloadPause(DownloadItem item) {
+            public void onDownloadPause(DownloadItem item, DownloadStateReason reason, Exception error) {
 
             }
 
@@ -100,6 +101,11 @@ public class ContentManagerTest {
                 item.startDownload();
             }
 
+            @Override
+            public void onDownloadRemoved(String itemId) {
+
+            }
+
             @Override
             public void onTracksAvailable(DownloadItem item, DownloadItem.TrackSelector trackSelector) {
 
@@ -0,0 +1,150 @@
+package com.kaltura.dtg.clear;
+
+import android.os.Bundle;
+import android.support.test.InstrumentationRegistry;
+import android.util.Log;
+
+import com.kaltura.dtg.DownloadItem;
+import com.kaltura.dtg.Utils;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Localizes large multi-period, multi-language MPDs to a file, and reports the time and
+ * throughput per localization.
+ *
+ * Run with:
+ * <pre>
+ * ./gradlew :dtglib:connectedAndroidTest \
+ *     -Pandroid.testInstrumentationRunnerArguments.class=com.kaltura.dtg.clear.DashManifestLocalizerBenchmark
+ * </pre>
+ * Results are logged under the DashManifestLocalizerBenchmark tag. A limit can be passed as an
+ * instrumentation argument (benchmark.maxLocalizeMillis) to fail the run on a regression.
+ */
+public class DashManifestLocalizerBenchmark {
+    private static final String TAG = "DashManifestLocalizerBenchmark";
+    private static final int WARMUP_RUNS = 3;
+    private static final int RUNS = 20;
+
+    private File dir;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), TAG);
+        Utils.deleteRecursive(dir);
+        Assert.assertTrue(dir.mkdirs());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Utils.deleteRecursive(dir);
+    }
+
+    private static class Mpd {
+        final StringBuilder xml = new StringBuilder();
+        final List<DashTrack> keepTracks = new ArrayList<>();
+        int representationCount;
+    }
+
+    // Each period has one video set, then an audio and a text set per language; every few are kept.
+    private static Mpd createMpd(int periods, int videoRepresentations, int languages) {
+        Mpd mpd = new Mpd();
+        StringBuilder xml = mpd.xml;
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n")
+                .append("<MPD xmlns=\"urn:mpeg:dash:schema:mpd:2011\" type=\"static\" mediaPresentationDuration=\"PT")
+                .append(periods * 600).append("S\">\n<BaseURL>http://cdn.example.com/content/</BaseURL>\n");
+        for (int p = 0; p < periods; p++) {
+            xml.append("<Period id=\"").append(p).append("\" duration=\"PT600S\">\n");
+            xml.append("<AdaptationSet mimeType=\"video/mp4\" segmentAlignment=\"true\">\n")
+                    .append("<SegmentTemplate timescale=\"1000\" duration=\"4000\" media=\"p").append(p)
+                    .append("/$RepresentationID$/$Number$.m4s\" initialization=\"p").append(p).append("/$RepresentationID$/init.mp4\"/>\n");
+            for (int r = 0; r < videoRepresentations; r++) {
+                xml.append("<Representation id=\"v").append(r).append("\" bandwidth=\"").append((r + 1) * 500000)
+                        .append("\" codecs=\"avc1.4d401f\" width=\"1280\" height=\"720\"/>\n");
+                mpd.representationCount++;
+            }
+            xml.append("</AdaptationSet>\n");
+            mpd.keepTracks.add(new DashTrack(DownloadItem.TrackType.VIDEO, null, videoRepresentations * 500000, p, 0, videoRepresentations - 1));
+
+            for (int l = 0; l < languages; l++) {
+                String language = "l" + l;
+                xml.append("<AdaptationSet mimeType=\"audio/mp4\" lang=\"").append(language).append("\">\n")
+                        .append("<SegmentTemplate timescale=\"1000\" duration=\"4000\" media=\"p").append(p)
+                        .append("/$RepresentationID$/$Number$.m4s\" initialization=\"p").append(p).append("/$RepresentationID$/init.mp4\"/>\n")
+                        .append("<Representation id=\"a-").append(language).append("-64\" bandwidth=\"64000\" codecs=\"mp4a.40.2\"/>\n")
+                        .append("<Representation id=\"a-").append(language).append("-128\" bandwidth=\"128000\" codecs=\"mp4a.40.2\"/>\n")
+                        .append("</AdaptationSet>\n");
+                xml.append("<AdaptationSet mimeType=\"text/vtt\" lang=\"").append(language).append("\">\n")
+                        .append("<Representation id=\"t-").append(language).append("\" bandwidth=\"256\">")
+                        .append("<BaseURL>p").append(p).append("/t-").append(language).append(".vtt</BaseURL></Representation>\n")
+                        .append("</AdaptationSet>\n");
+                mpd.representationCount += 3;
+                if (l % 4 == 0) {
+                    mpd.keepTracks.add(new DashTrack(DownloadItem.TrackType.AUDIO, language, 128000, p, 1 + 2 * l, 1));
+                    mpd.keepTracks.add(new DashTrack(DownloadItem.TrackType.TEXT, language, 256, p, 2 + 2 * l, 0));
+                }
+            }
+            xml.append("</Period>\n");
+        }
+        xml.append("</MPD>\n");
+        return mpd;
+    }
+
+    @Test
+    public void localizeLargeManifests() throws Exception {
+        run("4 periods, 40 languages", createMpd(4, 8, 40));
+        run("1 period, 200 languages", createMpd(1, 10, 200));
+    }
+
+    private void run(String name, Mpd mpd) throws Exception {
+        byte[] origin = mpd.xml.toString().getBytes("UTF-8");
+        File target = new File(dir, DashDownloader.LOCAL_MANIFEST_MPD);
+
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            new DashManifestLocalizer(origin, mpd.keepTracks).localize(target);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < RUNS; i++) {
+            new DashManifestLocalizer(origin, mpd.keepTracks).localize(target);
+        }
+        double millis = (System.nanoTime() - start) / 1e6 / RUNS;
+        double megabytesPerSec = origin.length / 1024.0 / 1024.0 / (millis / 1000);
+
+        Log.i(TAG, String.format(Locale.US, "%s: %.1f KB, %d representations, %d kept; %.2f ms/localization, %.1f MB/s; local %.1f KB",
+                name, origin.length / 1024.0, mpd.representationCount, mpd.keepTracks.size(), millis, megabytesPerSec,
+                target.length() / 1024.0));
+
+        String local = new String(readFile(target), "UTF-8");
+        Assert.assertEquals(name, mpd.keepTracks.size(), count(local, "<Representation "));
+        Assert.assertFalse(name, new File(dir, DashDownloader.LOCAL_MANIFEST_MPD + ".tmp").exists());
+
+        Bundle arguments = InstrumentationRegistry.getArguments();
+        String maxMillis = arguments == null ? null : arguments.getString("benchmark.maxLocalizeMillis");
+        if (maxMillis != null) {
+            Assert.assertTrue(Utils.format("%s: %.2f ms/localization", name, millis), millis <= Double.parseDouble(maxMillis));
+        }
+    }
+
+    private static byte[] readFile(File file) throws Exception {
+        FileInputStream input = new FileInputStream(file);
+        return Utils.fullyReadInputStream(input, (int) file.length()).toByteArray();
+    }
+
+    private static int count(String text, String token) {
+        int count = 0;
+        for (int i = text.indexOf(token); i >= 0; i = text.indexOf(token, i + 1)) {
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,133 @@
+package com.kaltura.dtg.clear;
+
+import com.kaltura.dtg.DownloadItem;
+import com.kaltura.dtg.Utils;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Verifies that a saved manifest snapshot loads to the same tracks and download tasks as the
+ * parsed manifest, and that a damaged snapshot is rejected.
+ */
+public class DashManifestSnapshotTest {
+    private final File dir = new File("manifest-snapshot");
+
+    @Before
+    public void setUp() throws Exception {
+        Utils.deleteRecursive(dir);
+        Assert.assertTrue(dir.mkdirs());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Utils.deleteRecursive(dir);
+    }
+
+    private static class TestDownloader extends DashDownloader {
+        TestDownloader(File targetDir) {
+            super("http://cdn.example.com/dash/manifest.mpd", targetDir);
+        }
+
+        @Override
+        List<DashTrack> getDownloadedTracks(DownloadItem.TrackType type) {
+            return new ArrayList<>();
+        }
+
+        @Override
+        void apply() throws IOException {
+        }
+    }
+
+    private static List<String> describe(DashDownloader downloader) throws IOException {
+        downloader.selectedTracks = new HashMap<>();
+        downloader.setSelectedTracks(DownloadItem.TrackType.VIDEO, Arrays.asList(
+                new DashTrack(DownloadItem.TrackType.VIDEO, null, 2000000, 1, 0, 1)));
+        downloader.setSelectedTracks(DownloadItem.TrackType.AUDIO, Arrays.asList(
+                new DashTrack(DownloadItem.TrackType.AUDIO, "en", 128000, 1, 2, 0)));
+        downloader.createDownloadTasks();
+
+        List<String> tasks = new ArrayList<>();
+        for (DownloadTask task : downloader.getDownloadTasks()) {
+            tasks.add(task.url + " " + task.targetFile.getName() + " " + task.startTimeMs + " " + task.trackRelativeId);
+        }
+        tasks.add("estimate " + downloader.getEstimatedDownloadSize());
+        return tasks;
+    }
+
+    @Test
+    public void loadedSnapshotCreatesTheSameTasks() throws Exception {
+        TestDownloader parsed = new TestDownloader(dir);
+        parsed.originManifestBytes = DashMultiPeriodTest.MPD.getBytes("UTF-8");
+        parsed.parseOriginManifest();
+
+        File file = new File(dir, DashManifestSnapshot.FILE_NAME);
+        parsed.snapshot.save(file);
+        Assert.assertFalse(new File(dir, DashManifestSnapshot.FILE_NAME + ".tmp").exists());
+
+        TestDownloader loaded = new TestDownloader(dir);
+        loaded.setSnapshot(DashManifestSnapshot.load(file));
+
+        Assert.assertEquals(parsed.snapshot.getTracks(), loaded.snapshot.getTracks());
+        Assert.assertEquals(1, loaded.snapshot.getReferencePeriodIndex());
+        Assert.assertEquals(70000, loaded.getItemDurationMS());
+        Assert.assertEquals(describe(parsed), describe(loaded));
+
+        // A track as stored in the DB, without the resolution, is found by its relative id.
+        DashTrack stored = new DashTrack(DownloadItem.TrackType.VIDEO, null, 2000000, 1, 0, 1);
+        Assert.assertEquals(1280, loaded.snapshot.findTrack(stored).getWidth());
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedSnapshotIsRejected() throws Exception {
+        TestDownloader parsed = new TestDownloader(dir);
+        parsed.originManifestBytes = DashMultiPeriodTest.MPD.getBytes("UTF-8");
+        parsed.parseOriginManifest();
+
+        File file = new File(dir, DashManifestSnapshot.FILE_NAME);
+        parsed.snapshot.save(file);
+        byte[] bytes = Utils.fullyReadInputStream(new FileInputStream(file), (int) file.length()).toByteArray();
+
+        FileOutputStream output = new FileOutputStream(file);
+        output.write(bytes, 0, bytes.length / 2);
+        output.close();
+
+        DashManifestSnapshot.load(file);
+    }
+
+    @Test
+    public void invalidCountsAreRejected() throws Exception {
+        TestDownloader parsed = new TestDownloader(dir);
+        parsed.originManifestBytes = DashMultiPeriodTest.MPD.getBytes("UTF-8");
+        parsed.parseOriginManifest();
+
+        File file = new File(dir, DashManifestSnapshot.FILE_NAME);
+        // The track count follows the magic, version, duration and reference period.
+        int[] counts = {-1, Integer.MAX_VALUE};
+        for (int count : counts) {
+            parsed.snapshot.save(file);
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.seek(4 + 4 + 8 + 4);
+            raf.writeInt(count);
+            raf.close();
+            try {
+                DashManifestSnapshot.load(file);
+                Assert.fail("Loaded a track count of " + count);
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+}
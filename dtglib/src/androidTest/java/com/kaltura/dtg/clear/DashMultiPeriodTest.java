@@ -0,0 +1,210 @@
+package com.kaltura.dtg.clear;
+
+import com.kaltura.dtg.DownloadItem;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Verifies the download tasks and local manifest of multi-period DASH with segment timelines.
+ */
+public class DashMultiPeriodTest {
+
+    // A 10 second pre-roll with fixed segments, and 60 seconds of content with a segment timeline.
+    static final String MPD = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+            "<MPD xmlns=\"urn:mpeg:dash:schema:mpd:2011\" type=\"static\" mediaPresentationDuration=\"PT70S\">\n" +
+            "<BaseURL>http://cdn.example.com/dash/</BaseURL>\n" +
+            "<Period id=\"ad\" start=\"PT0S\" duration=\"PT10S\">\n" +
+            "<AdaptationSet mimeType=\"video/mp4\">\n" +
+            "<SegmentTemplate timescale=\"1000\" duration=\"4000\" media=\"ad/$RepresentationID$/$Number$.m4s\" initialization=\"ad/$RepresentationID$/init.mp4\"/>\n" +
+            "<Representation id=\"ad-lo\" bandwidth=\"300000\" codecs=\"avc1.4d401e\" width=\"640\" height=\"360\"/>\n" +
+            "<Representation id=\"ad-hi\" bandwidth=\"2500000\" codecs=\"avc1.4d401f\" width=\"1280\" height=\"720\"/>\n" +
+            "</AdaptationSet>\n" +
+            "<AdaptationSet mimeType=\"audio/mp4\" lang=\"en\">\n" +
+            "<SegmentTemplate timescale=\"1000\" duration=\"4000\" media=\"ad/$RepresentationID$/$Number$.m4s\" initialization=\"ad/$RepresentationID$/init.mp4\"/>\n" +
+            "<Representation id=\"ad-en\" bandwidth=\"96000\" codecs=\"mp4a.40.2\"/>\n" +
+            "</AdaptationSet>\n" +
+            "</Period>\n" +
+            "<Period id=\"main\" start=\"PT10S\" duration=\"PT60S\">\n" +
+            "<AdaptationSet mimeType=\"video/mp4\">\n" +
+            "<SegmentTemplate timescale=\"1000\" media=\"main/$RepresentationID$/$Time$.m4s\" initialization=\"main/$RepresentationID$/init.mp4\">\n" +
+            "<SegmentTimeline><S t=\"0\" d=\"6000\" r=\"4\"/><S d=\"5000\" r=\"-1\"/><S t=\"50000\" d=\"10000\"/></SegmentTimeline>\n" +
+            "</SegmentTemplate>\n" +
+            "<Representation id=\"v1\" bandwidth=\"1000000\" codecs=\"avc1.4d401e\" width=\"640\" height=\"360\"/>\n" +
+            "<Representation id=\"v2\" bandwidth=\"2000000\" codecs=\"avc1.4d401f\" width=\"1280\" height=\"720\"/>\n" +
+            "</AdaptationSet>\n" +
+            "<AdaptationSet mimeType=\"audio/mp4\" lang=\"fr\">\n" +
+            "<SegmentTemplate timescale=\"1000\" duration=\"10000\" media=\"main/$RepresentationID$/$Number$.m4s\" initialization=\"main/$RepresentationID$/init.mp4\"/>\n" +
+            "<Representation id=\"a-fr\" bandwidth=\"128000\" codecs=\"mp4a.40.2\"/>\n" +
+            "</AdaptationSet>\n" +
+            "<AdaptationSet mimeType=\"audio/mp4\" lang=\"en\">\n" +
+            "<SegmentTemplate timescale=\"1000\" duration=\"10000\" media=\"main/$RepresentationID$/$Number$.m4s\" initialization=\"main/$RepresentationID$/init.mp4\"/>\n" +
+            "<Representation id=\"a-en\" bandwidth=\"128000\" codecs=\"mp4a.40.2\"/>\n" +
+            "</AdaptationSet>\n" +
+            "</Period>\n" +
+            "</MPD>\n";
+
+    private static class TestDownloader extends DashDownloader {
+        TestDownloader(File targetDir) {
+            super("http://cdn.example.com/dash/manifest.mpd", targetDir);
+        }
+
+        @Override
+        List<DashTrack> getDownloadedTracks(DownloadItem.TrackType type) {
+            return new ArrayList<>();
+        }
+
+        @Override
+        void apply() throws IOException {
+        }
+    }
+
+    private TestDownloader createDownloader(File dir) throws IOException {
+        return createDownloader(dir, MPD);
+    }
+
+    private TestDownloader createDownloader(File dir, String mpd) throws IOException {
+        TestDownloader downloader = new TestDownloader(dir);
+        downloader.originManifestBytes = mpd.getBytes("UTF-8");
+        downloader.parseOriginManifest();
+        return downloader;
+    }
+
+    private static void select(DashDownloader downloader, DashTrack video, DashTrack audio) {
+        downloader.selectedTracks = new HashMap<>();
+        downloader.setSelectedTracks(DownloadItem.TrackType.VIDEO, Arrays.asList(video));
+        downloader.setSelectedTracks(DownloadItem.TrackType.AUDIO, Arrays.asList(audio));
+    }
+
+    private static List<String> relativeIds(List<DashTrack> tracks) {
+        List<String> ids = new ArrayList<>();
+        for (DashTrack track : tracks) {
+            ids.add(track.getRelativeId());
+        }
+        return ids;
+    }
+
+    private static List<String> names(List<DownloadTask> tasks) {
+        List<String> names = new ArrayList<>();
+        for (DownloadTask task : tasks) {
+            names.add(task.targetFile.getName());
+        }
+        return names;
+    }
+
+    @Test
+    public void everyPeriodIsDownloadedForTheSelectedTracks() throws Exception {
+        File dir = new File("multi-period");
+        TestDownloader downloader = createDownloader(dir);
+        Assert.assertEquals(1, downloader.snapshot.getReferencePeriodIndex());
+        Assert.assertEquals(70000, downloader.getItemDurationMS());
+
+        DashTrack v2 = new DashTrack(DownloadItem.TrackType.VIDEO, null, 2000000, 1, 0, 1);
+        DashTrack en = new DashTrack(DownloadItem.TrackType.AUDIO, "en", 128000, 1, 2, 0);
+        Assert.assertEquals("p1a0r1", v2.getRelativeId());
+        select(downloader, v2, en);
+
+        // The closest representation by bitrate, and the same language.
+        Assert.assertEquals(Arrays.asList("a0r1", "p1a0r1"), relativeIds(downloader.getPeriodTracks(v2)));
+        Assert.assertEquals(Arrays.asList("a1r0", "p1a2r0"), relativeIds(downloader.getPeriodTracks(en)));
+
+        downloader.createDownloadTasks();
+        List<DownloadTask> video = new ArrayList<>();
+        for (DownloadTask task : downloader.getDownloadTasks()) {
+            if (task.trackRelativeId.equals(v2.getRelativeId())) {
+                video.add(task);
+            }
+        }
+
+        // Pre-roll: init and 3 segments; main: init, 5 x 6s, 4 x 5s (r=-1 up to t=50s), 1 x 10s.
+        Assert.assertEquals(Arrays.asList("init-ad-hi.mp4", "seg-ad-hi-1.m4s", "seg-ad-hi-2.m4s", "seg-ad-hi-3.m4s",
+                "p1-init-v2.mp4", "p1-seg-v2-1.m4s", "p1-seg-v2-2.m4s", "p1-seg-v2-3.m4s", "p1-seg-v2-4.m4s",
+                "p1-seg-v2-5.m4s", "p1-seg-v2-6.m4s", "p1-seg-v2-7.m4s", "p1-seg-v2-8.m4s", "p1-seg-v2-9.m4s",
+                "p1-seg-v2-10.m4s"), names(video));
+        Assert.assertEquals("http://cdn.example.com/dash/ad/ad-hi/2.m4s", video.get(2).url.toString());
+        Assert.assertEquals(4000, video.get(2).startTimeMs);
+        Assert.assertEquals("http://cdn.example.com/dash/main/v2/35000.m4s", video.get(11).url.toString());
+        Assert.assertEquals(10000 + 35000, video.get(11).startTimeMs);
+        Assert.assertEquals("http://cdn.example.com/dash/main/v2/50000.m4s", video.get(14).url.toString());
+        Assert.assertEquals(10000 + 50000, video.get(14).startTimeMs);
+
+        Assert.assertEquals(10 * (2500000 + 96000) / 8 + 60 * (2000000 + 128000) / 8, downloader.getEstimatedDownloadSize());
+    }
+
+    @Test
+    public void lastOpenRepeatRunsToThePeriodEnd() throws Exception {
+        String mpd = MPD.replace("<S d=\"5000\" r=\"-1\"/><S t=\"50000\" d=\"10000\"/>", "<S d=\"7000\" r=\"-1\"/>");
+        TestDownloader downloader = createDownloader(new File("multi-period"), mpd);
+        DashTrack v1 = new DashTrack(DownloadItem.TrackType.VIDEO, null, 1000000, 1, 0, 0);
+        select(downloader, v1, new DashTrack(DownloadItem.TrackType.AUDIO, "en", 128000, 1, 2, 0));
+        downloader.createDownloadTasks();
+
+        List<DownloadTask> video = new ArrayList<>();
+        for (DownloadTask task : downloader.getDownloadTasks()) {
+            if (task.trackRelativeId.equals(v1.getRelativeId()) && task.url.getPath().contains("/main/")) {
+                video.add(task);
+            }
+        }
+
+        // Init, 5 x 6s, then 7s segments from 30s up to the 60s period end; the last one is cut short.
+        Assert.assertEquals(1 + 5 + 5, video.size());
+        Assert.assertEquals("http://cdn.example.com/dash/main/v1/58000.m4s", video.get(10).url.toString());
+        Assert.assertEquals(10000 + 58000, video.get(10).startTimeMs);
+    }
+
+    @Test
+    public void addedTrackOnlyCreatesItsOwnTasks() throws Exception {
+        TestDownloader downloader = createDownloader(new File("multi-period"));
+        DashTrack v1 = new DashTrack(DownloadItem.TrackType.VIDEO, null, 1000000, 1, 0, 0);
+        DashTrack en = new DashTrack(DownloadItem.TrackType.AUDIO, "en", 128000, 1, 2, 0);
+        DashTrack fr = new DashTrack(DownloadItem.TrackType.AUDIO, "fr", 128000, 1, 1, 0);
+        select(downloader, v1, en);
+        downloader.createDownloadTasks();
+
+        // English was selected first, so it keeps the pre-roll's audio.
+        Map<String, String> owners = downloader.getPeriodTrackOwners(Arrays.asList(v1, en, fr));
+        Assert.assertEquals(en.getRelativeId(), owners.get("a1r0"));
+        Assert.assertEquals(fr.getRelativeId(), owners.get("p1a1r0"));
+
+        downloader.createDownloadTasks(Arrays.asList(fr), owners);
+        List<DownloadTask> tasks = new ArrayList<>(downloader.getDownloadTasks());
+
+        // Only the French audio of the main period: init and 6 segments.
+        Assert.assertEquals(7, tasks.size());
+        Assert.assertEquals("p1-init-a-fr.mp4", tasks.get(0).targetFile.getName());
+        for (DownloadTask task : tasks) {
+            Assert.assertEquals(fr.getRelativeId(), task.trackRelativeId);
+        }
+        Assert.assertEquals(60 * 128000 / 8, downloader.getEstimatedDownloadSize());
+    }
+
+    @Test
+    public void localManifestKeepsTheSelectedTracksOfEveryPeriod() throws Exception {
+        TestDownloader downloader = createDownloader(new File("multi-period"));
+        select(downloader, new DashTrack(DownloadItem.TrackType.VIDEO, null, 1000000, 1, 0, 0),
+                new DashTrack(DownloadItem.TrackType.AUDIO, "fr", 128000, 1, 1, 0));
+
+        DashManifestLocalizer localizer = new DashManifestLocalizer(MPD.getBytes("UTF-8"), downloader.getSelectedPeriodTracks());
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        localizer.localize(output);
+        String local = new String(output.toByteArray(), "UTF-8");
+
+        Assert.assertFalse(local, local.contains("BaseURL") || local.contains("example.com"));
+        // The pre-roll has no French audio, so the closest English one is kept.
+        Assert.assertTrue(local, local.contains("\"ad-lo\"") && local.contains("\"ad-en\""));
+        Assert.assertTrue(local, local.contains("\"v1\"") && local.contains("\"a-fr\""));
+        Assert.assertFalse(local, local.contains("\"ad-hi\"") || local.contains("\"v2\"") || local.contains("\"a-en\""));
+        Assert.assertTrue(local, local.contains("media=\"seg-$RepresentationID$-$Number$.m4s\""));
+        Assert.assertTrue(local, local.contains("media=\"p1-seg-$RepresentationID$-$Number$.m4s\""));
+        Assert.assertTrue(local, local.contains("initialization=\"p1-init-$RepresentationID$.mp4\""));
+    }
+}
@@ -0,0 +1,190 @@
+package com.kaltura.dtg.clear;
+
+import com.kaltura.dtg.DownloadItem;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Verifies that on-demand (SegmentBase) DASH representations are downloaded as byte ranges listed
+ * by their sidx, and that the local manifest keeps their ranges.
+ */
+public class DashSegmentBaseTest {
+    private static final int INIT_SIZE = 100;
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    private static final int CHUNK_COUNT = 5;
+    private static final int SIDX_SIZE = 32 + 12 * CHUNK_COUNT;
+
+    private LocalHttpServer server;
+    private final File dir = new File("segment-base");
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LocalHttpServer();
+        server.addContent("/dash/v1.mp4", createMp4());
+        server.addContent("/dash/v2.mp4", createMp4());
+        server.addContent("/dash/en.vtt", "WEBVTT\n".getBytes("UTF-8"));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+    }
+
+    // An init section, a sidx of 2 second chunks, and the chunks.
+    private static byte[] createMp4() {
+        ByteBuffer buffer = ByteBuffer.allocate(INIT_SIZE + SIDX_SIZE + CHUNK_COUNT * CHUNK_SIZE);
+        buffer.position(INIT_SIZE);
+        buffer.putInt(SIDX_SIZE).put("sidx".getBytes()).putInt(0);
+        buffer.putInt(1).putInt(1000).putInt(0).putInt(0);   // reference id, timescale, earliest time, first offset
+        buffer.putShort((short) 0).putShort((short) CHUNK_COUNT);
+        for (int i = 0; i < CHUNK_COUNT; i++) {
+            buffer.putInt(CHUNK_SIZE).putInt(2000).putInt(0x90000000);
+        }
+        return buffer.array();
+    }
+
+    private String createMpd() throws IOException {
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                "<MPD xmlns=\"urn:mpeg:dash:schema:mpd:2011\" type=\"static\" mediaPresentationDuration=\"PT10S\" profiles=\"urn:mpeg:dash:profile:isoff-on-demand:2011\">\n" +
+                "<Period>\n" +
+                "<AdaptationSet mimeType=\"video/mp4\">\n" +
+                "<Representation id=\"v1\" bandwidth=\"4000000\" codecs=\"avc1.4d401f\" width=\"1280\" height=\"720\">\n" +
+                "<BaseURL>" + server.url("/dash/v1.mp4") + "</BaseURL>\n" +
+                "<SegmentBase indexRange=\"" + INIT_SIZE + "-" + (INIT_SIZE + SIDX_SIZE - 1) + "\">" +
+                "<Initialization range=\"0-" + (INIT_SIZE - 1) + "\"/></SegmentBase>\n" +
+                "</Representation>\n" +
+                "<Representation id=\"v2\" bandwidth=\"2000000\" codecs=\"avc1.4d401e\" width=\"640\" height=\"360\">\n" +
+                "<BaseURL>" + server.url("/dash/v2.mp4") + "</BaseURL>\n" +
+                "<SegmentBase indexRange=\"" + INIT_SIZE + "-" + (INIT_SIZE + SIDX_SIZE - 1) + "\">" +
+                "<Initialization range=\"0-" + (INIT_SIZE - 1) + "\"/></SegmentBase>\n" +
+                "</Representation>\n" +
+                "</AdaptationSet>\n" +
+                "<AdaptationSet mimeType=\"text/vtt\" lang=\"en\">\n" +
+                "<Representation id=\"en\" bandwidth=\"256\">\n" +
+                "<BaseURL>" + server.url("/dash/en.vtt") + "</BaseURL>\n" +
+                "</Representation>\n" +
+                "</AdaptationSet>\n" +
+                "</Period>\n" +
+                "</MPD>\n";
+    }
+
+    private static class TestDownloader extends DashDownloader {
+        TestDownloader(String manifestUrl, File targetDir) {
+            super(manifestUrl, targetDir);
+        }
+
+        @Override
+        List<DashTrack> getDownloadedTracks(DownloadItem.TrackType type) {
+            return new ArrayList<>();
+        }
+
+        @Override
+        void apply() throws IOException {
+        }
+    }
+
+    private TestDownloader createDownloader() throws IOException {
+        TestDownloader downloader = new TestDownloader(server.url("/dash/manifest.mpd").toString(), dir);
+        downloader.originManifestBytes = createMpd().getBytes("UTF-8");
+        downloader.parseOriginManifest();
+        downloader.selectedTracks = new LinkedHashMap<>();
+        downloader.setSelectedTracks(DownloadItem.TrackType.VIDEO, Arrays.asList(
+                new DashTrack(DownloadItem.TrackType.VIDEO, null, 4000000, 0, 0)));
+        downloader.setSelectedTracks(DownloadItem.TrackType.TEXT, Arrays.asList(
+                new DashTrack(DownloadItem.TrackType.TEXT, "en", 256, 1, 0)));
+        return downloader;
+    }
+
+    @Test
+    public void chunksAreDownloadedAsMergedRanges() throws Exception {
+        TestDownloader downloader = createDownloader();
+        downloader.createDownloadTasks();
+
+        List<DownloadTask> tasks = new ArrayList<>(downloader.getDownloadTasks());
+        Assert.assertEquals(4, tasks.size());
+
+        File video = new File(dir, "v1.mp4");
+        long mediaStart = INIT_SIZE + SIDX_SIZE;
+
+        // Header: initialization and index.
+        Assert.assertEquals(video, tasks.get(0).targetFile);
+        Assert.assertEquals(0, tasks.get(0).rangeStart);
+        Assert.assertEquals(mediaStart - 1, tasks.get(0).rangeEnd);
+
+        // 4 chunks fit in one range; the 5th starts another.
+        Assert.assertEquals(video, tasks.get(1).targetFile);
+        Assert.assertEquals(mediaStart, tasks.get(1).rangeStart);
+        Assert.assertEquals(mediaStart + 4 * CHUNK_SIZE - 1, tasks.get(1).rangeEnd);
+        Assert.assertEquals(0, tasks.get(1).startTimeMs);
+        Assert.assertEquals(mediaStart + 4 * CHUNK_SIZE, tasks.get(2).rangeStart);
+        Assert.assertEquals(mediaStart + 5 * CHUNK_SIZE - 1, tasks.get(2).rangeEnd);
+        Assert.assertEquals(8000, tasks.get(2).startTimeMs);
+        Assert.assertEquals("a0r0", tasks.get(2).trackRelativeId);
+
+        Assert.assertEquals(new File(dir, "en.vtt"), tasks.get(3).targetFile);
+        Assert.assertFalse(tasks.get(3).isRanged());
+
+        // The video is counted exactly, the text by its bitrate.
+        Assert.assertEquals(mediaStart + CHUNK_COUNT * CHUNK_SIZE + 10 * 256 / 8, downloader.getEstimatedDownloadSize());
+    }
+
+    @Test
+    public void indexesAreFetchedOnTheExecutor() throws Exception {
+        TestDownloader downloader = createDownloader();
+        downloader.setSelectedTracks(DownloadItem.TrackType.VIDEO, Arrays.asList(
+                new DashTrack(DownloadItem.TrackType.VIDEO, null, 4000000, 0, 0),
+                new DashTrack(DownloadItem.TrackType.VIDEO, null, 2000000, 0, 1)));
+        downloader.createDownloadTasks();
+        List<String> sequential = describe(downloader.getDownloadTasks());
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            downloader.setIndexExecutor(executor);
+            downloader.createDownloadTasks();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Same tasks, in the same order: header and 2 ranges of each video, and the text.
+        Assert.assertEquals(7, sequential.size());
+        Assert.assertEquals(sequential, describe(downloader.getDownloadTasks()));
+    }
+
+    private static List<String> describe(Collection<DownloadTask> tasks) {
+        List<String> descriptions = new ArrayList<>();
+        for (DownloadTask task : tasks) {
+            descriptions.add(task.targetFile.getName() + ":" + task.rangeStart + "-" + task.rangeEnd + "@" + task.startTimeMs);
+        }
+        return descriptions;
+    }
+
+    @Test
+    public void localManifestKeepsTheSegmentBase() throws Exception {
+        TestDownloader downloader = createDownloader();
+        DashManifestLocalizer localizer = new DashManifestLocalizer(downloader.originManifestBytes, downloader.getSelectedPeriodTracks());
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        localizer.localize(output);
+        String local = new String(output.toByteArray(), "UTF-8");
+
+        Assert.assertTrue(local, local.contains("<BaseURL>v1.mp4</BaseURL>"));
+        Assert.assertTrue(local, local.contains("<BaseURL>en.vtt</BaseURL>"));
+        Assert.assertTrue(local, local.contains("indexRange=\"" + INIT_SIZE + "-" + (INIT_SIZE + SIDX_SIZE - 1) + "\""));
+        Assert.assertTrue(local, local.contains("range=\"0-" + (INIT_SIZE - 1) + "\""));
+        Assert.assertFalse(local, local.contains("http:"));
+    }
+}
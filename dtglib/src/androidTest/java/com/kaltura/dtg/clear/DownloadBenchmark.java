@@ -0,0 +1,339 @@
+package com.kaltura.dtg.clear;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Debug;
+import android.support.test.InstrumentationRegistry;
+import android.util.Log;
+
+import com.kaltura.dtg.ContentManager;
+import com.kaltura.dtg.DownloadItem;
+import com.kaltura.dtg.DownloadState;
+import com.kaltura.dtg.DownloadStateListener;
+import com.kaltura.dtg.DownloadStateReason;
+import com.kaltura.dtg.Utils;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives the whole download engine (metadata, scheduler, tasks, db, progress journal) against
+ * synthetic HLS and DASH assets served by {@link LocalHttpServer}, and reports its hot path costs:
+ * segments/sec, MB/s, db transactions and allocations per segment, and time to complete.
+ *
+ * Run with:
+ * <pre>
+ * ./gradlew :dtglib:connectedAndroidTest \
+ *     -Pandroid.testInstrumentationRunnerArguments.class=com.kaltura.dtg.clear.DownloadBenchmark
+ * </pre>
+ * Results are logged under the DownloadBenchmark tag. Limits can be passed as instrumentation
+ * arguments (benchmark.minSegmentsPerSec, benchmark.maxDbOpsPerSegment,
+ * benchmark.maxAllocsPerSegment) to fail the run on a regression. Allocations can't be counted on
+ * API 21-22, so benchmark.maxAllocsPerSegment fails there.
+ */
+public class DownloadBenchmark {
+    private static final String TAG = "DownloadBenchmark";
+    private static final long TIMEOUT_MINUTES = 10;
+
+    private LocalHttpServer server;
+    private DefaultDownloadService service;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LocalHttpServer();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (service != null) {
+            service.stop();
+        }
+        server.shutdown();
+    }
+
+    private static class Asset {
+        final String path;
+        final int segmentCount;
+        final long totalBytes;
+
+        Asset(String path, int segmentCount, long totalBytes) {
+            this.path = path;
+            this.segmentCount = segmentCount;
+            this.totalBytes = totalBytes;
+        }
+    }
+
+    private static class Result {
+        long metadataMillis;
+        long downloadMillis;
+        long downloadedBytes;
+        long transactions;
+        // -1 if allocations couldn't be counted.
+        long allocations = -1;
+        long allocatedBytes = -1;
+        int resumes;
+        int requests;
+        int connections;
+        Exception error;
+    }
+
+    // A single variant of segmentCount segments of segmentSize bytes, 4 seconds each.
+    private Asset addHlsAsset(String name, int segmentCount, int segmentSize) {
+        byte[] segment = new byte[segmentSize];
+        StringBuilder variant = new StringBuilder("#EXTM3U\n#EXT-X-VERSION:3\n#EXT-X-TARGETDURATION:4\n");
+        for (int i = 0; i < segmentCount; i++) {
+            variant.append("#EXTINF:4.0,\nseg-").append(i).append(".ts\n");
+            server.addContent("/" + name + "/seg-" + i + ".ts", segment);
+        }
+        variant.append("#EXT-X-ENDLIST\n");
+
+        long bitrate = segmentSize * 8L / 4;
+        server.addContent("/" + name + "/master.m3u8", ("#EXTM3U\n" +
+                "#EXT-X-STREAM-INF:BANDWIDTH=" + bitrate + ",RESOLUTION=1280x720\n" +
+                "variant.m3u8\n").getBytes());
+        server.addContent("/" + name + "/variant.m3u8", variant.toString().getBytes());
+        return new Asset("/" + name + "/master.m3u8", segmentCount, (long) segmentCount * segmentSize);
+    }
+
+    // A video and an audio representation, each with an init segment and segmentCount 2-second segments.
+    private Asset addDashAsset(String name, int segmentCount, int videoSegmentSize, int audioSegmentSize) {
+        addDashRepresentation(name, "v1", segmentCount, videoSegmentSize);
+        addDashRepresentation(name, "a1", segmentCount, audioSegmentSize);
+
+        String template = "<SegmentTemplate timescale=\"1000\" duration=\"2000\" startNumber=\"1\" " +
+                "initialization=\"$RepresentationID$/init.mp4\" media=\"$RepresentationID$/$Number$.m4s\"/>\n";
+        String mpd = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                "<MPD xmlns=\"urn:mpeg:dash:schema:mpd:2011\" type=\"static\" minBufferTime=\"PT2S\" " +
+                "profiles=\"urn:mpeg:dash:profile:isoff-live:2011\" " +
+                "mediaPresentationDuration=\"PT" + (segmentCount * 2) + "S\">\n" +
+                "<Period id=\"0\" start=\"PT0S\">\n" +
+                "<AdaptationSet mimeType=\"video/mp4\" contentType=\"video\">\n" + template +
+                "<Representation id=\"v1\" codecs=\"avc1.4d401f\" width=\"1280\" height=\"720\" " +
+                "bandwidth=\"" + videoSegmentSize * 8L / 2 + "\"/>\n" +
+                "</AdaptationSet>\n" +
+                "<AdaptationSet mimeType=\"audio/mp4\" contentType=\"audio\" lang=\"en\">\n" + template +
+                "<Representation id=\"a1\" codecs=\"mp4a.40.2\" audioSamplingRate=\"48000\" " +
+                "bandwidth=\"" + audioSegmentSize * 8L / 2 + "\"/>\n" +
+                "</AdaptationSet>\n" +
+                "</Period>\n" +
+                "</MPD>\n";
+        server.addContent("/" + name + "/manifest.mpd", mpd.getBytes());
+
+        long initBytes = 2 * 1024;
+        return new Asset("/" + name + "/manifest.mpd", 2 * (segmentCount + 1),
+                initBytes + (long) segmentCount * (videoSegmentSize + audioSegmentSize));
+    }
+
+    private void addDashRepresentation(String name, String id, int segmentCount, int segmentSize) {
+        server.addContent("/" + name + "/" + id + "/init.mp4", new byte[1024]);
+        byte[] segment = new byte[segmentSize];
+        for (int i = 1; i <= segmentCount; i++) {
+            server.addContent("/" + name + "/" + id + "/" + i + ".m4s", segment);
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private Result run(String itemId, Asset asset, ContentManager.Settings settings) throws Exception {
+        final Result result = new Result();
+        final CountDownLatch done = new CountDownLatch(1);
+        final long[] times = new long[3];   // metadata start, download start, complete
+        final AtomicInteger resumes = new AtomicInteger();
+
+        service = new DefaultDownloadService(InstrumentationRegistry.getTargetContext());
+        service.setDownloadSettings(settings);
+        service.start();
+        service.setDownloadStateListener(new DownloadStateListener() {
+            @Override
+            public void onDownloadComplete(DownloadItem item) {
+                times[2] = System.nanoTime();
+                done.countDown();
+            }
+
+            @Override
+            public void onProgressChange(DownloadItem item, long downloadedBytes) {
+            }
+
+            @Override
+            public void onDownloadStart(DownloadItem item) {
+                if (times[1] == 0) {
+                    times[1] = System.nanoTime();
+                }
+            }
+
+            @Override
+            public void onDownloadPause(DownloadItem item, DownloadStateReason reason, Exception error) {
+                // Injected failures pause the item; resume it like an app would.
+                if (reason == DownloadStateReason.PAUSED_BY_ERROR || reason == DownloadStateReason.PAUSED_BY_NETWORK) {
+                    resumes.incrementAndGet();
+                    item.startDownload();
+                }
+            }
+
+            @Override
+            public void onDownloadFailure(DownloadItem item, Exception error) {
+                result.error = error;
+                done.countDown();
+            }
+
+            @Override
+            public void onDownloadMetadata(DownloadItem item, Exception error) {
+                if (error != null) {
+                    result.error = error;
+                    done.countDown();
+                    return;
+                }
+                item.startDownload();
+            }
+
+            @Override
+            public void onDownloadRemoved(String itemId) {
+            }
+
+            @Override
+            public void onTracksAvailable(DownloadItem item, DownloadItem.TrackSelector trackSelector) {
+            }
+        });
+
+        DefaultDownloadItem item = service.findItem(itemId);
+        if (item != null) {
+            service.removeItem(item);
+        }
+        item = service.createItem(itemId, server.url(asset.path).toString());
+
+        System.gc();
+        server.resetCounters();
+        long transactions = Database.getTransactionCount();
+        long[] allocations = startAllocCounting();
+
+        times[0] = System.nanoTime();
+        item.loadMetadata();
+        boolean completed = done.await(TIMEOUT_MINUTES, TimeUnit.MINUTES);
+
+        stopAllocCounting(allocations, result);
+        result.transactions = Database.getTransactionCount() - transactions;
+        result.resumes = resumes.get();
+        result.connections = server.getConnectionCount();
+        result.requests = server.getRequestCount();
+        Assert.assertTrue(itemId + " timed out", completed);
+        Assert.assertNull(itemId + " failed", result.error);
+
+        item = service.findItem(itemId);
+        Assert.assertEquals(DownloadState.COMPLETED, item.getState());
+        result.downloadedBytes = item.getDownloadedSizeBytes();
+        result.metadataMillis = (times[1] - times[0]) / 1000000;
+        result.downloadMillis = (times[2] - times[1]) / 1000000;
+
+        service.removeItem(item);
+        service.stop();
+        service = null;
+        return result;
+    }
+
+    // ART ignores Debug.startAllocCounting() and reports 0, so from API 23 the runtime's own
+    // counters are used; on API 21-22 allocations aren't counted. Returns the counters' start values.
+    private static long[] startAllocCounting() {
+        if (Build.VERSION.SDK_INT >= 23) {
+            return new long[]{runtimeStat("art.gc.objects-allocated"), runtimeStat("art.gc.bytes-allocated")};
+        }
+        if (Build.VERSION.SDK_INT < 21) {
+            Debug.resetGlobalAllocCount();
+            Debug.resetGlobalAllocSize();
+            Debug.startAllocCounting();
+        }
+        return null;
+    }
+
+    private static void stopAllocCounting(long[] start, Result result) {
+        if (Build.VERSION.SDK_INT >= 23) {
+            long objects = runtimeStat("art.gc.objects-allocated");
+            long bytes = runtimeStat("art.gc.bytes-allocated");
+            if (start[0] >= 0 && objects >= 0) {
+                result.allocations = objects - start[0];
+            }
+            if (start[1] >= 0 && bytes >= 0) {
+                result.allocatedBytes = bytes - start[1];
+            }
+        } else if (Build.VERSION.SDK_INT < 21) {
+            Debug.stopAllocCounting();
+            result.allocations = Debug.getGlobalAllocCount();
+            result.allocatedBytes = Debug.getGlobalAllocSize();
+        }
+    }
+
+    @TargetApi(23)
+    private static long runtimeStat(String name) {
+        String value = Debug.getRuntimeStat(name);
+        try {
+            return value == null ? -1 : Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void report(String name, Asset asset, Result result) {
+        double seconds = Math.max(result.downloadMillis, 1) / 1000.0;
+        double segmentsPerSec = asset.segmentCount / seconds;
+        double megabytesPerSec = result.downloadedBytes / 1024.0 / 1024.0 / seconds;
+        double dbOpsPerSegment = (double) result.transactions / asset.segmentCount;
+        double allocsPerSegment = (double) result.allocations / asset.segmentCount;
+        double allocatedBytesPerSegment = (double) result.allocatedBytes / asset.segmentCount;
+
+        // Measured by the server: the fraction of requests that didn't need a new TCP connection.
+        double reuseRate = result.requests == 0 ? 0 : 1 - (double) result.connections / result.requests;
+
+        Log.i(TAG, String.format(Locale.US, "%s: %d segments, %.1f MB; metadata %d ms, download %d ms; " +
+                        "%.1f segments/sec, %.2f MB/s; %.3f db transactions/segment, %.0f allocations (%.0f bytes)/segment; " +
+                        "%d requests over %d connections (reuse %.2f), %d resumes",
+                name, asset.segmentCount, result.downloadedBytes / 1024.0 / 1024.0, result.metadataMillis,
+                result.downloadMillis, segmentsPerSec, megabytesPerSec, dbOpsPerSegment, allocsPerSegment, allocatedBytesPerSegment,
+                result.requests, result.connections, reuseRate, result.resumes));
+
+        Assert.assertEquals(name + " size", asset.totalBytes, result.downloadedBytes);
+
+        Bundle arguments = InstrumentationRegistry.getArguments();
+        double minSegmentsPerSec = limit(arguments, "benchmark.minSegmentsPerSec", 0);
+        double maxDbOpsPerSegment = limit(arguments, "benchmark.maxDbOpsPerSegment", Double.MAX_VALUE);
+        double maxAllocsPerSegment = limit(arguments, "benchmark.maxAllocsPerSegment", Double.MAX_VALUE);
+        Assert.assertTrue(Utils.format("%s: %.1f segments/sec", name, segmentsPerSec), segmentsPerSec >= minSegmentsPerSec);
+        Assert.assertTrue(Utils.format("%s: %.3f db transactions/segment", name, dbOpsPerSegment), dbOpsPerSegment <= maxDbOpsPerSegment);
+        if (maxAllocsPerSegment != Double.MAX_VALUE) {
+            // A limit that can't be checked fails instead of passing silently.
+            Assert.assertTrue(name + ": allocations can't be counted on API " + Build.VERSION.SDK_INT, result.allocations >= 0);
+            Assert.assertTrue(Utils.format("%s: %.0f allocations/segment", name, allocsPerSegment), allocsPerSegment <= maxAllocsPerSegment);
+        }
+    }
+
+    private static double limit(Bundle arguments, String key, double defaultValue) {
+        String value = arguments == null ? null : arguments.getString(key);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+
+    @Test
+    public void hlsSmallSegments() throws Exception {
+        Asset asset = addHlsAsset("hls-small", 1000, 16 * 1024);
+        report("hls-small", asset, run("bench-hls-small", asset, new ContentManager.Settings()));
+    }
+
+    @Test
+    public void hlsLatencyAndFailures() throws Exception {
+        Asset asset = addHlsAsset("hls-slow", 200, 64 * 1024);
+        server.setLatencyMillis(20);
+        server.setFailureEveryN(50);
+        report("hls-slow", asset, run("bench-hls-slow", asset, new ContentManager.Settings()));
+    }
+
+    @Test
+    public void dashThrottled() throws Exception {
+        Asset asset = addDashAsset("dash", 300, 48 * 1024, 8 * 1024);
+        server.setBytesPerSecond(16 * 1024 * 1024);
+        report("dash", asset, run("bench-dash", asset, new ContentManager.Settings()));
+    }
+}
@@ -0,0 +1,238 @@
+package com.kaltura.dtg.clear;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Verifies the order in which {@link DownloadScheduler} runs tasks, with a runner that only
+ * records the tasks instead of downloading them.
+ */
+public class DownloadSchedulerTest {
+
+    private final List<String> runOrder = Collections.synchronizedList(new ArrayList<String>());
+    private final CountDownLatch gate = new CountDownLatch(1);
+    private final AtomicInteger runningA = new AtomicInteger();
+    private final AtomicInteger maxRunningA = new AtomicInteger();
+    private CountDownLatch finished;
+    private DownloadScheduler scheduler;
+
+    private final DownloadScheduler.TaskRunner runner = new DownloadScheduler.TaskRunner() {
+        @Override
+        public void run(DownloadTask task) throws Exception {
+            runOrder.add(task.itemId + task.startTimeMs);
+            int running = "A".equals(task.itemId) ? runningA.incrementAndGet() : 0;
+            synchronized (maxRunningA) {
+                maxRunningA.set(Math.max(maxRunningA.get(), running));
+            }
+            // Hold the first tasks until everything is queued.
+            gate.await();
+            Thread.sleep(5);
+            if ("A".equals(task.itemId)) {
+                runningA.decrementAndGet();
+            }
+            finished.countDown();
+        }
+    };
+
+    @After
+    public void tearDown() throws Exception {
+        if (scheduler != null) {
+            scheduler.shutdown(5);
+        }
+    }
+
+    private ListSource tasks(String itemId, int count) throws Exception {
+        List<DownloadTask> tasks = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            DownloadTask task = new DownloadTask(new URL("http://example.com/" + itemId + i), new File("/tmp/" + itemId + i));
+            task.itemId = itemId;
+            task.startTimeMs = i * 10000;
+            tasks.add(task);
+        }
+        return new ListSource(tasks);
+    }
+
+    // Pages through a list, like PendingTaskPager pages through the db.
+    private static class ListSource implements DownloadScheduler.TaskSource {
+        final List<DownloadTask> tasks;
+        int position;
+        int maxRead;
+
+        ListSource(List<DownloadTask> tasks) {
+            this.tasks = tasks;
+        }
+
+        @Override
+        public synchronized List<DownloadTask> next(int maxCount) {
+            maxRead = Math.max(maxRead, maxCount);
+            List<DownloadTask> page = new ArrayList<>(tasks.subList(position, Math.min(position + maxCount, tasks.size())));
+            position += page.size();
+            return page;
+        }
+
+        @Override
+        public synchronized void rewind(long[] timeRange) {
+            position = 0;
+        }
+    }
+
+    // Pages are read on the scheduler's refill thread.
+    private void awaitRefills() throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (scheduler.isRefilling()) {
+            Assert.assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private void runAll() throws Exception {
+        awaitRefills();
+        gate.countDown();
+        Assert.assertTrue(finished.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void itemsTakeTurns() throws Exception {
+        finished = new CountDownLatch(6);
+        scheduler = new DownloadScheduler(1, 0, runner);
+        scheduler.enqueue("A", 0, tasks("A", 3));
+        scheduler.enqueue("B", 0, tasks("B", 3));
+        runAll();
+
+        Assert.assertEquals(Arrays.asList("A0", "B0", "A10000", "B10000", "A20000", "B20000"), runOrder);
+    }
+
+    @Test
+    public void higherPriorityRunsFirst() throws Exception {
+        finished = new CountDownLatch(6);
+        scheduler = new DownloadScheduler(1, 0, runner);
+        scheduler.enqueue("A", 0, tasks("A", 3));
+        scheduler.enqueue("B", 10, tasks("B", 2));
+        scheduler.enqueue("C", 0, tasks("C", 1));
+        scheduler.setItemPriority("C", 20);
+        runAll();
+
+        Assert.assertEquals(Arrays.asList("A0", "C0", "B0", "B10000", "A10000", "A20000"), runOrder);
+    }
+
+    @Test
+    public void itemConcurrencyIsCapped() throws Exception {
+        finished = new CountDownLatch(8);
+        scheduler = new DownloadScheduler(4, 2, runner);
+        scheduler.enqueue("A", 0, tasks("A", 6));
+        scheduler.enqueue("B", 0, tasks("B", 2));
+        awaitRefills();
+
+        // Two slots go to A, the other two to B.
+        Assert.assertEquals(4, scheduler.getRunningCount());
+        Assert.assertEquals(4, scheduler.getQueuedCount("A"));
+        runAll();
+
+        Assert.assertEquals(2, maxRunningA.get());
+    }
+
+    @Test
+    public void timeRangeIsDownloadedFirst() throws Exception {
+        finished = new CountDownLatch(6);
+        scheduler = new DownloadScheduler(1, 0, runner);
+        scheduler.enqueue("A", 0, tasks("A", 6));
+        awaitRefills();
+        scheduler.prioritizeTimeRange("A", 30000, 50000);
+        runAll();
+
+        Assert.assertEquals(Arrays.asList("A0", "A30000", "A40000", "A10000", "A20000", "A50000"), runOrder);
+    }
+
+    @Test
+    public void onlyAWindowIsHeldInMemory() throws Exception {
+        finished = new CountDownLatch(1000);
+        scheduler = new DownloadScheduler(2, 0, runner);
+        ListSource source = tasks("A", 1000);
+        scheduler.enqueue("A", 0, source);
+        awaitRefills();
+
+        Assert.assertEquals(2 + DownloadScheduler.WINDOW_SIZE - 2, source.position);
+        Assert.assertEquals(DownloadScheduler.WINDOW_SIZE - 2, scheduler.getQueuedCount("A"));
+        runAll();
+
+        Assert.assertEquals(1000, runOrder.size());
+        Assert.assertTrue(source.maxRead <= DownloadScheduler.WINDOW_SIZE);
+        Assert.assertEquals(1000, source.position);
+    }
+
+    @Test
+    public void sourceIsNotReadUnderTheLock() throws Exception {
+        finished = new CountDownLatch(1);
+        scheduler = new DownloadScheduler(1, 0, runner);
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        ListSource source = new ListSource(tasks("A", 1).tasks) {
+            @Override
+            public List<DownloadTask> next(int maxCount) {
+                reading.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.next(maxCount);
+            }
+        };
+        scheduler.enqueue("A", 0, source);
+        Assert.assertTrue(reading.await(5, TimeUnit.SECONDS));
+
+        // A slow db read doesn't block the scheduler's other calls.
+        Assert.assertEquals(0, scheduler.getQueuedCount("A"));
+        scheduler.setItemPriority("A", 1);
+        release.countDown();
+        runAll();
+
+        Assert.assertEquals(Collections.singletonList("A0"), runOrder);
+    }
+
+    @Test
+    public void cancelledItemIsDropped() throws Exception {
+        finished = new CountDownLatch(3);
+        scheduler = new DownloadScheduler(1, 0, runner);
+        scheduler.enqueue("A", 0, tasks("A", 3));
+        scheduler.enqueue("B", 0, tasks("B", 3));
+        scheduler.cancelItem("A");
+        Assert.assertEquals(0, scheduler.getQueuedCount("A"));
+        runAll();
+
+        // A0 may or may not have started before it was cancelled.
+        runOrder.remove("A0");
+        Assert.assertEquals(Arrays.asList("B0", "B10000", "B20000"), runOrder);
+    }
+
+    @Test
+    public void removedTasksAreDropped() throws Exception {
+        finished = new CountDownLatch(2);
+        scheduler = new DownloadScheduler(1, 0, runner);
+        ListSource source = tasks("A", 4);
+        scheduler.enqueue("A", 0, source);
+        awaitRefills();
+        Assert.assertEquals(3, scheduler.getQueuedCount("A"));
+
+        // A track was unselected while A0 ran.
+        synchronized (source) {
+            source.tasks.subList(2, 4).clear();
+        }
+        scheduler.tasksRemoved("A");
+        runAll();
+
+        Thread.sleep(50);
+        Assert.assertEquals(Arrays.asList("A0", "A10000"), runOrder);
+    }
+}
@@ -0,0 +1,119 @@
+package com.kaltura.dtg.clear;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Verifies the sampled size estimate and its refinement as files complete.
+ */
+public class DownloadSizeEstimatorTest {
+
+    private LocalHttpServer server;
+    private ExecutorService executor;
+    private final File dir = new File("estimator");
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LocalHttpServer();
+        executor = Executors.newFixedThreadPool(DownloadSizeEstimator.SAMPLE_THREADS);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        server.shutdown();
+    }
+
+    private DownloadTask task(String track, String name, int size) throws IOException {
+        String path = "/" + track + "/" + name;
+        if (size >= 0) {
+            server.addContent(path, new byte[size]);
+        }
+        DownloadTask task = new DownloadTask(server.url(path), new File(dir, track + "/" + name));
+        task.trackRelativeId = track;
+        return task;
+    }
+
+    @Test
+    public void samplesAreExtrapolatedPerTrackAndFileType() throws Exception {
+        List<DownloadTask> tasks = new ArrayList<>();
+        tasks.add(task("v0", "init.mp4", 100));
+        for (int i = 0; i < 10; i++) {
+            tasks.add(task("v0", "seg-" + i + ".m4s", 1000));
+            tasks.add(task("a0", "seg-" + i + ".m4s", 200));
+        }
+        // Byte ranges are exact and never sampled.
+        DownloadTask ranged = new DownloadTask(server.url("/missing"), new File(dir, "r"), 1000, 1499);
+        tasks.add(ranged);
+
+        Assert.assertEquals(100 + 10 * 1000 + 10 * 200 + 500, DownloadSizeEstimator.estimate(tasks, 1, 3, executor));
+        // Without samples, the other 21 files get their share of the nominal estimate.
+        Assert.assertEquals(21 * 1000 + 500, DownloadSizeEstimator.estimate(tasks, 22 * 1000, 0, executor));
+    }
+
+    @Test
+    public void nominalEstimateIfNothingCanBeSampled() throws Exception {
+        List<DownloadTask> tasks = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            tasks.add(task("v0", "seg-" + i + ".ts", -1));
+        }
+        Assert.assertEquals(12345, DownloadSizeEstimator.estimate(tasks, 12345, 5, executor));
+
+        // Byte ranges are still counted exactly.
+        tasks.add(new DownloadTask(server.url("/missing"), new File(dir, "r"), 0, 999));
+        Assert.assertEquals(1000 + 4 * 12345 / 5, DownloadSizeEstimator.estimate(tasks, 12345, 5, executor));
+    }
+
+    @Test
+    public void completedFilesRefineOnlyTheirGroup() throws Exception {
+        DefaultDownloadItem item = new DefaultDownloadItem("item", server.url("/item.mpd").toString());
+        item.setEstimatedSizeBytes(11000);
+        Map<String, Integer> pendingFiles = new HashMap<>();
+        pendingFiles.put(DownloadSizeEstimator.groupKey("v0", "seg.m4s"), 5);
+        pendingFiles.put(DownloadSizeEstimator.groupKey("a0", "seg.m4s"), 5);
+
+        DownloadSizeEstimator estimator = new DownloadSizeEstimator();
+        estimator.load(item.getItemId(), pendingFiles);
+        long estimate = 0;
+        for (int i = 0; i < 5; i++) {
+            DownloadTask task = new DownloadTask(server.url("/a0"), new File(dir, "a0/seg-" + i + ".m4s"), i * 200, i * 200 + 199);
+            task.trackRelativeId = "a0";
+            item.incDownloadBytes(200);
+            estimate = estimator.onTaskCompleted(item, task, 9 - i);
+        }
+
+        // The small audio files don't lower the mean of the pending video files.
+        Assert.assertEquals(1000 + 5 * 1100, estimate);
+    }
+
+    @Test
+    public void estimateConvergesToDownloadedSize() throws Exception {
+        DefaultDownloadItem item = new DefaultDownloadItem("item", server.url("/item.m3u8").toString());
+        // 10 files estimated at 1000 bytes each, but they're 2000 bytes each.
+        item.setEstimatedSizeBytes(10000);
+
+        DownloadSizeEstimator estimator = new DownloadSizeEstimator();
+        long previous = item.getEstimatedSizeBytes();
+        for (int i = 0; i < 10; i++) {
+            DownloadTask task = new DownloadTask(server.url("/f"), new File(dir, "f"), i * 2000, i * 2000 + 1999);
+            item.incDownloadBytes(2000);
+            long estimate = estimator.onTaskCompleted(item, task, 9 - i);
+            Assert.assertTrue(estimate + " after " + previous, estimate > previous);
+            Assert.assertTrue(estimate <= 20000);
+            item.setEstimatedSizeBytes(estimate);
+            previous = estimate;
+        }
+        Assert.assertEquals(20000, item.getEstimatedSizeBytes());
+    }
+}
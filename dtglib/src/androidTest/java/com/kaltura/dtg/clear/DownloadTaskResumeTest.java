@@ -0,0 +1,163 @@
+package com.kaltura.dtg.clear;
+
+import android.support.test.InstrumentationRegistry;
+
+import com.kaltura.dtg.ContentManager;
+import com.kaltura.dtg.Utils;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.HttpRetryException;
+
+/**
+ * Verifies that a partially downloaded file is resumed with a single ranged GET, and that a partial
+ * file that no longer matches the remote is downloaded again.
+ */
+public class DownloadTaskResumeTest {
+    private static final int FILE_SIZE = 50 * 1024;
+    private static final int PARTIAL_SIZE = 20 * 1024;
+
+    private LocalHttpServer server;
+    private File dir;
+    private ContentManager.Settings settings;
+    private int contentInfoCount;
+    private DownloadTask.State lastState;
+
+    private final DownloadTask.Listener listener = new DownloadTask.Listener() {
+        @Override
+        public void onTaskProgress(DownloadTask task, DownloadTask.State newState, int newBytes, Exception stopError) {
+            lastState = newState;
+        }
+
+        @Override
+        public void onTaskContentInfo(DownloadTask task) {
+            contentInfoCount++;
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LocalHttpServer();
+        dir = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "DownloadTaskResumeTest");
+        Utils.deleteRecursive(dir);
+        Assert.assertTrue(dir.mkdirs());
+        settings = new ContentManager.Settings();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+        Utils.deleteRecursive(dir);
+    }
+
+    private DownloadTask createTask(File targetFile) throws Exception {
+        DownloadTask task = new DownloadTask(server.url("/bytes/" + FILE_SIZE + ".ts"), targetFile);
+        task.setListener(listener);
+        task.setDownloadSettings(settings);
+        return task;
+    }
+
+    private void writePartial(File file, int length) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            for (int i = 0; i < length; i++) {
+                out.write(i);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private void assertContent(File file) throws IOException {
+        Assert.assertEquals(FILE_SIZE, file.length());
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            for (int i = 0; i < FILE_SIZE; i++) {
+                Assert.assertEquals((byte) i, raf.readByte());
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void firstDownloadRecordsContentInfo() throws Exception {
+        DownloadTask task = createTask(new File(dir, "a.ts"));
+        task.download();
+
+        Assert.assertEquals(DownloadTask.State.COMPLETED, lastState);
+        Assert.assertEquals(FILE_SIZE, task.contentLength);
+        Assert.assertEquals(LocalHttpServer.ETAG, task.etag);
+        Assert.assertEquals(1, contentInfoCount);
+    }
+
+    @Test
+    public void resumeWithKnownLengthSkipsHead() throws Exception {
+        File file = new File(dir, "b.ts");
+        writePartial(file, PARTIAL_SIZE);
+        DownloadTask task = createTask(file);
+        task.contentLength = FILE_SIZE;
+        task.etag = LocalHttpServer.ETAG;
+
+        task.download();
+
+        Assert.assertEquals(1, server.getRequestCount());
+        Assert.assertEquals(0, contentInfoCount);
+        assertContent(file);
+    }
+
+    @Test
+    public void completeFileNeedsNoRequest() throws Exception {
+        File file = new File(dir, "c.ts");
+        writePartial(file, FILE_SIZE);
+        DownloadTask task = createTask(file);
+        task.contentLength = FILE_SIZE;
+
+        task.download();
+
+        Assert.assertEquals(DownloadTask.State.COMPLETED, lastState);
+        Assert.assertEquals(0, server.getRequestCount());
+    }
+
+    @Test
+    public void changedEntityIsDownloadedAgain() throws Exception {
+        File file = new File(dir, "d.ts");
+        writePartial(file, PARTIAL_SIZE);
+        DownloadTask task = createTask(file);
+        task.contentLength = FILE_SIZE;
+        task.etag = "\"stale\"";
+
+        task.download();
+
+        Assert.assertEquals(1, server.getRequestCount());
+        Assert.assertEquals(LocalHttpServer.ETAG, task.etag);
+        assertContent(file);
+    }
+
+    @Test
+    public void oldRecordAndLongerFileAreHandled() throws Exception {
+        File file = new File(dir, "e.ts");
+        writePartial(file, PARTIAL_SIZE);
+        DownloadTask task = createTask(file);
+        // Old record: the length is unknown, so the file is checked with HEAD first.
+        task.download();
+        Assert.assertEquals(2, server.getRequestCount());
+        assertContent(file);
+
+        // A file longer than the recorded length is deleted before the request.
+        writePartial(file, FILE_SIZE + 10);
+        try {
+            task.download();
+        } catch (HttpRetryException e) {
+            Assert.fail("Should restart without a retry");
+        }
+        assertContent(file);
+    }
+}
@@ -0,0 +1,138 @@
+package com.kaltura.dtg.clear;
+
+import android.support.test.InstrumentationRegistry;
+
+import com.kaltura.dtg.ContentManager;
+import com.kaltura.dtg.Utils;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+/**
+ * Verifies that the byte ranges of an EXT-X-BYTERANGE playlist are merged into ranged downloads,
+ * counted exactly in the estimated size, and kept consistent in the local playlist.
+ */
+public class HlsByteRangeTest {
+    private static final int MEDIA_SIZE = 6000;
+
+    private static final String MASTER = "#EXTM3U\n" +
+            "#EXT-X-STREAM-INF:BANDWIDTH=800000\n" +
+            "variant.m3u8\n";
+
+    // Three adjacent ranges, a gap, then two more adjacent ranges, the second with an implicit offset.
+    private static final String VARIANT = "#EXTM3U\n" +
+            "#EXT-X-VERSION:4\n" +
+            "#EXT-X-TARGETDURATION:10\n" +
+            "#EXTINF:10.0,\n" +
+            "#EXT-X-BYTERANGE:1000@0\n" +
+            "media.ts\n" +
+            "#EXTINF:10.0,\n" +
+            "#EXT-X-BYTERANGE:1000@1000\n" +
+            "media.ts\n" +
+            "#EXTINF:10.0,\n" +
+            "#EXT-X-BYTERANGE:1000@2000\n" +
+            "media.ts\n" +
+            "#EXTINF:10.0,\n" +
+            "#EXT-X-BYTERANGE:500@4000\n" +
+            "media.ts\n" +
+            "#EXTINF:10.0,\n" +
+            "#EXT-X-BYTERANGE:500\n" +
+            "media.ts\n" +
+            "#EXT-X-ENDLIST\n";
+
+    private LocalHttpServer server;
+    private File dir;
+
+    private final DownloadTask.Listener listener = new DownloadTask.Listener() {
+        @Override
+        public void onTaskProgress(DownloadTask task, DownloadTask.State newState, int newBytes, Exception stopError) {
+            Assert.assertNotEquals(DownloadTask.State.ERROR, newState);
+        }
+
+        @Override
+        public void onTaskContentInfo(DownloadTask task) {
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LocalHttpServer();
+        byte[] media = new byte[MEDIA_SIZE];
+        for (int i = 0; i < media.length; i++) {
+            media[i] = (byte) i;
+        }
+        server.addContent("/hls/master.m3u8", MASTER.getBytes());
+        server.addContent("/hls/variant.m3u8", VARIANT.getBytes());
+        server.addContent("/hls/media.ts", media);
+
+        dir = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "HlsByteRangeTest");
+        Utils.deleteRecursive(dir);
+        Assert.assertTrue(dir.mkdirs());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+        Utils.deleteRecursive(dir);
+    }
+
+    private static String readFile(File file) throws IOException {
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            return new String(Utils.fullyReadInputStream(inputStream, (int) file.length()).toByteArray());
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    @Test
+    public void byteRangesAreMergedAndDownloadedInPlace() throws Exception {
+        DefaultDownloadItem item = new DefaultDownloadItem("hls", server.url("/hls/master.m3u8").toString());
+        HLSParser parser = new HLSParser(item, dir);
+        parser.parseMaster();
+        parser.apply();
+
+        List<DownloadTask> tasks = parser.createDownloadTasks();
+        Assert.assertEquals(2, tasks.size());
+        Assert.assertEquals(0, tasks.get(0).rangeStart);
+        Assert.assertEquals(2999, tasks.get(0).rangeEnd);
+        Assert.assertEquals(4000, tasks.get(1).rangeStart);
+        Assert.assertEquals(4999, tasks.get(1).rangeEnd);
+        Assert.assertEquals(30000, tasks.get(1).startTimeMs);
+        Assert.assertEquals(4000, parser.getEstimatedSizeBytes());
+
+        ContentManager.Settings settings = new ContentManager.Settings();
+        for (DownloadTask task : tasks) {
+            task.itemId = item.getItemId();
+            task.setListener(listener);
+            task.setDownloadSettings(settings);
+            task.download();
+        }
+        Assert.assertEquals(2 + 2, server.getRequestCount());
+
+        RandomAccessFile file = new RandomAccessFile(tasks.get(0).targetFile, "r");
+        try {
+            Assert.assertEquals(5000, file.length());
+            for (int i = 0; i < 5000; i++) {
+                byte b = file.readByte();
+                if (i < 3000 || i >= 4000) {
+                    Assert.assertEquals((byte) i, b);
+                }
+            }
+        } finally {
+            file.close();
+        }
+
+        String localVariant = readFile(new File(dir, "v0/" + HLSParser.VARIANT_M3U8));
+        Assert.assertTrue(localVariant, localVariant.contains("#EXT-X-BYTERANGE:500@4500\n" + Utils.getHashedFileName("media.ts")));
+        Assert.assertFalse(localVariant, localVariant.contains("media.ts"));
+    }
+}
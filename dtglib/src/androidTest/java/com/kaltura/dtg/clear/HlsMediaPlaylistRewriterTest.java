@@ -0,0 +1,80 @@
+package com.kaltura.dtg.clear;
+
+import com.kaltura.dtg.Utils;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.List;
+
+/**
+ * Verifies the single-pass localization of HLS media playlists.
+ */
+public class HlsMediaPlaylistRewriterTest {
+
+    private static final String PLAYLIST = "#EXTM3U\r\n" +
+            "#EXT-X-TARGETDURATION:10\r\n" +
+            "#EXT-X-KEY:METHOD=AES-128,URI=\"https://keys.example.com/k1?token=a\",IV=0x1\r\n" +
+            "#EXTINF:10.0,\r\n" +
+            "seg1.ts?session=1\r\n" +
+            "\r\n" +
+            "#EXTINF:9.5,\r\n" +
+            "seg2.ts\r\n" +
+            "#EXT-X-KEY:METHOD=AES-128,URI=\"https://keys.example.com/k1?token=a\",IV=0x2\r\n" +
+            "#EXTINF:10.0,\r\n" +
+            "seg1.ts?session=1\r\n" +
+            "#EXT-X-KEY:METHOD=NONE\r\n" +
+            "#EXTINF:4.5,\r\n" +
+            "/abs/seg3.ts\r\n" +
+            "#EXT-X-ENDLIST\r\n";
+
+    private static HlsMediaPlaylistRewriter rewrite(String playlist, ByteArrayOutputStream output) throws IOException {
+        HlsMediaPlaylistRewriter rewriter = new HlsMediaPlaylistRewriter(new URL("http://example.com/hls/v/index.m3u8"),
+                new File("v0"), "v0");
+        rewriter.rewrite(new ByteArrayInputStream(playlist.getBytes()), output);
+        return rewriter;
+    }
+
+    @Test
+    public void segmentsAndKeysAreLocalizedInOnePass() throws Exception {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        HlsMediaPlaylistRewriter rewriter = rewrite(PLAYLIST, output);
+
+        List<DownloadTask> keys = rewriter.getKeyTasks();
+        Assert.assertEquals(1, keys.size());
+        Assert.assertEquals("https://keys.example.com/k1?token=a", keys.get(0).url.toString());
+        Assert.assertEquals("v0", keys.get(0).trackRelativeId);
+
+        List<DownloadTask> segments = rewriter.getSegmentTasks();
+        Assert.assertEquals(3, segments.size());
+        Assert.assertEquals("http://example.com/hls/v/seg1.ts?session=1", segments.get(0).url.toString());
+        Assert.assertEquals(new File("v0", Utils.getHashedFileName("seg1.ts?session=1")), segments.get(0).targetFile);
+        Assert.assertTrue(segments.get(0).targetFile.getName().endsWith(".ts"));
+        Assert.assertEquals(10000, segments.get(1).startTimeMs);
+        Assert.assertEquals("http://example.com/abs/seg3.ts", segments.get(2).url.toString());
+        Assert.assertEquals(29500, segments.get(2).startTimeMs);
+
+        Assert.assertEquals(34000000, rewriter.getDurationUs());
+        Assert.assertEquals(34.0, rewriter.getWholeFilesSecs(), 0.001);
+        Assert.assertEquals(0, rewriter.getRangeBytes());
+
+        String local = new String(output.toByteArray(), "UTF-8");
+        String keyName = Utils.getHashedFileName("https://keys.example.com/k1?token=a");
+        Assert.assertTrue(local, local.startsWith("#EXTM3U\n#EXT-X-TARGETDURATION:10\n" +
+                "#EXT-X-KEY:METHOD=AES-128,URI=\"" + keyName + "\",IV=0x1\n" +
+                "#EXTINF:10.0,\n" + segments.get(0).targetFile.getName() + "\n#EXTINF:9.5,\n"));
+        Assert.assertTrue(local, local.contains("#EXT-X-KEY:METHOD=NONE\n"));
+        Assert.assertTrue(local, local.endsWith("#EXT-X-ENDLIST\n"));
+        Assert.assertFalse(local, local.contains("\r") || local.contains("seg2.ts") || local.contains("example.com"));
+    }
+
+    @Test(expected = IOException.class)
+    public void masterPlaylistIsRejected() throws Exception {
+        rewrite("#EXTM3U\n#EXT-X-STREAM-INF:BANDWIDTH=1\nv.m3u8\n", new ByteArrayOutputStream());
+    }
+}
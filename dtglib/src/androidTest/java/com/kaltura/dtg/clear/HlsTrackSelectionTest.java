@@ -0,0 +1,139 @@
+package com.kaltura.dtg.clear;
+
+import android.support.test.InstrumentationRegistry;
+
+import com.kaltura.dtg.DownloadItem;
+import com.kaltura.dtg.Utils;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Verifies variant and alternate rendition selection of an HLS item.
+ */
+public class HlsTrackSelectionTest {
+
+    private static final String MASTER = "#EXTM3U\n" +
+            "#EXT-X-MEDIA:TYPE=AUDIO,GROUP-ID=\"aac\",NAME=\"English\",LANGUAGE=\"en\",DEFAULT=YES,URI=\"audio/en.m3u8\"\n" +
+            "#EXT-X-MEDIA:TYPE=AUDIO,GROUP-ID=\"aac\",NAME=\"French\",LANGUAGE=\"fr\",URI=\"audio/fr.m3u8\"\n" +
+            "#EXT-X-MEDIA:TYPE=SUBTITLES,GROUP-ID=\"subs\",NAME=\"English\",LANGUAGE=\"en\",URI=\"subs/en.m3u8\"\n" +
+            "#EXT-X-STREAM-INF:BANDWIDTH=500000,RESOLUTION=640x360,AUDIO=\"aac\",SUBTITLES=\"subs\"\n" +
+            "low/index.m3u8\n" +
+            "#EXT-X-STREAM-INF:BANDWIDTH=2000000,RESOLUTION=1280x720,AUDIO=\"aac\",SUBTITLES=\"subs\"\n" +
+            "high/index.m3u8\n" +
+            "#EXT-X-I-FRAME-STREAM-INF:BANDWIDTH=100000,URI=\"low/iframe.m3u8\"\n";
+
+    private LocalHttpServer server;
+    private File dir;
+
+    private static byte[] mediaPlaylist(String extension) {
+        return ("#EXTM3U\n" +
+                "#EXT-X-TARGETDURATION:10\n" +
+                "#EXTINF:10.0,\n" +
+                "s1." + extension + "\n" +
+                "#EXTINF:10.0,\n" +
+                "s2." + extension + "\n" +
+                "#EXT-X-ENDLIST\n").getBytes();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LocalHttpServer();
+        server.addContent("/hls/master.m3u8", MASTER.getBytes());
+        server.addContent("/hls/low/index.m3u8", mediaPlaylist("ts"));
+        server.addContent("/hls/high/index.m3u8", mediaPlaylist("ts"));
+        server.addContent("/hls/audio/en.m3u8", mediaPlaylist("aac"));
+        server.addContent("/hls/audio/fr.m3u8", mediaPlaylist("aac"));
+        server.addContent("/hls/subs/en.m3u8", mediaPlaylist("vtt"));
+
+        dir = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "HlsTrackSelectionTest");
+        Utils.deleteRecursive(dir);
+        Assert.assertTrue(dir.mkdirs());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+        Utils.deleteRecursive(dir);
+    }
+
+    private HLSParser parseMaster() throws IOException {
+        DefaultDownloadItem item = new DefaultDownloadItem("hls", server.url("/hls/master.m3u8").toString());
+        HLSParser parser = new HLSParser(item, dir);
+        parser.parseMaster();
+        return parser;
+    }
+
+    private static String readFile(File file) throws IOException {
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            return new String(Utils.fullyReadInputStream(inputStream, (int) file.length()).toByteArray());
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    @Test
+    public void defaultSelectionIsBestVariantWithFirstRenditions() throws Exception {
+        HLSParser parser = parseMaster();
+        DownloadItem.TrackSelector selector = parser.getTrackSelector();
+
+        List<DownloadItem.Track> video = selector.getAvailableTracks(DownloadItem.TrackType.VIDEO);
+        Assert.assertEquals(2, video.size());
+        Assert.assertEquals(500000, video.get(0).getBitrate());
+        Assert.assertEquals(360, video.get(0).getHeight());
+        Assert.assertEquals(2, selector.getAvailableTracks(DownloadItem.TrackType.AUDIO).size());
+        Assert.assertEquals("fr", selector.getAvailableTracks(DownloadItem.TrackType.AUDIO).get(1).getLanguage());
+        Assert.assertEquals(1, selector.getAvailableTracks(DownloadItem.TrackType.TEXT).size());
+
+        Set<String> selected = new HashSet<>();
+        for (HlsTrack track : parser.getSelectedTracks()) {
+            selected.add(track.getRelativeId());
+        }
+        Assert.assertEquals(new HashSet<>(Arrays.asList("v1", "a0", "t0")), selected);
+    }
+
+    @Test
+    public void selectedTracksAreDownloadedTogether() throws Exception {
+        HLSParser parser = parseMaster();
+        DownloadItem.TrackSelector selector = parser.getTrackSelector();
+        selector.setSelectedTracks(DownloadItem.TrackType.VIDEO,
+                Collections.singletonList(selector.getAvailableTracks(DownloadItem.TrackType.VIDEO).get(0)));
+        selector.setSelectedTracks(DownloadItem.TrackType.AUDIO,
+                Collections.singletonList(selector.getAvailableTracks(DownloadItem.TrackType.AUDIO).get(1)));
+        selector.setSelectedTracks(DownloadItem.TrackType.TEXT, Collections.<DownloadItem.Track>emptyList());
+        selector.apply();
+
+        List<DownloadTask> tasks = parser.createDownloadTasks();
+        Assert.assertEquals(4, tasks.size());
+        for (DownloadTask task : tasks) {
+            Assert.assertEquals(new File(dir, task.trackRelativeId), task.targetFile.getParentFile());
+        }
+        Assert.assertEquals("v0", tasks.get(0).trackRelativeId);
+        Assert.assertEquals("a1", tasks.get(2).trackRelativeId);
+        Assert.assertTrue(tasks.get(2).url.toString().endsWith("/hls/audio/s1.aac"));
+
+        // 20 seconds of 500kbps video and of (assumed) 128kbps audio.
+        Assert.assertEquals(500000 / 8 * 20 + 128000 / 8 * 20, parser.getEstimatedSizeBytes());
+
+        String master = readFile(new File(dir, HLSParser.FILTERED_MASTER_M3U8));
+        Assert.assertTrue(master, master.contains("URI=\"a1/variant.m3u8\""));
+        Assert.assertTrue(master, master.contains("AUDIO=\"aac\"\nv0/variant.m3u8\n"));
+        Assert.assertFalse(master, master.contains("audio/en.m3u8"));
+        Assert.assertFalse(master, master.contains("v1/"));
+        Assert.assertFalse(master, master.contains("SUBTITLES"));
+        Assert.assertFalse(master, master.contains("I-FRAME"));
+        Assert.assertTrue(new File(dir, "a1/" + HLSParser.VARIANT_M3U8).isFile());
+    }
+}
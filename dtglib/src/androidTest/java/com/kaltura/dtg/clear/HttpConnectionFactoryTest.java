@@ -0,0 +1,138 @@
+package com.kaltura.dtg.clear;
+
+import android.support.test.InstrumentationRegistry;
+
+import com.kaltura.dtg.HttpConnectionFactory;
+import com.kaltura.dtg.ContentManager;
+import com.kaltura.dtg.Utils;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Verifies, against a local origin that counts TCP connections, that downloads reuse kept-alive
+ * connections instead of paying a handshake per request.
+ */
+public class HttpConnectionFactoryTest {
+    private static final int SEGMENT_COUNT = 20;
+    private static final int SEGMENT_SIZE = 100 * 1024;
+
+    private LocalHttpServer server;
+    private File dir;
+    private ContentManager.Settings settings;
+    private HttpConnectionFactory connectionFactory;
+
+    private final DownloadTask.Listener noopListener = new DownloadTask.Listener() {
+        @Override
+        public void onTaskProgress(DownloadTask task, DownloadTask.State newState, int newBytes, Exception stopError) {
+
+        }
+
+        @Override
+        public void onTaskContentInfo(DownloadTask task) {
+
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LocalHttpServer();
+        dir = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "HttpConnectionFactoryTest");
+        Utils.deleteRecursive(dir);
+        Assert.assertTrue(dir.mkdirs());
+
+        settings = new ContentManager.Settings();
+        connectionFactory = HttpConnectionFactory.getDefault();
+        connectionFactory.resetCounters();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+        Utils.deleteRecursive(dir);
+    }
+
+    private DownloadTask createTask(int index) throws Exception {
+        DownloadTask task = new DownloadTask(server.url("/bytes/" + (SEGMENT_SIZE + index) + ".ts"), new File(dir, "seg-" + index + ".ts"));
+        task.setListener(noopListener);
+        task.setDownloadSettings(settings);
+        return task;
+    }
+
+    @Test
+    public void sequentialTasksShareOneConnection() throws Exception {
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            DownloadTask task = createTask(i);
+            task.download();
+            Assert.assertEquals(SEGMENT_SIZE + i, task.targetFile.length());
+        }
+
+        Assert.assertEquals(SEGMENT_COUNT, server.getRequestCount());
+        Assert.assertEquals("Handshakes were not amortized", 1, server.getConnectionCount());
+        Assert.assertEquals(SEGMENT_COUNT, connectionFactory.getOpenedCount());
+        Assert.assertEquals(SEGMENT_COUNT, connectionFactory.getReleasedCount());
+    }
+
+    @Test
+    public void concurrentTasksAreBoundedByPoolSize() throws Exception {
+        final int threads = settings.maxConcurrentDownloads;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Void>> futures = new ArrayList<>();
+        for (int i = 0; i < SEGMENT_COUNT * threads; i++) {
+            final DownloadTask task = createTask(i);
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    task.download();
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        Assert.assertEquals(SEGMENT_COUNT * threads, server.getRequestCount());
+        Assert.assertTrue("Too many connections: " + server.getConnectionCount(), server.getConnectionCount() <= threads);
+    }
+
+    @Test
+    public void headAndGetShareOneConnection() throws Exception {
+        File targetFile = new File(dir, "file.mp4");
+        long length = Utils.httpHeadGetLength(server.url("/bytes/12345.mp4"));
+        byte[] bytes = Utils.downloadToFile(server.url("/bytes/12345.mp4"), targetFile, 100);
+
+        Assert.assertEquals(12345, length);
+        Assert.assertEquals(12345, targetFile.length());
+        Assert.assertEquals(100, bytes.length);
+        Assert.assertEquals(1, server.getConnectionCount());
+    }
+
+    @Test
+    public void abandonedResponseIsNotReused() throws Exception {
+        server.setFailureEveryN(2);
+        createTask(0).download();
+        try {
+            createTask(1).download();
+            Assert.fail("Expected the second request to fail");
+        } catch (IOException e) {
+            // expected: 503
+        }
+        createTask(2).download();
+
+        // The failed response closed its connection, so the third request needed a new one.
+        Assert.assertEquals(2, server.getConnectionCount());
+    }
+}
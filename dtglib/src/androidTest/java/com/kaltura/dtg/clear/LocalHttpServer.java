@@ -0,0 +1,280 @@
+package com.kaltura.dtg.clear;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal HTTP/1.1 origin for tests, with keep-alive, HEAD and Range support.
+ *
+ * Content is registered by path with {@link #addContent(String, byte[])}; any other path of the form
+ * "/bytes/N[.ext]" returns N synthetic bytes. The server counts accepted TCP connections separately
+ * from requests, so tests can tell whether connections were reused.
+ */
+class LocalHttpServer {
+    private static final String TAG = "LocalHttpServer";
+    static final String ETAG = "\"dtg-test\"";
+
+    private final ServerSocket serverSocket;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final Map<String, byte[]> contents = new HashMap<>();
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private final AtomicInteger requestCount = new AtomicInteger();
+    private volatile boolean running = true;
+
+    private volatile long latencyMillis;
+    private volatile long bytesPerSecond;
+    private volatile int failureEveryN;
+
+    LocalHttpServer() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        });
+    }
+
+    URL url(String path) throws IOException {
+        return new URL("http", "127.0.0.1", serverSocket.getLocalPort(), path);
+    }
+
+    synchronized void addContent(String path, byte[] content) {
+        contents.put(path, content);
+    }
+
+    // Delay before each response.
+    void setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    // Throttle response bodies; 0 means unlimited.
+    void setBytesPerSecond(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    // Answer every Nth request with 503; 0 means never.
+    void setFailureEveryN(int failureEveryN) {
+        this.failureEveryN = failureEveryN;
+    }
+
+    int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    int getRequestCount() {
+        return requestCount.get();
+    }
+
+    void resetCounters() {
+        connectionCount.set(0);
+        requestCount.set(0);
+    }
+
+    void shutdown() {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            Log.w(TAG, "close failed", e);
+        }
+        executor.shutdownNow();
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            try {
+                final Socket socket = serverSocket.accept();
+                connectionCount.incrementAndGet();
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        serve(socket);
+                    }
+                });
+            } catch (IOException e) {
+                if (running) {
+                    Log.e(TAG, "accept failed", e);
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            while (running) {
+                String requestLine = readLine(in);
+                if (requestLine == null || requestLine.isEmpty()) {
+                    break;
+                }
+                Map<String, String> headers = new HashMap<>();
+                String line;
+                while ((line = readLine(in)) != null && !line.isEmpty()) {
+                    int colon = line.indexOf(':');
+                    if (colon > 0) {
+                        headers.put(line.substring(0, colon).trim().toLowerCase(Locale.US), line.substring(colon + 1).trim());
+                    }
+                }
+
+                String[] parts = requestLine.split(" ");
+                boolean keepAlive = respond(parts[0], parts[1], headers, out);
+                out.flush();
+                if (!keepAlive) {
+                    break;
+                }
+            }
+        } catch (SocketException e) {
+            // Client went away.
+        } catch (IOException e) {
+            Log.w(TAG, "serve failed", e);
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private boolean respond(String method, String path, Map<String, String> headers, OutputStream out) throws IOException {
+        int requestNumber = requestCount.incrementAndGet();
+
+        if (latencyMillis > 0) {
+            sleep(latencyMillis);
+        }
+
+        if (failureEveryN > 0 && requestNumber % failureEveryN == 0) {
+            writeHead(out, "503 Service Unavailable", 0, null, true);
+            return false;
+        }
+
+        byte[] content = getContent(path);
+        if (content == null) {
+            writeHead(out, "404 Not Found", 0, null, false);
+            return true;
+        }
+
+        long start = 0;
+        long end = content.length - 1;
+        String status = "200 OK";
+        String contentRange = null;
+        String range = headers.get("range");
+        String ifRange = headers.get("if-range");
+        if (ifRange != null && !ifRange.equals(ETAG)) {
+            // The client's copy is stale: send the whole entity.
+            range = null;
+        }
+        if (range != null && range.toLowerCase(Locale.US).startsWith("bytes=")) {
+            String[] bounds = range.substring(6).split("-", -1);
+            start = Long.parseLong(bounds[0]);
+            if (bounds.length > 1 && !bounds[1].isEmpty()) {
+                end = Math.min(end, Long.parseLong(bounds[1]));
+            }
+            if (start >= content.length) {
+                writeHead(out, "416 Range Not Satisfiable", 0, "bytes */" + content.length, false);
+                return true;
+            }
+            status = "206 Partial Content";
+            contentRange = "bytes " + start + "-" + end + "/" + content.length;
+        }
+
+        long length = end - start + 1;
+        writeHead(out, status, length, contentRange, false);
+        if (!"HEAD".equals(method)) {
+            writeBody(out, content, (int) start, (int) length);
+        }
+        return true;
+    }
+
+    private synchronized byte[] getContent(String path) {
+        byte[] content = contents.get(path);
+        if (content == null && path.startsWith("/bytes/")) {
+            String size = path.substring("/bytes/".length());
+            int dot = size.indexOf('.');
+            if (dot >= 0) {
+                size = size.substring(0, dot);
+            }
+            content = new byte[Integer.parseInt(size)];
+            for (int i = 0; i < content.length; i++) {
+                content[i] = (byte) i;
+            }
+            contents.put(path, content);
+        }
+        return content;
+    }
+
+    private void writeHead(OutputStream out, String status, long length, String contentRange, boolean close) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("HTTP/1.1 ").append(status).append("\r\n");
+        sb.append("Content-Length: ").append(length).append("\r\n");
+        sb.append("Accept-Ranges: bytes\r\n");
+        sb.append("ETag: ").append(ETAG).append("\r\n");
+        if (contentRange != null) {
+            sb.append("Content-Range: ").append(contentRange).append("\r\n");
+        }
+        sb.append("Connection: ").append(close ? "close" : "keep-alive").append("\r\n");
+        sb.append("\r\n");
+        out.write(sb.toString().getBytes("US-ASCII"));
+    }
+
+    private void writeBody(OutputStream out, byte[] content, int offset, int length) throws IOException {
+        final int chunk = 16 * 1024;
+        long started = System.currentTimeMillis();
+        int written = 0;
+        while (written < length) {
+            int count = Math.min(chunk, length - written);
+            out.write(content, offset + written, count);
+            written += count;
+            if (bytesPerSecond > 0) {
+                long due = started + written * 1000L / bytesPerSecond;
+                long wait = due - System.currentTimeMillis();
+                if (wait > 0) {
+                    out.flush();
+                    sleep(wait);
+                }
+            }
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int len = sb.length();
+                if (len > 0 && sb.charAt(len - 1) == '\r') {
+                    sb.setLength(len - 1);
+                }
+                return sb.toString();
+            }
+            sb.append((char) c);
+        }
+        return sb.length() == 0 ? null : sb.toString();
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
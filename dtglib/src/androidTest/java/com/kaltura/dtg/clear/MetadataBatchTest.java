@@ -0,0 +1,102 @@
+package com.kaltura.dtg.clear;
+
+import android.support.test.InstrumentationRegistry;
+
+import com.kaltura.dtg.ContentManager;
+import com.kaltura.dtg.DownloadItem;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads the metadata of a batch of items from a slow local server.
+ */
+public class MetadataBatchTest {
+    private static final int ITEMS = 8;
+    private static final long LATENCY = 300;
+
+    private LocalHttpServer server;
+    private DefaultDownloadService service;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LocalHttpServer();
+        server.setLatencyMillis(LATENCY);
+        service = new DefaultDownloadService(InstrumentationRegistry.getTargetContext());
+        service.setDownloadSettings(new ContentManager.Settings());
+        service.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (int i = 0; i < ITEMS; i++) {
+            service.removeItem(service.findItem("batch" + i));
+        }
+        service.stop();
+        server.shutdown();
+    }
+
+    @Test
+    public void batchIsLoadedInParallel() throws Exception {
+        List<DefaultDownloadItem> items = new ArrayList<>();
+        for (int i = 0; i < ITEMS; i++) {
+            service.removeItem(service.findItem("batch" + i));
+            items.add(service.createItem("batch" + i, server.url("/bytes/" + (1000 + i) + ".mp4").toString()));
+        }
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        final List<Map<DownloadItem, Exception>> results = new ArrayList<>();
+        long start = System.currentTimeMillis();
+        service.loadItemsMetadata(items, new ContentManager.OnMetadataLoadedListener() {
+            @Override
+            public void onMetadataLoaded(Map<DownloadItem, Exception> batchResults) {
+                results.add(batchResults);
+                latch.countDown();
+            }
+        });
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        long elapsed = System.currentTimeMillis() - start;
+
+        Assert.assertEquals(1, results.size());
+        Assert.assertEquals(ITEMS, results.get(0).size());
+        for (DefaultDownloadItem item : items) {
+            Assert.assertNull(results.get(0).get(item));
+            Assert.assertTrue(item.getEstimatedSizeBytes() >= 1000);
+        }
+        // One HEAD per item, 4 at a time: about 2 * LATENCY, where one at a time takes ITEMS * LATENCY.
+        Assert.assertTrue("elapsed: " + elapsed, elapsed < ITEMS * LATENCY / 2);
+    }
+
+    @Test
+    public void failingItemIsReported() throws Exception {
+        service.removeItem(service.findItem("batch0"));
+        service.removeItem(service.findItem("batch-broken"));
+        List<DefaultDownloadItem> items = new ArrayList<>();
+        items.add(service.createItem("batch0", server.url("/bytes/1000.mp4").toString()));
+        // No path to take a file name from: fails with a RuntimeException, not an IOException.
+        items.add(service.createItem("batch-broken", server.url("").toString()));
+
+        final CountDownLatch latch = new CountDownLatch(1);
+        final List<Map<DownloadItem, Exception>> results = new ArrayList<>();
+        service.loadItemsMetadata(items, new ContentManager.OnMetadataLoadedListener() {
+            @Override
+            public void onMetadataLoaded(Map<DownloadItem, Exception> batchResults) {
+                results.add(batchResults);
+                latch.countDown();
+            }
+        });
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+
+        Assert.assertNull(results.get(0).get(items.get(0)));
+        Assert.assertNotNull(results.get(0).get(items.get(1)));
+        service.removeItem(items.get(1));
+    }
+}
@@ -0,0 +1,160 @@
+package com.kaltura.dtg.clear;
+
+import android.os.HandlerThread;
+
+import com.kaltura.dtg.DownloadItem;
+import com.kaltura.dtg.DownloadStateListener;
+import com.kaltura.dtg.DownloadStateReason;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Verifies that progress is coalesced while state changes are delivered at once and in order.
+ */
+public class ProgressDispatcherTest {
+    private static final long INTERVAL = 200;
+
+    private HandlerThread thread;
+    private final List<String> events = new ArrayList<>();
+    private CountDownLatch done;
+
+    private final DownloadStateListener listener = new DownloadStateListener() {
+        @Override
+        public void onDownloadComplete(DownloadItem item) {
+            record("complete:" + item.getItemId());
+            done.countDown();
+        }
+
+        @Override
+        public void onProgressChange(DownloadItem item, long downloadedBytes) {
+            record("progress:" + item.getItemId() + ":" + downloadedBytes);
+        }
+
+        @Override
+        public void onDownloadStart(DownloadItem item) {
+            record("start:" + item.getItemId());
+        }
+
+        @Override
+        public void onDownloadPause(DownloadItem item, DownloadStateReason reason, Exception error) {
+            record("pause:" + item.getItemId() + ":" + reason);
+            done.countDown();
+        }
+
+        @Override
+        public void onDownloadFailure(DownloadItem item, Exception error) {
+            record("failure:" + item.getItemId());
+        }
+
+        @Override
+        public void onDownloadMetadata(DownloadItem item, Exception error) {
+        }
+
+        @Override
+        public void onDownloadRemoved(String itemId) {
+            record("removed:" + itemId);
+            done.countDown();
+        }
+
+        @Override
+        public void onTracksAvailable(DownloadItem item, DownloadItem.TrackSelector trackSelector) {
+        }
+    };
+
+    private synchronized void record(String event) {
+        events.add(event);
+    }
+
+    private synchronized List<String> getEvents() {
+        return new ArrayList<>(events);
+    }
+
+    @Before
+    public void setUp() {
+        thread = new HandlerThread("ProgressDispatcherTest");
+        thread.start();
+    }
+
+    @After
+    public void tearDown() {
+        thread.quit();
+    }
+
+    @Test
+    public void progressIsCoalescedAndPrecedesCompletion() throws Exception {
+        ProgressDispatcher dispatcher = new ProgressDispatcher(thread.getLooper(), listener, INTERVAL);
+        DefaultDownloadItem item = new DefaultDownloadItem("a", "http://example.com/a.mp4");
+        done = new CountDownLatch(1);
+
+        dispatcher.started(item);
+        for (int i = 0; i < 1000; i++) {
+            item.incDownloadBytes(1);
+            dispatcher.progress(item);
+        }
+        dispatcher.completed(item);
+        Assert.assertTrue(done.await(2, TimeUnit.SECONDS));
+
+        List<String> events = getEvents();
+        Assert.assertEquals("start:a", events.get(0));
+        Assert.assertEquals("progress:a:1000", events.get(events.size() - 2));
+        Assert.assertEquals("complete:a", events.get(events.size() - 1));
+        // The first progress may go out at once; the rest wait for the interval.
+        Assert.assertTrue(events.toString(), events.size() <= 4);
+    }
+
+    @Test
+    public void progressIsRateLimited() throws Exception {
+        ProgressDispatcher dispatcher = new ProgressDispatcher(thread.getLooper(), listener, INTERVAL);
+        DefaultDownloadItem a = new DefaultDownloadItem("a", "http://example.com/a.mp4");
+        DefaultDownloadItem b = new DefaultDownloadItem("b", "http://example.com/b.mp4");
+        done = new CountDownLatch(1);
+
+        long end = System.currentTimeMillis() + 5 * INTERVAL;
+        while (System.currentTimeMillis() < end) {
+            a.incDownloadBytes(1);
+            dispatcher.progress(a);
+            b.incDownloadBytes(1);
+            dispatcher.progress(b);
+            Thread.sleep(1);
+        }
+        dispatcher.paused(a, DownloadStateReason.PAUSED_BY_NETWORK, null);
+        Assert.assertTrue(done.await(2, TimeUnit.SECONDS));
+
+        int progressCount = 0;
+        for (String event : getEvents()) {
+            if (event.startsWith("progress:")) {
+                progressCount++;
+            }
+        }
+        // About 5 intervals, 2 items each, plus a's final progress before the pause.
+        Assert.assertTrue("progress count: " + progressCount, progressCount <= 2 * 7 + 1);
+        Assert.assertEquals("pause:a:PAUSED_BY_NETWORK", getEvents().get(getEvents().size() - 1));
+    }
+
+    @Test
+    public void removalDropsPendingProgress() throws Exception {
+        ProgressDispatcher dispatcher = new ProgressDispatcher(thread.getLooper(), listener, INTERVAL);
+        DefaultDownloadItem item = new DefaultDownloadItem("a", "http://example.com/a.mp4");
+        done = new CountDownLatch(1);
+
+        // The first progress is delivered on the next loop; the second would wait for the interval.
+        dispatcher.progress(item);
+        Thread.sleep(50);
+        dispatcher.progress(item);
+        dispatcher.removed("a");
+        Assert.assertTrue(done.await(2, TimeUnit.SECONDS));
+        Thread.sleep(2 * INTERVAL);
+
+        List<String> events = getEvents();
+        Assert.assertEquals("removed:a", events.get(events.size() - 1));
+        Assert.assertEquals(2, events.size());
+    }
+}
@@ -0,0 +1,184 @@
+package com.kaltura.dtg.clear;
+
+import android.support.test.InstrumentationRegistry;
+
+import com.kaltura.dtg.ContentManager;
+import com.kaltura.dtg.Utils;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Verifies that a file split into byte ranges is downloaded in place by parallel tasks, and that
+ * each range resumes from its own progress.
+ */
+public class RangedDownloadTest {
+    private static final int FILE_SIZE = 100 * 1024;
+
+    private LocalHttpServer server;
+    private File dir;
+    private ContentManager.Settings settings;
+    private long reportedBytes;
+    private final List<DownloadTask.State> finalStates = new ArrayList<>();
+
+    private final DownloadTask.Listener listener = new DownloadTask.Listener() {
+        @Override
+        public synchronized void onTaskProgress(DownloadTask task, DownloadTask.State newState, int newBytes, Exception stopError) {
+            reportedBytes += newBytes;
+            if (newState == DownloadTask.State.COMPLETED || newState == DownloadTask.State.ERROR) {
+                finalStates.add(newState);
+            }
+        }
+
+        @Override
+        public void onTaskContentInfo(DownloadTask task) {
+            Assert.fail("Ranged tasks get their content info when they are created");
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LocalHttpServer();
+        dir = new File(InstrumentationRegistry.getTargetContext().getCacheDir(), "RangedDownloadTest");
+        Utils.deleteRecursive(dir);
+        Assert.assertTrue(dir.mkdirs());
+        settings = new ContentManager.Settings();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.shutdown();
+        Utils.deleteRecursive(dir);
+    }
+
+    private List<DownloadTask> createTasks(File targetFile, String etag, int count) throws IOException {
+        URL url = server.url("/bytes/" + FILE_SIZE + ".mp4");
+        List<DownloadTask> tasks = DownloadTask.createRangeTasks(url, targetFile, FILE_SIZE, etag, count);
+        for (DownloadTask task : tasks) {
+            task.itemId = "item";
+            task.setListener(listener);
+            task.setDownloadSettings(settings);
+        }
+        return tasks;
+    }
+
+    private void downloadInParallel(List<DownloadTask> tasks) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(tasks.size());
+        List<Future<Void>> futures = new ArrayList<>();
+        for (final DownloadTask task : tasks) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    task.download();
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+    }
+
+    // Write the first length bytes of the content to a file of the full size.
+    private void writePartial(File file, int length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(FILE_SIZE);
+            for (int i = 0; i < length; i++) {
+                raf.write(i);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    private void assertContent(File file) throws IOException {
+        Assert.assertEquals(FILE_SIZE, file.length());
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            for (int i = 0; i < FILE_SIZE; i++) {
+                Assert.assertEquals((byte) i, raf.readByte());
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void rangesCoverTheFile() throws Exception {
+        List<DownloadTask> tasks = DownloadTask.createRangeTasks(new URL("http://example.com/a.mp4"), new File(dir, "a.mp4"), 10, null, 3);
+        Assert.assertEquals(3, tasks.size());
+        Assert.assertEquals(0, tasks.get(0).rangeStart);
+        Assert.assertEquals(3, tasks.get(0).rangeEnd);
+        Assert.assertEquals(4, tasks.get(1).rangeStart);
+        Assert.assertEquals(7, tasks.get(1).rangeEnd);
+        Assert.assertEquals(8, tasks.get(2).rangeStart);
+        Assert.assertEquals(9, tasks.get(2).rangeEnd);
+        Assert.assertNotEquals(tasks.get(0).taskId, tasks.get(1).taskId);
+    }
+
+    @Test
+    public void rangesAreDownloadedInPlace() throws Exception {
+        File file = new File(dir, "b.mp4");
+        List<DownloadTask> tasks = createTasks(file, LocalHttpServer.ETAG, 4);
+
+        downloadInParallel(tasks);
+
+        Assert.assertEquals(4, finalStates.size());
+        Assert.assertFalse(finalStates.contains(DownloadTask.State.ERROR));
+        Assert.assertEquals(FILE_SIZE, reportedBytes);
+        Assert.assertEquals(4, server.getRequestCount());
+        for (DownloadTask task : tasks) {
+            Assert.assertEquals(task.rangeEnd - task.rangeStart + 1, task.rangeDone);
+        }
+        assertContent(file);
+    }
+
+    @Test
+    public void rangeResumesFromItsProgress() throws Exception {
+        File file = new File(dir, "c.mp4");
+        List<DownloadTask> tasks = createTasks(file, LocalHttpServer.ETAG, 2);
+        DownloadTask first = tasks.get(0);
+        DownloadTask second = tasks.get(1);
+
+        // The first range is done, the second is half done.
+        long secondHalf = (second.rangeEnd - second.rangeStart + 1) / 2;
+        writePartial(file, (int) (second.rangeStart + secondHalf));
+        first.rangeDone = first.rangeEnd - first.rangeStart + 1;
+        second.rangeDone = secondHalf;
+
+        first.download();
+        Assert.assertEquals(0, server.getRequestCount());
+
+        second.download();
+        Assert.assertEquals(1, server.getRequestCount());
+        Assert.assertEquals(FILE_SIZE - second.rangeStart - secondHalf, reportedBytes);
+        assertContent(file);
+    }
+
+    @Test
+    public void changedFileFailsTheRange() throws Exception {
+        File file = new File(dir, "d.mp4");
+        DownloadTask task = createTasks(file, "\"stale\"", 2).get(1);
+
+        task.download();
+
+        Assert.assertEquals(1, finalStates.size());
+        Assert.assertEquals(DownloadTask.State.ERROR, finalStates.get(0));
+        Assert.assertEquals(0, task.rangeDone);
+    }
+}
@@ -0,0 +1,160 @@
+package com.kaltura.dtg.clear;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hammers {@link TaskRegistry} from many threads.
+ */
+public class TaskRegistryTest {
+    private static final int THREADS = 16;
+    private static final int ITEMS = 8;
+    private static final int OPERATIONS = 20000;
+
+    private static FutureTask<Void> newFuture() {
+        return new FutureTask<>(new Runnable() {
+            @Override
+            public void run() {
+            }
+        }, null);
+    }
+
+    @Test
+    public void flagsAreTestAndSet() {
+        TaskRegistry registry = new TaskRegistry();
+        Assert.assertTrue(registry.markPaused("a"));
+        Assert.assertFalse(registry.markPaused("a"));
+        Assert.assertTrue(registry.isPaused("a"));
+        Assert.assertFalse(registry.isRemoved("a"));
+
+        Assert.assertTrue(registry.markRemoved("a"));
+        registry.clearPaused("a");
+        Assert.assertFalse(registry.isPaused("a"));
+        Assert.assertTrue(registry.isRemoved("a"));
+
+        registry.clearRemoved("a");
+        Assert.assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void cancelItemOnlyCancelsThatItem() {
+        TaskRegistry registry = new TaskRegistry();
+        FutureTask<Void> a = newFuture();
+        FutureTask<Void> b = newFuture();
+        registry.add("a", a);
+        registry.add("b", b);
+
+        Assert.assertEquals(1, registry.cancelItem("a"));
+        Assert.assertTrue(a.isCancelled());
+        Assert.assertFalse(b.isCancelled());
+
+        registry.remove("a", a);
+        registry.remove("b", b);
+        Assert.assertEquals(0, registry.size());
+    }
+
+    @Test
+    public void concurrentAddCancelAndRemove() throws Exception {
+        final TaskRegistry registry = new TaskRegistry();
+        final AtomicInteger added = new AtomicInteger();
+        final AtomicInteger removed = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        final List<List<Registered>> kept = new ArrayList<>();
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<?>> results = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final List<Registered> threadKept = new ArrayList<>();
+            kept.add(threadKept);
+            final long seed = t;
+            results.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    Random random = new Random(seed);
+                    start.await();
+                    List<Registered> mine = new ArrayList<>();
+                    for (int i = 0; i < OPERATIONS; i++) {
+                        String itemId = "item" + random.nextInt(ITEMS);
+                        switch (random.nextInt(6)) {
+                            case 0:
+                            case 1:
+                                Registered registered = new Registered(itemId, newFuture());
+                                registry.add(itemId, registered.future);
+                                mine.add(registered);
+                                added.incrementAndGet();
+                                break;
+                            case 2:
+                                if (!mine.isEmpty()) {
+                                    Registered done = mine.remove(random.nextInt(mine.size()));
+                                    registry.remove(done.itemId, done.future);
+                                    removed.incrementAndGet();
+                                }
+                                break;
+                            case 3:
+                                registry.cancelItem(itemId);
+                                break;
+                            case 4:
+                                if (registry.markPaused(itemId)) {
+                                    registry.clearPaused(itemId);
+                                }
+                                break;
+                            case 5:
+                                registry.markRemoved(itemId);
+                                registry.clearRemoved(itemId);
+                                break;
+                        }
+                    }
+                    threadKept.addAll(mine);
+                    return null;
+                }
+            }));
+        }
+
+        start.countDown();
+        for (Future<?> result : results) {
+            result.get(60, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        // Every future that is still registered is cancelled by cancelAll.
+        registry.cancelAll();
+        int remaining = 0;
+        for (List<Registered> registeredList : kept) {
+            for (Registered registered : registeredList) {
+                Assert.assertTrue(registered.future.isCancelled());
+                remaining++;
+            }
+        }
+        Assert.assertEquals(added.get() - removed.get(), remaining);
+
+        int registered = 0;
+        for (int i = 0; i < ITEMS; i++) {
+            registered += registry.getTaskCount("item" + i);
+            Assert.assertFalse(registry.isPaused("item" + i));
+            Assert.assertFalse(registry.isRemoved("item" + i));
+        }
+        Assert.assertEquals(remaining, registered);
+    }
+
+    private static class Registered {
+        final String itemId;
+        final FutureTask<Void> future;
+
+        Registered(String itemId, FutureTask<Void> future) {
+            this.itemId = itemId;
+            this.future = future;
+        }
+    }
+}
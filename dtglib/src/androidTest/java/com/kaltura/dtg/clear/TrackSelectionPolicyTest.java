@@ -0,0 +1,89 @@
+package com.kaltura.dtg.clear;
+
+import com.kaltura.dtg.DownloadItem;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Verifies the budget-aware default track selection.
+ */
+public class TrackSelectionPolicyTest {
+    // 100 seconds: a track of bitrate b is b * 100 / 8 bytes.
+    private static final long DURATION_SECS = 100;
+
+    private static final TrackSelectionPolicy.SizeEstimator<DashTrack> ESTIMATOR = new TrackSelectionPolicy.SizeEstimator<DashTrack>() {
+        @Override
+        public long estimateSize(DashTrack track) {
+            return track.getBitrate() * DURATION_SECS / 8;
+        }
+    };
+
+    private final DashTrack video1M = track(DownloadItem.TrackType.VIDEO, null, 1000000, 0);
+    private final DashTrack video4M = track(DownloadItem.TrackType.VIDEO, null, 4000000, 1);
+    private final DashTrack video2M = track(DownloadItem.TrackType.VIDEO, null, 2000000, 2);
+    private final DashTrack audioEn64 = track(DownloadItem.TrackType.AUDIO, "en", 64000, 0);
+    private final DashTrack audioEn128 = track(DownloadItem.TrackType.AUDIO, "en", 128000, 1);
+    private final DashTrack audioFr256 = track(DownloadItem.TrackType.AUDIO, "fr", 256000, 2);
+    private final DashTrack text = track(DownloadItem.TrackType.TEXT, "en", 80000, 0);
+
+    private static DashTrack track(DownloadItem.TrackType type, String language, long bitrate, int index) {
+        return new DashTrack(type, language, bitrate, type.ordinal(), index);
+    }
+
+    private Map<DownloadItem.TrackType, List<DashTrack>> available() {
+        Map<DownloadItem.TrackType, List<DashTrack>> tracks = new HashMap<>();
+        tracks.put(DownloadItem.TrackType.VIDEO, Arrays.asList(video1M, video4M, video2M));
+        tracks.put(DownloadItem.TrackType.AUDIO, Arrays.asList(audioEn64, audioEn128, audioFr256));
+        tracks.put(DownloadItem.TrackType.TEXT, Arrays.asList(text));
+        tracks.put(DownloadItem.TrackType.UNKNOWN, new ArrayList<DashTrack>());
+        return tracks;
+    }
+
+    private static long bytes(long bitrate) {
+        return bitrate * DURATION_SECS / 8;
+    }
+
+    private void assertSelection(Map<DownloadItem.TrackType, List<DashTrack>> selected, DashTrack video, DashTrack audio, DashTrack text) {
+        Assert.assertEquals(video == null ? Arrays.<DashTrack>asList() : Arrays.asList(video), selected.get(DownloadItem.TrackType.VIDEO));
+        Assert.assertEquals(audio == null ? Arrays.<DashTrack>asList() : Arrays.asList(audio), selected.get(DownloadItem.TrackType.AUDIO));
+        Assert.assertEquals(text == null ? Arrays.<DashTrack>asList() : Arrays.asList(text), selected.get(DownloadItem.TrackType.TEXT));
+    }
+
+    @Test
+    public void unlimitedSelectsHighestBitrates() {
+        TrackSelectionPolicy policy = new TrackSelectionPolicy(TrackSelectionPolicy.UNLIMITED);
+        assertSelection(policy.select(available(), ESTIMATOR), video4M, audioEn128, text);
+    }
+
+    @Test
+    public void bestVideoThatFitsWithAudio() {
+        // 2M video, 128k audio and text fit; 4M video doesn't.
+        long budget = bytes(2000000) + bytes(128000) + bytes(80000);
+        TrackSelectionPolicy policy = new TrackSelectionPolicy(budget);
+        assertSelection(policy.select(available(), ESTIMATOR), video2M, audioEn128, text);
+
+        // Now only the 64k audio fits next to the 2M video.
+        policy = new TrackSelectionPolicy(budget - 1);
+        assertSelection(policy.select(available(), ESTIMATOR), video2M, audioEn64, text);
+    }
+
+    @Test
+    public void textIsDroppedIfNothingFitsWithIt() {
+        long budget = bytes(1000000) + bytes(64000);
+        TrackSelectionPolicy policy = new TrackSelectionPolicy(budget);
+        assertSelection(policy.select(available(), ESTIMATOR), video1M, audioEn64, null);
+    }
+
+    @Test
+    public void smallestCombinationIfNothingFits() {
+        TrackSelectionPolicy policy = new TrackSelectionPolicy(1000);
+        assertSelection(policy.select(available(), ESTIMATOR), video1M, audioEn64, null);
+    }
+}
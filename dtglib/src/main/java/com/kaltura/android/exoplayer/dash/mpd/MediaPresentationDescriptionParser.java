@@ -64,6 +64,27 @@ public class MediaPresentationDescriptionParser extends DefaultHandler
   private final String contentId;
   private final XmlPullParserFactory xmlParserFactory;
 
+  // Timelines of the manifest being parsed whose last S repeats up to the end of its period.
+  private final List<OpenTimeline> openTimelines = new ArrayList<>();
+
+  private static final class OpenTimeline {
+
+    final List<SegmentTimelineElement> timeline;
+    final long duration;
+    final long timescale;
+    final long presentationTimeOffset;
+    int periodIndex = -1;
+
+    OpenTimeline(List<SegmentTimelineElement> timeline, long duration, long timescale,
+        long presentationTimeOffset) {
+      this.timeline = timeline;
+      this.duration = duration;
+      this.timescale = timescale;
+      this.presentationTimeOffset = presentationTimeOffset;
+    }
+
+  }
+
   /**
    * Equivalent to calling {@code new MediaPresentationDescriptionParser(null)}.
    */
@@ -119,6 +140,7 @@ public class MediaPresentationDescriptionParser extends DefaultHandler
     String location = null;
 
     List<Period> periods = new ArrayList<>();
+    openTimelines.clear();
     long nextPeriodStartMs = dynamic ? -1 : 0;
     boolean seenEarlyAccessPeriod = false;
     boolean seenFirstBaseUrl = false;
@@ -134,8 +156,12 @@ public class MediaPresentationDescriptionParser extends DefaultHandler
       } else if (ParserUtil.isStartTag(xpp, "Location")) {
         location = xpp.nextText();
       } else if (ParserUtil.isStartTag(xpp, "Period") && !seenEarlyAccessPeriod) {
+        int firstOpenTimeline = openTimelines.size();
         Pair<Period, Long> periodWithDurationMs = parsePeriod(xpp, baseUrl, nextPeriodStartMs);
         Period period = periodWithDurationMs.first;
+        for (int i = firstOpenTimeline; i < openTimelines.size(); i++) {
+          openTimelines.get(i).periodIndex = period.startMs == -1 ? -1 : periods.size();
+        }
         if (period.startMs == -1) {
           if (dynamic) {
             // This is an early access period. Ignore it. All subsequent periods must also be
@@ -165,8 +191,34 @@ public class MediaPresentationDescriptionParser extends DefaultHandler
       throw new ParserException("No periods found.");
     }
 
-    return buildMediaPresentationDescription(availabilityStartTime, durationMs, minBufferTimeMs,
-        dynamic, minUpdateTimeMs, timeShiftBufferDepthMs, utcTiming, location, periods);
+    MediaPresentationDescription manifest = buildMediaPresentationDescription(availabilityStartTime,
+        durationMs, minBufferTimeMs, dynamic, minUpdateTimeMs, timeShiftBufferDepthMs, utcTiming,
+        location, periods);
+    closeOpenTimelines(manifest);
+    return manifest;
+  }
+
+  /**
+   * Repeats the last S of each open timeline up to the end of its period, now that the durations
+   * of the periods are known. Timelines of periods with an unknown duration stay as they are.
+   */
+  private void closeOpenTimelines(MediaPresentationDescription manifest) {
+    for (OpenTimeline open : openTimelines) {
+      long periodDurationMs = open.periodIndex == -1 ? -1
+          : manifest.getPeriodDuration(open.periodIndex);
+      if (periodDurationMs == -1) {
+        continue;
+      }
+      long endTime = open.presentationTimeOffset
+          + Util.scaleLargeTimestamp(periodDurationMs, open.timescale, 1000);
+      SegmentTimelineElement last = open.timeline.get(open.timeline.size() - 1);
+      long elapsedTime = last.startTime + last.duration;
+      while (elapsedTime < endTime) {
+        open.timeline.add(buildSegmentTimelineElement(elapsedTime, open.duration));
+        elapsedTime += open.duration;
+      }
+    }
+    openTimelines.clear();
   }
 
   protected MediaPresentationDescription buildMediaPresentationDescription(
@@ -474,7 +526,7 @@ public class MediaPresentationDescriptionParser extends DefaultHandler
       if (ParserUtil.isStartTag(xpp, "Initialization")) {
         initialization = parseInitialization(xpp, baseUrl);
       } else if (ParserUtil.isStartTag(xpp, "SegmentTimeline")) {
-        timeline = parseSegmentTimeline(xpp);
+        timeline = parseSegmentTimeline(xpp, timescale, presentationTimeOffset);
       } else if (ParserUtil.isStartTag(xpp, "SegmentURL")) {
         if (segments == null) {
           segments = new ArrayList<>();
@@ -521,7 +573,7 @@ public class MediaPresentationDescriptionParser extends DefaultHandler
       if (ParserUtil.isStartTag(xpp, "Initialization")) {
         initialization = parseInitialization(xpp, baseUrl);
       } else if (ParserUtil.isStartTag(xpp, "SegmentTimeline")) {
-        timeline = parseSegmentTimeline(xpp);
+        timeline = parseSegmentTimeline(xpp, timescale, presentationTimeOffset);
       }
     } while (!ParserUtil.isEndTag(xpp, "SegmentTemplate"));
 
@@ -542,22 +594,44 @@ public class MediaPresentationDescriptionParser extends DefaultHandler
         startNumber, duration, timeline, initializationTemplate, mediaTemplate, baseUrl);
   }
 
-  protected List<SegmentTimelineElement> parseSegmentTimeline(XmlPullParser xpp)
-      throws XmlPullParserException, IOException {
+  protected List<SegmentTimelineElement> parseSegmentTimeline(XmlPullParser xpp, long timescale,
+      long presentationTimeOffset) throws XmlPullParserException, IOException {
     List<SegmentTimelineElement> segmentTimeline = new ArrayList<>();
     long elapsedTime = 0;
+    // Duration of an S with a negative repeat count; it repeats until the next S's start time,
+    // or up to the end of the period if it's the last S.
+    long openDuration = -1;
     do {
       xpp.next();
       if (ParserUtil.isStartTag(xpp, "S")) {
-        elapsedTime = parseLong(xpp, "t", elapsedTime);
+        long startTime = parseLong(xpp, "t", elapsedTime);
+        if (openDuration > 0) {
+          while (elapsedTime + openDuration <= startTime) {
+            segmentTimeline.add(buildSegmentTimelineElement(elapsedTime, openDuration));
+            elapsedTime += openDuration;
+          }
+          openDuration = -1;
+        }
+        elapsedTime = startTime;
         long duration = parseLong(xpp, "d");
-        int count = 1 + parseInt(xpp, "r", 0);
-        for (int i = 0; i < count; i++) {
+        int repeat = parseInt(xpp, "r", 0);
+        if (repeat < 0) {
+          segmentTimeline.add(buildSegmentTimelineElement(elapsedTime, duration));
+          elapsedTime += duration;
+          openDuration = duration;
+          continue;
+        }
+        for (int i = 0; i <= repeat; i++) {
           segmentTimeline.add(buildSegmentTimelineElement(elapsedTime, duration));
           elapsedTime += duration;
         }
       }
     } while (!ParserUtil.isEndTag(xpp, "SegmentTimeline"));
+    if (openDuration > 0) {
+      // The last S repeats up to the end of the period, which is known once the manifest is parsed.
+      openTimelines.add(new OpenTimeline(segmentTimeline, openDuration, timescale,
+          presentationTimeOffset));
+    }
     return segmentTimeline;
   }
 
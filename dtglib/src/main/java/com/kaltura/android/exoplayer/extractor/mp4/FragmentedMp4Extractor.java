@@ -704,8 +704,11 @@ public final class FragmentedMp4Extractor implements Extractor {
 
   /**
    * Parses a sidx atom (defined in 14496-12).
+   *
+   * @param atom The whole atom, including its header.
+   * @param inputPosition The position of the first byte after the atom in the stream.
    */
-  private static ChunkIndex parseSidx(ParsableByteArray atom, long inputPosition)
+  public static ChunkIndex parseSidx(ParsableByteArray atom, long inputPosition)
       throws ParserException {
     atom.setPosition(Atom.HEADER_SIZE);
     int fullAtom = atom.readInt();
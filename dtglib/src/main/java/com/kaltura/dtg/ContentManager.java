@@ -5,7 +5,9 @@ import android.content.Context;
 import com.kaltura.dtg.clear.ContentManagerImp;
 
 import java.io.File;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Created by Noam Tamim @ Kaltura on 28/09/2016.
@@ -89,6 +91,15 @@ public abstract class ContentManager {
      */
     public abstract DownloadItem createItem(String itemId, String contentURL) throws IllegalStateException;
 
+    /**
+     * Load the metadata of several items in parallel, e.g. a whole season. Each item still gets
+     * {@link DownloadStateListener#onDownloadMetadata(DownloadItem, Exception)}, as with
+     * {@link DownloadItem#loadMetadata()}.
+     * @param items
+     * @param listener called once, after the metadata of all items was loaded or failed. May be null.
+     */
+    public abstract void loadMetadata(Collection<DownloadItem> items, OnMetadataLoadedListener listener) throws IllegalStateException;
+
     /**
      * Remove item entirely. Deletes all files and db records.
      * @param itemId
@@ -120,9 +131,43 @@ public abstract class ContentManager {
 
     public abstract boolean isStarted();
 
+    /**
+     * Set the download priority of an item. See {@link DownloadItem#setPriority(int)}.
+     * @param itemId
+     * @param priority
+     */
+    public abstract void setItemPriority(String itemId, int priority) throws IllegalStateException;
+
+    /**
+     * Returns the number of files that are currently allowed to download at once. Changes at
+     * runtime if {@link Settings#adaptiveConcurrency} is set.
+     */
+    public abstract int getDownloadConcurrency() throws IllegalStateException;
+
+    /**
+     * Limit the total download bandwidth, e.g. to leave room for streaming.
+     * @param bytesPerSecond the limit, or 0 for no limit.
+     */
+    public abstract void setMaxBytesPerSecond(long bytesPerSecond) throws IllegalStateException;
+
+    /**
+     * Limit the download bandwidth of a single item. The global limit still applies.
+     * @param itemId
+     * @param bytesPerSecond the limit, or 0 for no limit.
+     */
+    public abstract void setItemMaxBytesPerSecond(String itemId, long bytesPerSecond) throws IllegalStateException;
+
     public interface OnStartedListener {
         void onStarted();
     }
+
+    public interface OnMetadataLoadedListener {
+        /**
+         * @param results all items, in the order they were passed, each with the error that
+         *                failed it, or null if its metadata was loaded.
+         */
+        void onMetadataLoaded(Map<DownloadItem, Exception> results);
+    }
     
     public abstract Settings getSettings();
     
@@ -130,7 +175,72 @@ public abstract class ContentManager {
         public int maxDownloadRetries = 5;
         public int httpTimeoutMillis = 15000;
         public int maxConcurrentDownloads = 4;
+        /**
+         * Max number of files of a single item that are downloaded at once. 0 means only
+         * {@link #maxConcurrentDownloads} applies.
+         */
+        public int maxConcurrentDownloadsPerItem = 0;
+        /**
+         * Adjust the number of concurrent downloads at runtime, between {@link #adaptiveConcurrencyFloor}
+         * and {@link #adaptiveConcurrencyCeiling}, by the measured throughput and timeouts. Starts at
+         * {@link #maxConcurrentDownloads}, and may go above it up to the ceiling. If false (the
+         * default), {@link #maxConcurrentDownloads} is used as is.
+         */
+        public boolean adaptiveConcurrency = false;
+        public int adaptiveConcurrencyFloor = 1;
+        public int adaptiveConcurrencyCeiling = 8;
+        /**
+         * Initial limit of the total download bandwidth, in bytes per second; 0 means unlimited.
+         * Change it at runtime with {@link ContentManager#setMaxBytesPerSecond(long)}.
+         */
+        public long maxBytesPerSecond = 0;
+        /**
+         * A single-file item (mp4, wvm) is split into up to this many byte ranges, each at least
+         * {@link #segmentedDownloadMinRangeBytes} long, which are downloaded in parallel like the
+         * files of a multi-file item. Only if the server accepts byte ranges; 1 disables splitting.
+         */
+        public int segmentedDownloadRanges = 4;
+        public long segmentedDownloadMinRangeBytes = 8 * 1024 * 1024;
+        /**
+         * Size of the buffer each download collects reads in before writing them to the file. Larger
+         * buffers mean fewer writes on fast links; progress is still reported as often.
+         */
+        public int downloadBufferSize = 64 * 1024;
         public String applicationName = "";
         public boolean useCellularData = true;
+        /**
+         * Downloaded sizes are written to the db at most once in this interval, unless
+         * {@link #progressFlushThresholdBytes} were downloaded first.
+         */
+        public int progressFlushIntervalMillis = 2000;
+        public long progressFlushThresholdBytes = 4 * 1024 * 1024;
+        /**
+         * {@link DownloadStateListener#onProgressChange} is called at most once in this interval for
+         * each item. State changes are reported immediately.
+         */
+        public int progressReportIntervalMillis = 250;
+        /**
+         * Max number of items whose metadata (manifests, playlists) is loaded at once.
+         */
+        public int maxConcurrentMetadataLoads = 4;
+        /**
+         * The tracks of a new item are selected so its estimated size fits the smaller of
+         * {@link #trackSelectionMaxBytes} and {@link #trackSelectionFreeSpaceFraction} of the free
+         * space, less what the other items still have to download. The best video that fits comes
+         * first, then audio, then text. 0 disables either limit; both are disabled by default, and
+         * then the highest bitrates are selected. The app can still change the selection in
+         * {@link DownloadStateListener#onTracksAvailable}.
+         *
+         * With a free space fraction, an item that doesn't fit in the free space fails when its
+         * metadata is loaded, not halfway through the download.
+         */
+        public long trackSelectionMaxBytes = 0;
+        public float trackSelectionFreeSpaceFraction = 0;
+        /**
+         * Files whose size is measured with HEAD requests when an item's metadata is loaded, per
+         * track and file type; the other files are assumed to have the mean measured size. 0 uses
+         * the bitrates declared in the manifest. The estimate is refined as files complete.
+         */
+        public int sizeEstimationSampleCount = 5;
     }
 }
@@ -11,6 +11,10 @@ import java.util.List;
  */
 public interface DownloadItem {
 
+    int PRIORITY_LOW = -10;
+    int PRIORITY_NORMAL = 0;
+    int PRIORITY_HIGH = 10;
+
     String getItemId();
 
     String getContentURL();
@@ -31,6 +35,20 @@ public interface DownloadItem {
 
     TrackSelector getTrackSelector();
 
+    int getPriority();
+
+    /**
+     * Items with a higher priority get free download slots first; items with the same priority
+     * share them. Default is {@link #PRIORITY_NORMAL}.
+     */
+    void setPriority(int priority);
+
+    /**
+     * Download the parts of the item that start between startMs and endMs (media time) before the
+     * rest, e.g. the first minutes, so playback can start early.
+     */
+    void prioritizeTimeRange(long startMs, long endMs);
+
     enum TrackType {
         VIDEO, AUDIO, TEXT,
         UNKNOWN
@@ -0,0 +1,109 @@
+package com.kaltura.dtg;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Opens and releases the HTTP connections used for downloading.
+ *
+ * HttpURLConnection keeps the underlying socket alive for the next request to the same host only if
+ * the response is fully read and its stream is closed -- calling disconnect() closes the socket and
+ * forces a new TCP (and TLS) handshake per request. Users of this class open connections with
+ * {@link #open(URL)} and give them back with {@link #release(HttpURLConnection)} after reading the
+ * response to the end, or with {@link #discard(HttpURLConnection)} when the response was abandoned.
+ *
+ * This class doesn't bound the number of connections: the platform keeps the idle sockets, up to
+ * the http.maxConnections system property per host, which is left to the app. The counters only
+ * report what this class sees -- connections opened, and responses given back for keep-alive -- and
+ * are never reset by the library.
+ */
+public class HttpConnectionFactory {
+    private static final String TAG = "HttpConnectionFactory";
+
+    private static final HttpConnectionFactory sDefault = new HttpConnectionFactory();
+
+    private Opener opener = new Opener() {
+        @Override
+        public HttpURLConnection open(URL url) throws IOException {
+            return (HttpURLConnection) url.openConnection();
+        }
+    };
+    private long openedCount;
+    private long releasedCount;
+
+    public interface Opener {
+        HttpURLConnection open(URL url) throws IOException;
+    }
+
+    public static HttpConnectionFactory getDefault() {
+        return sDefault;
+    }
+
+    /**
+     * Replace the way connections are created, e.g. to add headers or use a different HTTP stack.
+     */
+    public synchronized void setOpener(@NonNull Opener opener) {
+        this.opener = opener;
+    }
+
+    public HttpURLConnection open(@NonNull URL url) throws IOException {
+        Opener opener;
+        synchronized (this) {
+            opener = this.opener;
+            openedCount++;
+        }
+        return opener.open(url);
+    }
+
+    /**
+     * Give back a connection whose response was fully read, so its socket can serve the next request.
+     */
+    public void release(@NonNull HttpURLConnection connection) {
+        // The stream may have been closed already; closing it again is harmless.
+        try {
+            InputStream inputStream = connection.getInputStream();
+            inputStream.close();
+        } catch (IOException e) {
+            // The connection can't be reused.
+            connection.disconnect();
+            return;
+        }
+
+        if ("close".equalsIgnoreCase(connection.getHeaderField("Connection"))) {
+            return;
+        }
+
+        synchronized (this) {
+            releasedCount++;
+        }
+    }
+
+    /**
+     * Close a connection that was not fully read; its socket can't be reused.
+     */
+    public void discard(@NonNull HttpURLConnection connection) {
+        connection.disconnect();
+    }
+
+    public synchronized long getOpenedCount() {
+        return openedCount;
+    }
+
+    /**
+     * @return the number of responses that were read to the end and left open for keep-alive.
+     */
+    public synchronized long getReleasedCount() {
+        return releasedCount;
+    }
+
+    public synchronized void resetCounters() {
+        Log.d(TAG, "opened=" + openedCount + " released=" + releasedCount);
+        openedCount = 0;
+        releasedCount = 0;
+    }
+}
@@ -1,6 +1,5 @@
 package com.kaltura.dtg;
 
-import android.net.Uri;
 import android.support.annotation.NonNull;
 import android.text.TextUtils;
 import android.util.Base64;
@@ -51,6 +50,17 @@ public class Utils {
         return str;
     }
 
+    public static String createIndex(String tableName, String... colNames) {
+
+        String str = "CREATE INDEX " +
+                "index_" + tableName + "_" + TextUtils.join("_", colNames) +
+                " ON " + tableName +
+                " (" + TextUtils.join(",", colNames) + ");";
+
+        Log.i("DBUtils", "Create index:\n" + str);
+        return str;
+    }
+
     public static HashMap<String, Object> map(Object... keyValuePairs) {
         HashMap<String, Object> map = new HashMap<>();
 
@@ -150,8 +160,9 @@ public class Utils {
         InputStream inputStream = null;
         FileOutputStream fileOutputStream = null;
         HttpURLConnection conn = null;
+        boolean fullyRead = false;
         try {
-            conn = (HttpURLConnection) url.openConnection();
+            conn = HttpConnectionFactory.getDefault().open(url);
             conn.setRequestMethod("GET");
             conn.connect();
             inputStream = conn.getInputStream();
@@ -172,21 +183,52 @@ public class Utils {
                 }
             }
 
+            fullyRead = true;
             return byteArrayOutputStream.toByteArray();
         } finally {
             // close everything
             safeClose(fileOutputStream);
             safeClose(inputStream);
-            if (conn != null) {
-                conn.disconnect();
+            releaseConnection(conn, fullyRead);
+        }
+    }
+
+    // Read length bytes of the URL, from offset. Fails unless the server sends that range.
+    public static byte[] httpGetRange(URL url, long offset, int length) throws IOException {
+        InputStream inputStream = null;
+        HttpURLConnection conn = null;
+        boolean fullyRead = false;
+        try {
+            conn = HttpConnectionFactory.getDefault().open(url);
+            conn.setRequestMethod("GET");
+            conn.setRequestProperty("Range", "bytes=" + offset + "-" + (offset + length - 1));
+            conn.connect();
+            int responseCode = conn.getResponseCode();
+            if (responseCode != HttpURLConnection.HTTP_PARTIAL) {
+                throw new IOException("Response code from range request: " + responseCode);
+            }
+            inputStream = conn.getInputStream();
+            byte[] data = fullyReadInputStream(inputStream, length).toByteArray();
+            if (data.length != length) {
+                throw new IOException("Expected " + length + " bytes from " + url + ", got " + data.length);
             }
+            fullyRead = true;
+            return data;
+        } finally {
+            safeClose(inputStream);
+            releaseConnection(conn, fullyRead);
         }
     }
 
     public static long httpHeadGetLength(URL url) throws IOException {
+        return httpHead(url).length;
+    }
+
+    public static HeadInfo httpHead(URL url) throws IOException {
         HttpURLConnection connection = null;
+        boolean success = false;
         try {
-            connection = (HttpURLConnection) url.openConnection();
+            connection = HttpConnectionFactory.getDefault().open(url);
             connection.setRequestMethod("HEAD");
             connection.setRequestProperty("Accept-Encoding", "");
             connection.connect();
@@ -194,16 +236,29 @@ public class Utils {
             if (responseCode >= 400) {
                 throw new IOException("Response code from HEAD request: " + responseCode);
             }
+            // A HEAD response has no body, so the connection can always be reused.
+            success = true;
+            long length = -1;
             String contentLength = connection.getHeaderField("Content-Length");
             if (!TextUtils.isEmpty(contentLength)) {
-                return Long.parseLong(contentLength);
-            } else {
-                return -1;
+                length = Long.parseLong(contentLength);
             }
+            boolean acceptsRanges = "bytes".equalsIgnoreCase(connection.getHeaderField("Accept-Ranges"));
+            return new HeadInfo(length, acceptsRanges, connection.getHeaderField("ETag"));
         } finally {
-            if (connection != null) {
-                connection.disconnect();
-            }
+            releaseConnection(connection, success);
+        }
+    }
+
+    // Keep the connection alive if its response was fully consumed, otherwise close it.
+    public static void releaseConnection(HttpURLConnection connection, boolean fullyRead) {
+        if (connection == null) {
+            return;
+        }
+        if (fullyRead) {
+            HttpConnectionFactory.getDefault().release(connection);
+        } else {
+            HttpConnectionFactory.getDefault().discard(connection);
         }
     }
 
@@ -237,10 +292,21 @@ public class Utils {
 
     @NonNull
     private static String getFileExtension(String pathOrURL) {
-        // if it's a URL, get only the path. Uri does this correctly, even if the argument is a simple path.
-        String path = Uri.parse(pathOrURL).getPath();
-
-        return path.substring(path.lastIndexOf('.'));
+        // Only the path counts: drop the fragment and query, then take the extension of the last
+        // path segment. Called for every segment of a playlist, so this doesn't go through Uri.
+        int end = pathOrURL.indexOf('#');
+        if (end < 0) {
+            end = pathOrURL.length();
+        }
+        int query = pathOrURL.indexOf('?');
+        if (query >= 0 && query < end) {
+            end = query;
+        }
+        int dot = pathOrURL.lastIndexOf('.', end - 1);
+        if (dot < 0 || dot < pathOrURL.lastIndexOf('/', end - 1)) {
+            return "";
+        }
+        return pathOrURL.substring(dot, end);
     }
 
     public static String toBase64(byte[] data) {
@@ -249,4 +315,16 @@ public class Utils {
         }
         return Base64.encodeToString(data, Base64.NO_WRAP);
     }
+
+    public static class HeadInfo {
+        public final long length;   // -1 if unknown
+        public final boolean acceptsRanges;
+        public final String etag;
+
+        HeadInfo(long length, boolean acceptsRanges, String etag) {
+            this.length = length;
+            this.acceptsRanges = acceptsRanges;
+            this.etag = etag;
+        }
+    }
 }
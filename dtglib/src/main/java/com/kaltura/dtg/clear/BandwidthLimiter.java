@@ -0,0 +1,115 @@
+package com.kaltura.dtg.clear;
+
+import android.support.annotation.NonNull;
+
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Token-bucket rate limiter for the download threads, with a global limit and optional per-item
+ * limits. A limit of 0 means unlimited.
+ *
+ * Tasks call {@link #acquire(String, int)} after every buffer read. The bytes are taken from the
+ * buckets right away, which may leave them in debt; the caller then sleeps until the debt is paid.
+ * Since every read adds to the same debt, concurrent tasks are slowed down equally. The cost per
+ * read is one short synchronized block per bucket.
+ */
+class BandwidthLimiter {
+    // Max burst, as a fraction of a second of the rate.
+    private static final double BURST_SECONDS = 0.25;
+
+    private final Bucket globalBucket = new Bucket();
+    private final Map<String, Bucket> itemBuckets = new HashMap<>();
+
+    void setGlobalLimit(long bytesPerSecond) {
+        globalBucket.setRate(bytesPerSecond);
+    }
+
+    long getGlobalLimit() {
+        return globalBucket.getRate();
+    }
+
+    synchronized void setItemLimit(@NonNull String itemId, long bytesPerSecond) {
+        if (bytesPerSecond > 0) {
+            Bucket bucket = itemBuckets.get(itemId);
+            if (bucket == null) {
+                bucket = new Bucket();
+                itemBuckets.put(itemId, bucket);
+            }
+            bucket.setRate(bytesPerSecond);
+        } else {
+            itemBuckets.remove(itemId);
+        }
+    }
+
+    synchronized long getItemLimit(@NonNull String itemId) {
+        Bucket bucket = itemBuckets.get(itemId);
+        return bucket == null ? 0 : bucket.getRate();
+    }
+
+    synchronized void removeItem(@NonNull String itemId) {
+        itemBuckets.remove(itemId);
+    }
+
+    /**
+     * Account for bytes that were just read, and sleep as long as needed to keep the limits.
+     * @throws InterruptedIOException if the thread was interrupted (the task was cancelled).
+     */
+    void acquire(@NonNull String itemId, int bytes) throws InterruptedIOException {
+        Bucket itemBucket;
+        synchronized (this) {
+            itemBucket = itemBuckets.isEmpty() ? null : itemBuckets.get(itemId);
+        }
+
+        long waitNanos = globalBucket.take(bytes);
+        if (itemBucket != null) {
+            waitNanos = Math.max(waitNanos, itemBucket.take(bytes));
+        }
+
+        if (waitNanos > 0) {
+            try {
+                Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while throttled");
+            }
+        }
+    }
+
+    private static class Bucket {
+        private long rate;
+        private double tokens;
+        private long lastRefillNanos = System.nanoTime();
+
+        synchronized void setRate(long bytesPerSecond) {
+            refill(System.nanoTime());
+            rate = Math.max(0, bytesPerSecond);
+            tokens = Math.min(tokens, capacity());
+        }
+
+        synchronized long getRate() {
+            return rate;
+        }
+
+        // Take the bytes and return how long to wait until the bucket is out of debt.
+        synchronized long take(int bytes) {
+            if (rate <= 0) {
+                return 0;
+            }
+            refill(System.nanoTime());
+            tokens -= bytes;
+            return tokens >= 0 ? 0 : (long) (-tokens * 1e9 / rate);
+        }
+
+        private void refill(long now) {
+            if (rate > 0) {
+                tokens = Math.min(capacity(), tokens + (now - lastRefillNanos) * rate / 1e9);
+            }
+            lastRefillNanos = now;
+        }
+
+        private double capacity() {
+            return rate * BURST_SECONDS;
+        }
+    }
+}
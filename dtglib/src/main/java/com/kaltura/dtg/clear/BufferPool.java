@@ -0,0 +1,47 @@
+package com.kaltura.dtg.clear;
+
+import android.support.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Bounded pool of download buffers, shared by the download threads.
+ *
+ * There's at most one buffer per running task, so with maxPooled set to the max number of threads
+ * the steady-state download loop doesn't allocate. Buffers beyond the bound are left to the GC.
+ *
+ * The buffers are heap buffers: they are filled from an InputStream, which can only read into a
+ * byte array, and Android's FileChannel writes a heap buffer without copying it.
+ */
+class BufferPool {
+    private final int bufferSize;
+    private final int maxPooled;
+    private final ArrayDeque<ByteBuffer> buffers = new ArrayDeque<>();
+
+    BufferPool(int bufferSize, int maxPooled) {
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+    }
+
+    @NonNull
+    synchronized ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.pollFirst();
+        return buffer != null ? buffer : ByteBuffer.allocate(bufferSize);
+    }
+
+    synchronized void release(@NonNull ByteBuffer buffer) {
+        if (buffer.capacity() == bufferSize && buffers.size() < maxPooled) {
+            buffer.clear();
+            buffers.addFirst(buffer);
+        }
+    }
+
+    int getBufferSize() {
+        return bufferSize;
+    }
+
+    synchronized int getPooledCount() {
+        return buffers.size();
+    }
+}
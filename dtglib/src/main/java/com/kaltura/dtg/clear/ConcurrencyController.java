@@ -0,0 +1,105 @@
+package com.kaltura.dtg.clear;
+
+import android.util.Log;
+
+/**
+ * Chooses the number of concurrent downloads from the measured throughput and error rate (AIMD).
+ *
+ * Downloaded bytes and errors (timeouts, retries, failed tasks) are accumulated between calls to
+ * {@link #evaluate(long, boolean)}, which is called periodically:
+ * <ul>
+ *     <li>Any error halves the concurrency (multiplicative decrease).</li>
+ *     <li>If the last increase didn't raise the throughput by at least {@link #MIN_GAIN}, it is
+ *     undone and the concurrency is held for a few intervals.</li>
+ *     <li>Otherwise, if all slots are busy, the concurrency grows by one (additive increase).</li>
+ * </ul>
+ * The result is always between the floor and the ceiling.
+ */
+class ConcurrencyController {
+    private static final String TAG = "ConcurrencyController";
+
+    static final double MIN_GAIN = 0.05;
+    static final int HOLD_INTERVALS = 5;
+
+    private final int floor;
+    private final int ceiling;
+    private int concurrency;
+
+    private long bytes;
+    private int errors;
+    private boolean increased;
+    private double throughputBeforeIncrease;
+    private int holdIntervals;
+    private double lastThroughput;
+
+    ConcurrencyController(int floor, int ceiling, int initial) {
+        this.floor = Math.max(1, floor);
+        this.ceiling = Math.max(this.floor, ceiling);
+        this.concurrency = clamp(initial);
+    }
+
+    synchronized void onBytes(long newBytes) {
+        if (newBytes > 0) {
+            bytes += newBytes;
+        }
+    }
+
+    synchronized void onError() {
+        errors++;
+    }
+
+    /**
+     * @param intervalMillis time since the previous call.
+     * @param saturated      whether all download slots were busy, with more tasks waiting.
+     * @return the new concurrency.
+     */
+    synchronized int evaluate(long intervalMillis, boolean saturated) {
+        double throughput = intervalMillis > 0 ? bytes * 1000.0 / intervalMillis : 0;
+        int previous = concurrency;
+
+        if (errors > 0) {
+            concurrency = clamp(concurrency / 2);
+            increased = false;
+
+        } else if (increased && throughput < throughputBeforeIncrease * (1 + MIN_GAIN)) {
+            // More connections didn't help -- the link (or the server) is the bottleneck.
+            concurrency = clamp(concurrency - 1);
+            increased = false;
+            holdIntervals = HOLD_INTERVALS;
+
+        } else if (holdIntervals > 0) {
+            holdIntervals--;
+            increased = false;
+
+        } else if (saturated && concurrency < ceiling) {
+            throughputBeforeIncrease = throughput;
+            concurrency++;
+            increased = true;
+
+        } else {
+            increased = false;
+        }
+
+        if (concurrency != previous) {
+            Log.i(TAG, "concurrency: " + previous + " -> " + concurrency + "; throughput=" + (long) throughput + " B/s; errors=" + errors);
+        }
+
+        lastThroughput = throughput;
+        bytes = 0;
+        errors = 0;
+        return concurrency;
+    }
+
+    synchronized int getConcurrency() {
+        return concurrency;
+    }
+
+    // Bytes per second in the last evaluated interval.
+    synchronized double getThroughput() {
+        return lastThroughput;
+    }
+
+    private int clamp(int value) {
+        return Math.max(floor, Math.min(ceiling, value));
+    }
+}
@@ -14,6 +14,7 @@ import com.kaltura.dtg.DownloadStateReason;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 import java.util.UUID;
@@ -242,6 +243,15 @@ public class ContentManagerImp extends ContentManager {
         return provider.createItem(itemId, downloadRequestParams.url.toString());
     }
 
+    @Override
+    public void loadMetadata(Collection<DownloadItem> items, OnMetadataLoadedListener listener) throws IllegalStateException {
+        checkIfManagerStarted();
+        if (provider == null) {
+            throw new IllegalStateException("Provider Operation Not Valid");
+        }
+        provider.loadItemsMetadata(items, listener);
+    }
+
     @Override
     public void removeItem(String itemId) throws IllegalStateException {
         checkIfManagerStarted();
@@ -257,6 +267,42 @@ public class ContentManagerImp extends ContentManager {
         provider.removeItem(item);
     }
 
+    @Override
+    public void setItemPriority(String itemId, int priority) throws IllegalStateException {
+        DownloadItem item = findItem(itemId);
+        if (item == null) {
+            throw new IllegalStateException("DownloadItem Is Null");
+        }
+        provider.setItemPriority(item, priority);
+    }
+
+    @Override
+    public int getDownloadConcurrency() throws IllegalStateException {
+        checkIfManagerStarted();
+        if (provider == null) {
+            throw new IllegalStateException("Provider Operation Not Valid");
+        }
+        return provider.getDownloadConcurrency();
+    }
+
+    @Override
+    public void setMaxBytesPerSecond(long bytesPerSecond) throws IllegalStateException {
+        checkIfManagerStarted();
+        if (provider == null) {
+            throw new IllegalStateException("Provider Operation Not Valid");
+        }
+        provider.setMaxBytesPerSecond(bytesPerSecond);
+    }
+
+    @Override
+    public void setItemMaxBytesPerSecond(String itemId, long bytesPerSecond) throws IllegalStateException {
+        checkIfManagerStarted();
+        if (!isProviderOperationValid(itemId)) {
+            throw new IllegalStateException("Provider Operation Not Valid");
+        }
+        provider.setItemMaxBytesPerSecond(itemId, bytesPerSecond);
+    }
+
     private File getItemDir(String itemId) {
         // TODO: safe itemId?
         File itemDir = new File(itemsDir, itemId);
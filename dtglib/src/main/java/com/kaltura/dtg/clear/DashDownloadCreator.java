@@ -2,9 +2,6 @@ package com.kaltura.dtg.clear;
 
 import android.util.Log;
 
-import com.kaltura.android.exoplayer.chunk.Format;
-import com.kaltura.android.exoplayer.dash.mpd.AdaptationSet;
-import com.kaltura.android.exoplayer.dash.mpd.Representation;
 import com.kaltura.dtg.DownloadItem;
 import com.kaltura.dtg.Utils;
 
@@ -12,10 +9,8 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
-import java.util.ListIterator;
 
 /**
  * Created by noamt on 13/09/2016.
@@ -32,7 +27,7 @@ class DashDownloadCreator extends DashDownloader {
         parseOriginManifest();
         createTracks();
 
-        selectDefaultTracks();
+        selectDefaultTracks(TrackSelectionPolicy.UNLIMITED);
     }
 
     @Override
@@ -41,44 +36,18 @@ class DashDownloadCreator extends DashDownloader {
         return null;
     }
 
-    private void selectDefaultTracks() {
-
-        selectedTracks = new HashMap<>();
-        for (DownloadItem.TrackType type : DownloadItem.TrackType.values()) {
-            selectedTracks.put(type, new ArrayList<DashTrack>(1));
-        }
-
-
-        // "Best" == highest bitrate.
-        
-        // Video: simply select best track.
-        List<DashTrack> availableVideoTracks = getAvailableTracks(DownloadItem.TrackType.VIDEO);
-        if (availableVideoTracks.size() > 0) {
-            DashTrack selectedVideoTrack = Collections.max(availableVideoTracks, DownloadItem.Track.bitrateComparator);
-            setSelectedTracks(DownloadItem.TrackType.VIDEO, Collections.singletonList(selectedVideoTrack));
-        }
-
-        // Audio: X=(language of first track); Select best track with language==X.
-        List<DashTrack> availableAudioTracks = getAvailableTracks(DownloadItem.TrackType.AUDIO);
-        if (availableAudioTracks.size() > 0) {
-            String firstAudioLang = availableAudioTracks.get(0).getLanguage();
-            List<DashTrack> tracks;
-            if (firstAudioLang != null) {
-                tracks = DashTrack.filterByLanguage(firstAudioLang, availableAudioTracks);
-            } else {
-                tracks = availableAudioTracks;
+    /**
+     * Select the best tracks whose estimated size fits budgetBytes; see {@link TrackSelectionPolicy}.
+     * The constructor selects with no budget, i.e. the highest bitrates.
+     */
+    void selectDefaultTracks(long budgetBytes) {
+        TrackSelectionPolicy policy = new TrackSelectionPolicy(budgetBytes);
+        selectedTracks = policy.select(availableTracks, new TrackSelectionPolicy.SizeEstimator<DashTrack>() {
+            @Override
+            public long estimateSize(DashTrack track) {
+                return estimateTrackSize(track);
             }
-            
-            DashTrack selectedAudioTrack = Collections.max(tracks, DownloadItem.Track.bitrateComparator);
-            setSelectedTracks(DownloadItem.TrackType.AUDIO, Collections.singletonList(selectedAudioTrack));
-        }
-
-        // Text: simply select first track.
-        List<DashTrack> availableTextTracks = getAvailableTracks(DownloadItem.TrackType.TEXT);
-        if (availableTextTracks.size() > 0) {
-            DashTrack selectedTextTrack = availableTextTracks.get(0);
-            setSelectedTracks(DownloadItem.TrackType.TEXT, Collections.singletonList(selectedTextTrack));
-        }
+        });
     }
 
     void apply() throws IOException {
@@ -87,6 +56,7 @@ class DashDownloadCreator extends DashDownloader {
         } else {
             createLocalManifest();
             createDownloadTasks();
+            snapshot.save(new File(targetDir, DashManifestSnapshot.FILE_NAME));
             applied = true;
         }
     }
@@ -97,47 +67,16 @@ class DashDownloadCreator extends DashDownloader {
         originManifestBytes = Utils.downloadToFile(url, targetFile, MAX_DASH_MANIFEST_SIZE);
     }
 
+    // The tracks of the reference period; see DashDownloader.
     private void createTracks() {
 
-        List<AdaptationSet> adaptationSets = currentPeriod.adaptationSets;
-
         availableTracks = new HashMap<>();
         for (DownloadItem.TrackType type : DownloadItem.TrackType.values()) {
             availableTracks.put(type, new ArrayList<DashTrack>(1));
         }
-        
-        ListIterator<AdaptationSet> itAdaptations = adaptationSets.listIterator();
-        while (itAdaptations.hasNext()) {
-            int adaptationIndex = itAdaptations.nextIndex();
-            AdaptationSet adaptationSet = itAdaptations.next();
 
-            ListIterator<Representation> itRepresentations = adaptationSet.representations.listIterator();
-            while (itRepresentations.hasNext()) {
-                int representationIndex = itRepresentations.nextIndex();
-                Representation representation = itRepresentations.next();
-                DownloadItem.TrackType type;
-                switch (adaptationSet.type) {
-                    case AdaptationSet.TYPE_VIDEO:
-                        type = DownloadItem.TrackType.VIDEO;
-                        break;
-                    case AdaptationSet.TYPE_AUDIO:
-                        type = DownloadItem.TrackType.AUDIO;
-                        break;
-                    case AdaptationSet.TYPE_TEXT:
-                        type = DownloadItem.TrackType.TEXT;
-                        break;
-                    default:
-                        type = DownloadItem.TrackType.UNKNOWN;
-                        break;
-                }
-                if (type != DownloadItem.TrackType.UNKNOWN) {
-                    Format format = representation.format;
-                    DashTrack track = new DashTrack(type, format.language, format.bitrate, adaptationIndex, representationIndex);
-                    track.setHeight(format.height);
-                    track.setWidth(format.width);
-                    availableTracks.get(type).add(track);
-                }
-            }
+        for (DashTrack track : snapshot.getTracks()) {
+            availableTracks.get(track.getType()).add(track);
         }
     }
 }
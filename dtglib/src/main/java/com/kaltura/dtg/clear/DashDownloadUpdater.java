@@ -1,6 +1,7 @@
 package com.kaltura.dtg.clear;
 
 import android.support.annotation.NonNull;
+import android.util.Log;
 
 import com.kaltura.dtg.DownloadItem;
 import com.kaltura.dtg.Utils;
@@ -10,15 +11,25 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Created by noamt on 13/09/2016.
+ *
+ * Loads the tracks and segments from the item's manifest snapshot, and the selection with a single
+ * query; the origin MPD is only read to localize it when the selection changes. Items saved before
+ * snapshots existed are parsed once, and their snapshot is saved then.
+ *
+ * Applying a new selection only touches the difference: the tasks of the added tracks are added,
+ * and the files of the removed tracks are deleted.
  */
 class DashDownloadUpdater extends DashDownloader {
 
-    private static final String TAG = "DashDownloadCreator";
+    private static final String TAG = "DashDownloadUpdater";
 
     private DefaultDownloadItem item;
 
@@ -29,21 +40,55 @@ class DashDownloadUpdater extends DashDownloader {
     DashDownloadUpdater(DefaultDownloadItem item) throws IOException {
         super(item.getContentURL(), new File(item.getDataDir()));
         this.item = item;
+        setIndexExecutor(item.getService().getMetadataRequestExecutor());
 
-        loadOriginManifest();
-        parseOriginManifest();
+        loadSnapshot();
 
         selectedTracks = new HashMap<>();
         availableTracks = new HashMap<>();
         originalSelectedTracks = new HashMap<>();
         
         for (DownloadItem.TrackType type : DownloadItem.TrackType.values()) {
-            List<DashTrack> availableTracks = this.item.getService().readTracksFromDB(item.getItemId(), type, null);
-            this.availableTracks.put(type, availableTracks);
+            availableTracks.put(type, new ArrayList<DashTrack>());
+            selectedTracks.put(type, new ArrayList<DashTrack>());
+        }
+
+        for (DashTrack track : snapshot.getTracks()) {
+            availableTracks.get(track.getType()).add(track);
+        }
+
+        // The snapshot's track is used, so the selection compares equal to the available tracks.
+        for (DashTrack dbTrack : item.getService().readTracksFromDB(item.getItemId(), null, TrackState.SELECTED)) {
+            DashTrack track = snapshot.findTrack(dbTrack);
+            if (track == null) {
+                Log.w(TAG, "Selected track not in manifest snapshot: " + dbTrack);
+                track = dbTrack;
+            }
+            selectedTracks.get(track.getType()).add(track);
+        }
+
+        for (DownloadItem.TrackType type : DownloadItem.TrackType.values()) {
+            originalSelectedTracks.put(type, new ArrayList<>(selectedTracks.get(type)));
+        }
+    }
 
-            List<DashTrack> selectedTracks = this.item.getService().readTracksFromDB(item.getItemId(), type, TrackState.SELECTED);
-            this.selectedTracks.put(type, selectedTracks);
-            originalSelectedTracks.put(type, selectedTracks);
+    private void loadSnapshot() throws IOException {
+        File snapshotFile = new File(item.getDataDir(), DashManifestSnapshot.FILE_NAME);
+        if (snapshotFile.exists()) {
+            try {
+                setSnapshot(DashManifestSnapshot.load(snapshotFile));
+                return;
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to load manifest snapshot, parsing the manifest", e);
+            }
+        }
+
+        loadOriginManifest();
+        parseOriginManifest();
+        try {
+            snapshot.save(snapshotFile);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to save manifest snapshot", e);
         }
     }
 
@@ -64,36 +109,132 @@ class DashDownloadUpdater extends DashDownloader {
             return;
         }
 
-        Map<DownloadItem.TrackType, List<DashTrack>> tracksToUnselect = new HashMap<>();
-        for (DownloadItem.TrackType trackType : DownloadItem.TrackType.values()) {
-            List<DashTrack> unselect = new ArrayList<>();
-            for (DashTrack dashTrack : originalSelectedTracks.get(trackType)) {
-                if (! selectedTracks.get(trackType).contains(dashTrack)) {
-                    unselect.add(dashTrack);
-                }
+        Map<DownloadItem.TrackType, List<DashTrack>> tracksToUnselect = subtract(originalSelectedTracks, selectedTracks);
+        Map<DownloadItem.TrackType, List<DashTrack>> tracksToSelect = subtract(selectedTracks, originalSelectedTracks);
+        List<DashTrack> removedTracks = flattenTrackList(tracksToUnselect);
+        List<DashTrack> addedTracks = flattenTrackList(tracksToSelect);
+        if (removedTracks.isEmpty() && addedTracks.isEmpty()) {
+            item.setTrackSelector(null);
+            return;
+        }
+
+        DefaultDownloadService service = item.getService();
+        service.updateTracksInDB(item.getItemId(), tracksToUnselect, TrackState.NOT_SELECTED);
+        service.updateTracksInDB(item.getItemId(), tracksToSelect, TrackState.SELECTED);
+
+        // The tracks that stay selected keep the period tracks they own, e.g. a pre-roll shared
+        // with an added language; the added tracks only own what no one else does.
+        List<DashTrack> ownerOrder = new ArrayList<>();
+        for (DashTrack track : getSelectedTracks()) {
+            if (!addedTracks.contains(track)) {
+                ownerOrder.add(track);
             }
-            
-            tracksToUnselect.put(trackType, unselect);
         }
-        
-        item.getService().updateTracksInDB(item.getItemId(), tracksToUnselect, TrackState.NOT_SELECTED);
-        item.getService().updateTracksInDB(item.getItemId(), selectedTracks, TrackState.SELECTED);
+        ownerOrder.addAll(addedTracks);
+        Map<String, String> periodTrackOwners = getPeriodTrackOwners(ownerOrder);
 
-        // Add DownloadTasks
-        createDownloadTasks();
-        item.getService().addDownloadTasksToDB(item, new ArrayList<>(downloadTasks));
+        long estimatedSize = item.getEstimatedSizeBytes();
+        if (!removedTracks.isEmpty()) {
+            estimatedSize -= removeTrackFiles(removedTracks, periodTrackOwners);
+        }
+
+        // Add DownloadTasks of the period tracks the new tracks own.
+        if (!addedTracks.isEmpty()) {
+            createDownloadTasks(addedTracks, periodTrackOwners);
+            service.addDownloadTasksToDB(item, new ArrayList<>(downloadTasks));
+            estimatedSize += getEstimatedDownloadSize();
+        }
         
         // Update item size
-        item.setEstimatedSizeBytes(getEstimatedDownloadSize());
-        item.getService().updateItemInfoInDB(item, Database.COL_ITEM_ESTIMATED_SIZE);
+        item.setEstimatedSizeBytes(Math.max(estimatedSize, item.getDownloadedSizeBytes()));
+        service.updateItemInfoInDB(item, Database.COL_ITEM_ESTIMATED_SIZE, Database.COL_ITEM_DOWNLOADED_SIZE);
         
 
         // Update localized manifest
+        if (originManifestBytes == null) {
+            loadOriginManifest();
+        }
         createLocalManifest();
         
         item.setTrackSelector(null);
     }
 
+    // The tracks of tracks that are not in other, by type.
+    private static Map<DownloadItem.TrackType, List<DashTrack>> subtract(Map<DownloadItem.TrackType, List<DashTrack>> tracks,
+                                                                        Map<DownloadItem.TrackType, List<DashTrack>> other) {
+        Map<DownloadItem.TrackType, List<DashTrack>> result = new HashMap<>();
+        for (DownloadItem.TrackType type : DownloadItem.TrackType.values()) {
+            List<DashTrack> list = new ArrayList<>();
+            for (DashTrack track : tracks.get(type)) {
+                if (!other.get(type).contains(track)) {
+                    list.add(track);
+                }
+            }
+            result.put(type, list);
+        }
+        return result;
+    }
+
+    /**
+     * Delete the files of the removed tracks, in the db and on disk. The files of a period track
+     * that a selected track still uses are kept, and move to that track. The item's downloaded size
+     * drops by the deleted files' length; a ranged file that was preallocated counts in full.
+     *
+     * @param periodTrackOwners see {@link #getPeriodTrackOwners(List)}, of the new selection.
+     * @return the size the deleted period tracks were counted with when they were added: exact for
+     * indexed tracks, nominal for the others.
+     */
+    private long removeTrackFiles(List<DashTrack> removedTracks, Map<String, String> periodTrackOwners) {
+        long removedSize = 0;
+        Set<File> removedFiles = new LinkedHashSet<>();
+        Map<String, String> movedFiles = new HashMap<>();
+        List<String> indexedFiles = new ArrayList<>();
+        Set<String> removedPeriodTracks = new HashSet<>();
+        for (DashTrack track : removedTracks) {
+            for (DashManifestSnapshot.PeriodTrack periodTrack : snapshot.getPeriodTracks(track)) {
+                if (!removedPeriodTracks.add(periodTrack.track.getRelativeId())) {
+                    continue;
+                }
+                String owner = periodTrackOwners.get(periodTrack.track.getRelativeId());
+                if (owner == null && periodTrack.isIndexed()) {
+                    indexedFiles.add(new File(targetDir, periodTrack.segments.get(0).fileName).getAbsolutePath());
+                } else if (owner == null) {
+                    removedSize += periodTrack.getNominalSize();
+                }
+                for (DashManifestSnapshot.Segment segment : periodTrack.segments) {
+                    File file = new File(targetDir, segment.fileName);
+                    if (owner == null) {
+                        removedFiles.add(file);
+                    } else {
+                        movedFiles.put(file.getAbsolutePath(), owner);
+                    }
+                }
+            }
+        }
+
+        List<String> removedPaths = new ArrayList<>(removedFiles.size());
+        for (File file : removedFiles) {
+            removedPaths.add(file.getAbsolutePath());
+        }
+        // Indexed tracks were counted by their sidx ranges, which only the db has.
+        if (!indexedFiles.isEmpty()) {
+            removedSize += item.getService().sumRangeBytesInDB(item, indexedFiles);
+        }
+        item.getService().removeTrackFilesFromDB(item, removedPaths, movedFiles);
+
+        long freedBytes = 0;
+        for (File file : removedFiles) {
+            long length = file.length();
+            if (file.delete()) {
+                freedBytes += length;
+            }
+        }
+        item.incDownloadBytes(-Math.min(freedBytes, item.getDownloadedSizeBytes()));
+        Log.d(TAG, "Removed " + removedFiles.size() + " files of " + removedTracks.size() + " tracks, " + freedBytes + " bytes");
+
+        return removedSize;
+    }
+
     private void loadOriginManifest() throws IOException {
         FileInputStream inputStream = new FileInputStream(new File(item.getDataDir(), ORIGIN_MANIFEST_MPD));
         originManifestBytes = Utils.fullyReadInputStream(inputStream, MAX_DASH_MANIFEST_SIZE).toByteArray();
@@ -102,10 +243,12 @@ class DashDownloadUpdater extends DashDownloader {
     List<DashTrack> getDownloadedTracks(@NonNull DownloadItem.TrackType type) {
 
         List<DashTrack> downloadedTracks = new ArrayList<>();
+        Map<String, Integer> pendingFiles = item.getService().countPendingFilesByTrack(item.getItemId());
         
         for (DashTrack dashTrack : selectedTracks.get(type)) {
             
-            if (item.getService().countPendingFiles(item.getItemId(), dashTrack.getRelativeId()) == 0) {
+            Integer pendingCount = pendingFiles.get(dashTrack.getRelativeId());
+            if (pendingCount == null || pendingCount == 0) {
                 downloadedTracks.add(dashTrack);
             }
         }
@@ -1,32 +1,50 @@
 package com.kaltura.dtg.clear;
 
 import android.support.annotation.NonNull;
-import android.util.Base64;
 import android.util.Log;
 
-import com.kaltura.android.exoplayer.dash.mpd.AdaptationSet;
 import com.kaltura.android.exoplayer.dash.mpd.MediaPresentationDescription;
 import com.kaltura.android.exoplayer.dash.mpd.MediaPresentationDescriptionParser;
-import com.kaltura.android.exoplayer.dash.mpd.Period;
-import com.kaltura.android.exoplayer.dash.mpd.RangedUri;
-import com.kaltura.android.exoplayer.dash.mpd.Representation;
+import com.kaltura.android.exoplayer.extractor.ChunkIndex;
+import com.kaltura.android.exoplayer.extractor.mp4.FragmentedMp4Extractor;
+import com.kaltura.android.exoplayer.util.ParsableByteArray;
+import com.kaltura.android.exoplayer.util.Util;
 import com.kaltura.dtg.AppBuildConfig;
 import com.kaltura.dtg.DownloadItem;
+import com.kaltura.dtg.Utils;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.MalformedURLException;
+import java.io.InterruptedIOException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Created by noamt on 19/06/2016.
+ *
+ * The app selects from the tracks of one period, the longest (so it's the content, not a pre-roll).
+ * Each selected track is downloaded in every period, as the closest matching representation of that
+ * period; the segments of all periods are downloaded together, in presentation order.
+ *
+ * A single-segment (SegmentBase) representation is downloaded in place, to one local file with the
+ * remote offsets, so the local manifest keeps its initialization and index ranges. If it has an mp4
+ * index, the media is fetched as byte ranges of whole chunks, listed by the sidx. The indexes of
+ * all such representations are fetched concurrently on the index executor, if one is set.
+ *
+ * The tracks and segments come from a {@link DashManifestSnapshot} of the parsed MPD, which is
+ * saved with the item, so later track changes don't parse the MPD again.
  */
 abstract class DashDownloader {
 
@@ -34,6 +52,10 @@ abstract class DashDownloader {
     static final String ORIGIN_MANIFEST_MPD = "origin.mpd";
     static final String LOCAL_MANIFEST_MPD = "local.mpd";
     static final int MAX_DASH_MANIFEST_SIZE = 10 * 1024 * 1024;
+    // Consecutive chunks of an indexed segment are fetched in a single request, up to this size.
+    static final long MAX_INDEXED_RANGE_BYTES = 4 * 1024 * 1024;
+    private static final int MAX_SEGMENT_INDEX_SIZE = 1024 * 1024;
+    private static final int TYPE_sidx = Util.getIntegerCodeForString("sidx");
 
     enum TrackState {
         NOT_SELECTED, SELECTED, DOWNLOADED,
@@ -42,10 +64,13 @@ abstract class DashDownloader {
     
     String manifestUrl;
 
+    // Fetches the segment indexes; if null, they're fetched one after another.
+    private ExecutorService indexExecutor;
+
     File targetDir;
     
     byte[] originManifestBytes;
-    Period currentPeriod;
+    DashManifestSnapshot snapshot;
 
     private long itemDurationMS;
     private long estimatedDownloadSize;
@@ -56,28 +81,107 @@ abstract class DashDownloader {
 
     void parseOriginManifest() throws IOException {
         MediaPresentationDescriptionParser mpdParser = new MediaPresentationDescriptionParser();
-        MediaPresentationDescription parsedMpd = mpdParser.parse(manifestUrl, new ByteArrayInputStream(originManifestBytes));
+        MediaPresentationDescription mpd = mpdParser.parse(manifestUrl, new ByteArrayInputStream(originManifestBytes));
+        setSnapshot(DashManifestSnapshot.create(mpd));
+    }
 
-        if (parsedMpd.getPeriodCount() < 1) {
-            throw new IOException("At least one period is required");
+    void setSnapshot(@NonNull DashManifestSnapshot snapshot) {
+        this.snapshot = snapshot;
+        setItemDurationMS(snapshot.getItemDurationMs());
+    }
+
+    // Local files of the first period have no prefix, like before multi-period support.
+    static String getPeriodFilePrefix(int periodIndex) {
+        return periodIndex == 0 ? "" : "p" + periodIndex + "-";
+    }
+
+    // The local file of a single-segment representation, named by the subtype: "en.vtt", "v1.mp4".
+    static String getSingleSegmentFileName(int periodIndex, String representationId, String mimeType) {
+        String extension = mimeType == null ? "mp4" : mimeType.substring(mimeType.indexOf('/') + 1);
+        return getPeriodFilePrefix(periodIndex) + representationId + "." + extension;
+    }
+
+    /**
+     * The track and its counterparts in the other periods, in period order.
+     */
+    @NonNull
+    List<DashTrack> getPeriodTracks(@NonNull DashTrack track) {
+        List<DashTrack> tracks = new ArrayList<>();
+        for (DashManifestSnapshot.PeriodTrack periodTrack : snapshot.getPeriodTracks(track)) {
+            tracks.add(periodTrack.track);
         }
+        return tracks;
+    }
 
-        int periodIndex = 0;
-        currentPeriod = parsedMpd.getPeriod(periodIndex);
-        setItemDurationMS(parsedMpd.getPeriodDuration(periodIndex));
-        
+    // The selected tracks in all periods.
+    @NonNull
+    List<DashTrack> getSelectedPeriodTracks() {
+        List<DashTrack> tracks = new ArrayList<>();
+        for (DashTrack track : getSelectedTracks()) {
+            tracks.addAll(getPeriodTracks(track));
+        }
+        return tracks;
     }
 
-    void createDownloadTasks() throws MalformedURLException {
+    void createDownloadTasks() throws IOException {
+        List<DashTrack> tracks = getSelectedTracks();
+        createDownloadTasks(tracks, getPeriodTrackOwners(tracks));
+    }
+
+    /**
+     * The track that downloads each period track: the first of tracks that uses it. A period track
+     * can be shared, e.g. a pre-roll with one language serves every selected language.
+     *
+     * @return relative id of a period track -> relative id of its owner.
+     */
+    @NonNull
+    Map<String, String> getPeriodTrackOwners(@NonNull List<DashTrack> tracks) {
+        Map<String, String> owners = new HashMap<>();
+        for (DashTrack track : tracks) {
+            for (DashManifestSnapshot.PeriodTrack periodTrack : snapshot.getPeriodTracks(track)) {
+                String periodTrackId = periodTrack.track.getRelativeId();
+                if (!owners.containsKey(periodTrackId)) {
+                    owners.put(periodTrackId, track.getRelativeId());
+                }
+            }
+        }
+        return owners;
+    }
+
+    void setIndexExecutor(ExecutorService indexExecutor) {
+        this.indexExecutor = indexExecutor;
+    }
+
+    /**
+     * Replace the download tasks with the tasks of the period tracks that the tracks own, and set
+     * the estimated download size to their size.
+     */
+    void createDownloadTasks(@NonNull List<DashTrack> trackList, @NonNull Map<String, String> periodTrackOwners) throws IOException {
         
         downloadTasks = new LinkedHashSet<>();
-        
-        List<DashTrack> trackList = getSelectedTracks();
+        setEstimatedDownloadSize(0);
+
+        // The tasks of all periods count as the selected track's, see getDownloadedTracks().
+        List<DashManifestSnapshot.PeriodTrack> periodTracks = new ArrayList<>();
+        List<String> trackIds = new ArrayList<>();
+        List<DashManifestSnapshot.Segment> indexedSegments = new ArrayList<>();
         for (DashTrack track : trackList) {
-            AdaptationSet adaptationSet = currentPeriod.adaptationSets.get(track.getAdaptationIndex());
-            Representation representation = adaptationSet.representations.get(track.getRepresentationIndex());
-            
-            createDownloadTasks(representation, track);
+            for (DashManifestSnapshot.PeriodTrack periodTrack : snapshot.getPeriodTracks(track)) {
+                if (track.getRelativeId().equals(periodTrackOwners.get(periodTrack.track.getRelativeId()))) {
+                    periodTracks.add(periodTrack);
+                    trackIds.add(track.getRelativeId());
+                    for (DashManifestSnapshot.Segment segment : periodTrack.segments) {
+                        if (segment.isIndexed()) {
+                            indexedSegments.add(segment);
+                        }
+                    }
+                }
+            }
+        }
+
+        Map<DashManifestSnapshot.Segment, byte[]> indexes = fetchIndexes(indexedSegments);
+        for (int i = 0; i < periodTracks.size(); i++) {
+            createDownloadTasks(periodTracks.get(i), trackIds.get(i), indexes);
         }
 
         //if (AppBuildConfig.DEBUG) {
@@ -85,37 +189,141 @@ abstract class DashDownloader {
         //}
     }
 
-    private void createDownloadTasks(Representation representation, @NonNull DashTrack dashTrack) throws MalformedURLException {
-        if (representation == null){
-            return;
-        }
-        String reprId = representation.format.id;
+    private void createDownloadTasks(@NonNull DashManifestSnapshot.PeriodTrack periodTrack, String trackId,
+                                     Map<DashManifestSnapshot.Segment, byte[]> indexes) throws IOException {
+        long trackBytes = periodTrack.getNominalSize();
 
-        RangedUri initializationUri = representation.getInitializationUri();
+        for (DashManifestSnapshot.Segment segment : periodTrack.segments) {
+            if (segment.isIndexed()) {
+                trackBytes = addIndexedSegmentTasks(segment, trackId, indexes.get(segment));
+                continue;
+            }
+            URL url = new URL(segment.url);
+            File targetFile = new File(targetDir, segment.fileName);
+            if (segment.rangeStart >= 0) {
+                addRangeTask(url, targetFile, segment.rangeStart, segment.rangeEnd, trackId, segment.startTimeMs);
+            } else {
+                DownloadTask task = new DownloadTask(url, targetFile);
+                task.trackRelativeId = trackId;
+                task.startTimeMs = segment.startTimeMs;
+                downloadTasks.add(task);
+            }
+        }
         
-        if (initializationUri != null) {
-            addTask(initializationUri, "init-" + reprId + ".mp4", dashTrack.getRelativeId());
+        setEstimatedDownloadSize(getEstimatedDownloadSize() + trackBytes);
+    }
+
+    // The index ranges of the segments, by segment.
+    private Map<DashManifestSnapshot.Segment, byte[]> fetchIndexes(List<DashManifestSnapshot.Segment> segments) throws IOException {
+        Map<DashManifestSnapshot.Segment, byte[]> indexes = new HashMap<>();
+        ExecutorService executor = indexExecutor;
+        if (executor == null || segments.size() < 2) {
+            for (DashManifestSnapshot.Segment segment : segments) {
+                indexes.put(segment, fetchIndex(segment));
+            }
+            return indexes;
         }
 
-        if (representation instanceof Representation.MultiSegmentRepresentation) {
-            Representation.MultiSegmentRepresentation rep = (Representation.MultiSegmentRepresentation) representation;
+        Map<DashManifestSnapshot.Segment, Future<byte[]>> futures = new LinkedHashMap<>();
+        try {
+            for (final DashManifestSnapshot.Segment segment : segments) {
+                futures.put(segment, executor.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws Exception {
+                        return fetchIndex(segment);
+                    }
+                }));
+            }
+            for (Map.Entry<DashManifestSnapshot.Segment, Future<byte[]>> entry : futures.entrySet()) {
+                indexes.put(entry.getKey(), entry.getValue().get());
+            }
+            return indexes;
+
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while fetching segment indexes");
+        } catch (RejectedExecutionException e) {
+            // The service was stopped.
+            throw new IOException("Can't fetch segment indexes", e);
+        } finally {
+            for (Future<byte[]> future : futures.values()) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private static byte[] fetchIndex(DashManifestSnapshot.Segment segment) throws IOException {
+        URL url = new URL(segment.url);
+        long indexStart = segment.indexStart;
+        long indexLength = segment.rangeEnd - indexStart + 1;
+        if (indexLength <= 0 || indexLength > MAX_SEGMENT_INDEX_SIZE) {
+            throw new IOException("Invalid index range of " + url + ": " + indexStart + "+" + indexLength);
+        }
+        return Utils.httpGetRange(url, indexStart, (int) indexLength);
+    }
 
-            long periodDurationUs = getItemDurationMS() * 1000;
-            int lastSegmentNum = rep.getLastSegmentNum(periodDurationUs);
-            for (int segmentNum = rep.getFirstSegmentNum(); segmentNum <= lastSegmentNum; segmentNum++) {
-                RangedUri url = rep.getSegmentUrl(segmentNum);
-                addTask(url, "seg-" + reprId + "-" + segmentNum + ".m4s", dashTrack.getRelativeId());
+    /**
+     * Parse the sidx of a single-segment representation, and add the header (initialization and
+     * index) and the chunks it lists as byte ranges of the local file. Consecutive chunks are merged
+     * up to {@link #MAX_INDEXED_RANGE_BYTES}.
+     *
+     * @return the exact size of the ranges.
+     */
+    private long addIndexedSegmentTasks(DashManifestSnapshot.Segment segment, String trackId, byte[] indexBytes) throws IOException {
+        URL url = new URL(segment.url);
+        long indexStart = segment.indexStart;
+        ParsableByteArray atom = new ParsableByteArray(indexBytes);
+        long atomSize = atom.readUnsignedInt();
+        if (atom.readInt() != TYPE_sidx || atomSize > indexBytes.length) {
+            throw new IOException("No sidx at the index range of " + url);
+        }
+        // Chunk offsets are relative to the end of the sidx.
+        ChunkIndex chunkIndex = FragmentedMp4Extractor.parseSidx(atom, indexStart + atomSize);
+
+        File targetFile = new File(targetDir, segment.fileName);
+        long headerEnd = segment.rangeEnd;
+        long totalBytes = addRangeTask(url, targetFile, segment.rangeStart, headerEnd, trackId, segment.startTimeMs);
+
+        long rangeStart = -1;
+        long rangeEnd = -1;
+        long rangeStartTimeMs = 0;
+        for (int i = 0; i < chunkIndex.length; i++) {
+            long chunkStart = Math.max(chunkIndex.offsets[i], headerEnd + 1);
+            long chunkEnd = chunkIndex.offsets[i] + chunkIndex.sizes[i] - 1;
+            if (chunkEnd < chunkStart) {
+                continue;
             }
-        
-        } else if (representation instanceof Representation.SingleSegmentRepresentation) {
-            Representation.SingleSegmentRepresentation rep = (Representation.SingleSegmentRepresentation) representation;
-            if (rep.format.mimeType.equalsIgnoreCase("text/vtt")) {
-                RangedUri url = rep.getIndex().getSegmentUrl(0);
-                addTask(url, reprId + ".vtt", dashTrack.getRelativeId());
+            if (rangeStart >= 0 && chunkStart == rangeEnd + 1 && chunkEnd - rangeStart + 1 <= MAX_INDEXED_RANGE_BYTES) {
+                rangeEnd = chunkEnd;
+                continue;
             }
+            if (rangeStart >= 0) {
+                totalBytes += addRangeTask(url, targetFile, rangeStart, rangeEnd, trackId, rangeStartTimeMs);
+            }
+            rangeStart = chunkStart;
+            rangeEnd = chunkEnd;
+            rangeStartTimeMs = segment.startTimeMs + chunkIndex.timesUs[i] / 1000;
         }
-        
-        setEstimatedDownloadSize(getEstimatedDownloadSize() + getItemDurationMS() *representation.format.bitrate / 8 / 1000);
+        if (rangeStart >= 0) {
+            totalBytes += addRangeTask(url, targetFile, rangeStart, rangeEnd, trackId, rangeStartTimeMs);
+        }
+        return totalBytes;
+    }
+
+    private long addRangeTask(URL url, File targetFile, long start, long end, String trackId, long startTimeMs) {
+        DownloadTask task = new DownloadTask(url, targetFile, start, end);
+        task.trackRelativeId = trackId;
+        task.startTimeMs = startTimeMs;
+        downloadTasks.add(task);
+        return end - start + 1;
+    }
+
+    // Nominal size of a track, by its bitrate and the item's duration.
+    long estimateTrackSize(DashTrack track) {
+        return getItemDurationMS() * track.getBitrate() / 8 / 1000;
     }
 
     long getItemDurationMS() {
@@ -155,23 +363,19 @@ abstract class DashDownloader {
 
     void createLocalManifest() throws IOException {
 
-        // The localizer needs a raw list of tracks.
-        List<DashTrack> tracks = getSelectedTracks();
+        // The localizer needs a raw list of tracks, in all periods.
+        List<DashTrack> tracks = getSelectedPeriodTracks();
         
         createLocalManifest(tracks, originManifestBytes, targetDir);
     }
 
     static void createLocalManifest(List<DashTrack> tracks, byte[] originManifestBytes, File targetDir) throws IOException {
         DashManifestLocalizer localizer = new DashManifestLocalizer(originManifestBytes, tracks);
-        localizer.localize();
-
-        FileOutputStream outputStream = new FileOutputStream(new File(targetDir, LOCAL_MANIFEST_MPD));
-        byte[] localManifestBytes = localizer.getLocalManifestBytes();
-        outputStream.write(localManifestBytes);
-        outputStream.close();
+        File localManifest = new File(targetDir, LOCAL_MANIFEST_MPD);
+        localizer.localize(localManifest);
 
         if (AppBuildConfig.DEBUG) {
-            Log.d(TAG, "local manifest: " + Base64.encodeToString(localManifestBytes, Base64.NO_WRAP));
+            Log.d(TAG, "local manifest: " + localManifest.length() + " bytes, " + tracks.size() + " representations");
         }
     }
 
@@ -189,14 +393,6 @@ abstract class DashDownloader {
         return tracks;
     }
 
-
-    void addTask(RangedUri url, String file, String trackId) throws MalformedURLException {
-        File targetFile = new File(targetDir, file);
-        DownloadTask task = new DownloadTask(new URL(url.getUriString()), targetFile);
-        task.trackRelativeId = trackId;
-        downloadTasks.add(task);
-    }
-
     
     void setSelectedTracks(@NonNull DownloadItem.TrackType type, @NonNull List<DashTrack> tracks) {
         // FIXME: 07/09/2016 Verify type, null
@@ -1,45 +1,102 @@
 package com.kaltura.dtg.clear;
 
+import com.kaltura.dtg.Utils;
+
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlPullParserFactory;
 import org.xmlpull.v1.XmlSerializer;
 
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Created by noamt on 21/06/2016.
+ *
+ * Keeps the selected representations of every period, with their segment URLs replaced by the
+ * local file names (see DashDownloader.getPeriodFilePrefix). BaseURLs outside a representation are
+ * dropped: all local files are next to the local manifest. The BaseURL of a single-segment
+ * representation becomes its local file, which has the remote offsets, so SegmentBase ranges stay.
+ *
+ * The manifest is localized in one pass and streamed to the output. The kept adaptation sets and
+ * representations are indexed by their position, so each element is checked in constant time.
  */
 class DashManifestLocalizer {
 
+    public static final String PERIOD_TAG = "Period";
     public static final String REPRESENTATION_TAG = "Representation";
     public static final String ADAPTATION_SET_TAG = "AdaptationSet";
     public static final String SEGMENT_TEMPLATE_TAG = "SegmentTemplate";
     public static final String BASE_URL_TAG = "BaseURL";
     public static final String MEDIA_ATTRIBUTE = "media";
     public static final String INITIALIZATION_ATTRIBUTE = "initialization";
+    public static final String MIME_TYPE_ATTRIBUTE = "mimeType";
+    private static XmlPullParserFactory sFactory;
+
     private final byte[] originManifestBytes;
-    private final List<DashTrack> keepTracks;
-    private byte[] localManifestBytes;
+    // Packed (period, adaptation set) and (period, adaptation set, representation) of the kept tracks.
+    private final Set<Long> keepAdaptationSets = new HashSet<>();
+    private final Set<Long> keepRepresentations = new HashSet<>();
     private XmlPullParser parser;
     private XmlSerializer serializer;
 
 
     DashManifestLocalizer(byte[] originManifestBytes, List<DashTrack> keepTracks) {
         this.originManifestBytes = originManifestBytes;
-        this.keepTracks = keepTracks;
+        for (DashTrack keepTrack : keepTracks) {
+            keepAdaptationSets.add(key(keepTrack.getPeriodIndex(), keepTrack.getAdaptationIndex(), 0));
+            keepRepresentations.add(key(keepTrack.getPeriodIndex(), keepTrack.getAdaptationIndex(), keepTrack.getRepresentationIndex() + 1));
+        }
+    }
+
+    private static long key(int periodIndex, int adaptationIndex, int representationIndex) {
+        return ((long) periodIndex << 42) | ((long) adaptationIndex << 21) | representationIndex;
+    }
+
+    // The factory only creates parsers and serializers; it's shared by all localizers.
+    private static synchronized XmlPullParserFactory getFactory() throws XmlPullParserException {
+        if (sFactory == null) {
+            sFactory = XmlPullParserFactory.newInstance();
+            sFactory.setNamespaceAware(true);
+        }
+        return sFactory;
     }
 
-    public byte[] getLocalManifestBytes() {
-        return localManifestBytes;
+    /**
+     * Write the local manifest to targetFile. It's written to a temporary file first, so a failure
+     * leaves the previous manifest in place.
+     */
+    void localize(File targetFile) throws IOException {
+        File tempFile = new File(targetFile.getPath() + ".tmp");
+        OutputStream output = new BufferedOutputStream(new FileOutputStream(tempFile));
+        boolean success = false;
+        try {
+            localize(output);
+            output.close();
+            success = true;
+        } finally {
+            if (!success) {
+                Utils.safeClose(output);
+                tempFile.delete();
+            }
+        }
+        if (!tempFile.renameTo(targetFile)) {
+            tempFile.delete();
+            throw new IOException("Failed to write " + targetFile);
+        }
     }
 
-    void localize() throws IOException {
+    // Write the local manifest to output; it's flushed, not closed.
+    void localize(OutputStream output) throws IOException {
         try {
-            localizeImp();
+            localizeImp(output);
         } catch (XmlPullParserException e) {
             throw new IOException(e);
         }
@@ -65,36 +122,21 @@ class DashManifestLocalizer {
         }
     }
     
-    boolean shouldKeepAdaptationSet(int index) {
-        // TODO: make the search more efficient
-        for (DashTrack keepTrack : keepTracks) {
-            if (keepTrack.getAdaptationIndex() == index) {
-                return true;
-            }
-        }
-        return false;
+    boolean shouldKeepAdaptationSet(int periodIndex, int index) {
+        return keepAdaptationSets.contains(key(periodIndex, index, 0));
     }
     
-    boolean shouldKeepRepresentation(int adaptationIndex, int representationIndex) {
-        // TODO: make the search more efficient
-        for (DashTrack keepTrack : keepTracks) {
-            if (keepTrack.getAdaptationIndex() == adaptationIndex && keepTrack.getRepresentationIndex() == representationIndex) {
-                return true;
-            }
-        }
-        return false;
-
+    boolean shouldKeepRepresentation(int periodIndex, int adaptationIndex, int representationIndex) {
+        return keepRepresentations.contains(key(periodIndex, adaptationIndex, representationIndex + 1));
     }
     
-    void localizeImp() throws XmlPullParserException, IOException {
-        XmlPullParserFactory factory = XmlPullParserFactory.newInstance();
-        factory.setNamespaceAware(true);
+    private void localizeImp(OutputStream output) throws XmlPullParserException, IOException {
+        XmlPullParserFactory factory = getFactory();
         parser = factory.newPullParser();
 
         serializer = factory.newSerializer();
 
         parser.setInput(new ByteArrayInputStream(originManifestBytes), null);
-        ByteArrayOutputStream output = new ByteArrayOutputStream();
         serializer.setOutput(output, "utf8");
 
 
@@ -103,10 +145,13 @@ class DashManifestLocalizer {
         Boolean standalone = (Boolean) parser.getProperty("http://xmlpull.org/v1/doc/properties.html#xmldecl-standalone");
         serializer.startDocument(parser.getInputEncoding(), standalone);
         
+        int periodIndex = -1;
         int representationIndex = -1;
         int adaptationSetIndex = -1;
         
         String currentRepresentationId = null;
+        String adaptationSetMimeType = null;
+        String currentMimeType = null;
         
         int eventType;
         while ((eventType = parser.next()) != XmlPullParser.END_DOCUMENT) {
@@ -114,13 +159,19 @@ class DashManifestLocalizer {
                 case XmlPullParser.START_TAG:
                     copyNamespaces();
 
+                    if (parser.getName().equals(PERIOD_TAG)) {
+                        periodIndex++;
+                        adaptationSetIndex = -1;
+                    }
+
                     if (parser.getName().equals(ADAPTATION_SET_TAG)) {
 
                         adaptationSetIndex++;
                         representationIndex = -1;
                         currentRepresentationId = null;
+                        adaptationSetMimeType = parser.getAttributeValue(null, MIME_TYPE_ATTRIBUTE);
                         
-                        if (!shouldKeepAdaptationSet(adaptationSetIndex)) {
+                        if (!shouldKeepAdaptationSet(periodIndex, adaptationSetIndex)) {
                             skipSubtree();
                             continue;
                         }
@@ -130,21 +181,30 @@ class DashManifestLocalizer {
 
                         representationIndex++;
                         currentRepresentationId = parser.getAttributeValue(null, "id");
+                        currentMimeType = parser.getAttributeValue(null, MIME_TYPE_ATTRIBUTE);
+                        if (currentMimeType == null) {
+                            currentMimeType = adaptationSetMimeType;
+                        }
                         
-                        if (!shouldKeepRepresentation(adaptationSetIndex, representationIndex)) {
+                        if (!shouldKeepRepresentation(periodIndex, adaptationSetIndex, representationIndex)) {
                             skipSubtree();
                             continue;
                         }
                     }
 
+                    if (parser.getName().equals(BASE_URL_TAG) && currentRepresentationId == null) {
+                        skipSubtree();
+                        continue;
+                    }
+
                     // Start copying the tag
                     serializer.startTag(parser.getNamespace(), parser.getName());
                     switch (parser.getName()){
                         case SEGMENT_TEMPLATE_TAG:
-                            handleSegmentTemplate();
+                            handleSegmentTemplate(DashDownloader.getPeriodFilePrefix(periodIndex));
                             break;
                         case BASE_URL_TAG:
-                            handleBaseURL(currentRepresentationId);
+                            handleBaseURL(DashDownloader.getSingleSegmentFileName(periodIndex, currentRepresentationId, currentMimeType));
                             break;
                         default:
                             copyTagAttributes();
@@ -153,6 +213,9 @@ class DashManifestLocalizer {
                     break;
                 
                 case XmlPullParser.END_TAG:
+                    if (parser.getName().equals(REPRESENTATION_TAG)) {
+                        currentRepresentationId = null;
+                    }
                     serializer.endTag(parser.getNamespace(), parser.getName());
                     break;
 
@@ -163,11 +226,10 @@ class DashManifestLocalizer {
         }
         serializer.endDocument();
         serializer.flush();
-        localManifestBytes = output.toByteArray();
     }
 
-    private void handleBaseURL(String id) throws IOException, XmlPullParserException {
-        serializer.text(id + ".vtt");
+    private void handleBaseURL(String fileName) throws IOException, XmlPullParserException {
+        serializer.text(fileName);
         // Avoid copying the original text.
         // NOTE: if there are child elements in the BaseURL, they will be skipped.
         skipSubtree();
@@ -185,7 +247,7 @@ class DashManifestLocalizer {
         }
     }
 
-    private void handleSegmentTemplate() throws IOException {
+    private void handleSegmentTemplate(String prefix) throws IOException {
         // copy attributes, but modify the template
         for (int i = 0, n = parser.getAttributeCount(); i<n; i++) {
             String attributeName = parser.getAttributeName(i);
@@ -194,9 +256,9 @@ class DashManifestLocalizer {
 
             switch (attributeName) {
                 case MEDIA_ATTRIBUTE:
-                    attributeValue = "seg-$RepresentationID$-$Number$.m4s"; break;
+                    attributeValue = prefix + "seg-$RepresentationID$-$Number$.m4s"; break;
                 case INITIALIZATION_ATTRIBUTE:
-                    attributeValue = "init-$RepresentationID$.mp4"; break;
+                    attributeValue = prefix + "init-$RepresentationID$.mp4"; break;
             }
 
             serializer.attribute(attributeNamespace, attributeName, attributeValue);
@@ -0,0 +1,482 @@
+package com.kaltura.dtg.clear;
+
+import android.support.annotation.NonNull;
+
+import com.kaltura.android.exoplayer.C;
+import com.kaltura.android.exoplayer.chunk.Format;
+import com.kaltura.android.exoplayer.dash.DashSegmentIndex;
+import com.kaltura.android.exoplayer.dash.mpd.AdaptationSet;
+import com.kaltura.android.exoplayer.dash.mpd.MediaPresentationDescription;
+import com.kaltura.android.exoplayer.dash.mpd.Period;
+import com.kaltura.android.exoplayer.dash.mpd.RangedUri;
+import com.kaltura.android.exoplayer.dash.mpd.Representation;
+import com.kaltura.dtg.DownloadItem;
+import com.kaltura.dtg.Utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What the DASH downloader needs from a parsed MPD, in a form that is saved next to the item and
+ * loaded without parsing XML: the tracks of the reference period, their counterparts in every
+ * period (see DashDownloader), and the segments of each counterpart.
+ *
+ * The file is a versioned binary stream. URLs and file names are stored as the length of the prefix
+ * they share with the previous one plus the rest, so templated segment lists take a few bytes per
+ * segment.
+ */
+class DashManifestSnapshot {
+    static final String FILE_NAME = "manifest.snapshot";
+
+    private static final int MAGIC = 0x44544753;   // "DTGS"
+    private static final int VERSION = 1;
+
+    /**
+     * A file of a period track, or a byte range of it. An indexed segment (indexStart >= 0) is
+     * a whole single-segment representation, whose ranges are listed by the sidx at
+     * [indexStart, rangeEnd]; [rangeStart, rangeEnd] is its header.
+     */
+    static class Segment {
+        final String url;
+        final String fileName;
+        final long startTimeMs;
+        final long rangeStart;
+        final long rangeEnd;
+        final long indexStart;
+
+        Segment(String url, String fileName, long startTimeMs, long rangeStart, long rangeEnd, long indexStart) {
+            this.url = url;
+            this.fileName = fileName;
+            this.startTimeMs = startTimeMs;
+            this.rangeStart = rangeStart;
+            this.rangeEnd = rangeEnd;
+            this.indexStart = indexStart;
+        }
+
+        boolean isIndexed() {
+            return indexStart >= 0;
+        }
+    }
+
+    // A representation in one period, with its segments in presentation order.
+    static class PeriodTrack {
+        final DashTrack track;
+        final long durationMs;   // -1 if unknown
+        final List<Segment> segments;
+
+        PeriodTrack(DashTrack track, long durationMs, List<Segment> segments) {
+            this.track = track;
+            this.durationMs = durationMs;
+            this.segments = segments;
+        }
+
+        // Whether the track is a single indexed file, whose size is counted exactly from its sidx.
+        boolean isIndexed() {
+            return segments.size() == 1 && segments.get(0).isIndexed();
+        }
+
+        // By the bitrate and duration.
+        long getNominalSize() {
+            return Math.max(durationMs, 0) * track.getBitrate() / 8 / 1000;
+        }
+    }
+
+    private final long itemDurationMs;
+    private final int referencePeriodIndex;
+    private final List<DashTrack> tracks;
+    private final List<PeriodTrack> periodTracks;
+    // For each of tracks, the indexes of its period tracks.
+    private final List<int[]> trackPeriodTracks;
+    private final Map<String, Integer> trackIndexes = new HashMap<>();
+
+    private DashManifestSnapshot(long itemDurationMs, int referencePeriodIndex, List<DashTrack> tracks,
+                                 List<PeriodTrack> periodTracks, List<int[]> trackPeriodTracks) {
+        this.itemDurationMs = itemDurationMs;
+        this.referencePeriodIndex = referencePeriodIndex;
+        this.tracks = tracks;
+        this.periodTracks = periodTracks;
+        this.trackPeriodTracks = trackPeriodTracks;
+        for (int i = 0; i < tracks.size(); i++) {
+            trackIndexes.put(tracks.get(i).getRelativeId(), i);
+        }
+    }
+
+    long getItemDurationMs() {
+        return itemDurationMs;
+    }
+
+    int getReferencePeriodIndex() {
+        return referencePeriodIndex;
+    }
+
+    // The tracks of the reference period.
+    List<DashTrack> getTracks() {
+        return Collections.unmodifiableList(tracks);
+    }
+
+    // The track of the reference period with the relative id of track, or null.
+    DashTrack findTrack(@NonNull DashTrack track) {
+        Integer index = trackIndexes.get(track.getRelativeId());
+        return index == null ? null : tracks.get(index);
+    }
+
+    /**
+     * The counterparts of a track of the reference period in every period, in period order.
+     */
+    @NonNull
+    List<PeriodTrack> getPeriodTracks(@NonNull DashTrack track) {
+        Integer index = trackIndexes.get(track.getRelativeId());
+        if (index == null) {
+            return new ArrayList<>();
+        }
+        int[] indexes = trackPeriodTracks.get(index);
+        List<PeriodTrack> result = new ArrayList<>(indexes.length);
+        for (int i : indexes) {
+            result.add(periodTracks.get(i));
+        }
+        return result;
+    }
+
+    // Snapshots of the parsed MPD.
+
+    static DashManifestSnapshot create(@NonNull MediaPresentationDescription mpd) throws IOException {
+        if (mpd.getPeriodCount() < 1) {
+            throw new IOException("At least one period is required");
+        }
+
+        // The reference period is the longest, so a short pre-roll doesn't define the tracks.
+        long itemDurationMs = 0;
+        long longestDurationMs = Long.MIN_VALUE;
+        int referencePeriodIndex = 0;
+        for (int i = 0; i < mpd.getPeriodCount(); i++) {
+            long durationMs = mpd.getPeriodDuration(i);   // -1 if unknown
+            if (durationMs > longestDurationMs) {
+                longestDurationMs = durationMs;
+                referencePeriodIndex = i;
+            }
+            itemDurationMs += Math.max(durationMs, 0);
+        }
+
+        List<DashTrack> tracks = new ArrayList<>();
+        List<AdaptationSet> adaptationSets = mpd.getPeriod(referencePeriodIndex).adaptationSets;
+        for (int a = 0; a < adaptationSets.size(); a++) {
+            AdaptationSet adaptationSet = adaptationSets.get(a);
+            DownloadItem.TrackType type = getTrackType(adaptationSet);
+            if (type == DownloadItem.TrackType.UNKNOWN) {
+                continue;
+            }
+            List<Representation> representations = adaptationSet.representations;
+            for (int r = 0; r < representations.size(); r++) {
+                tracks.add(createTrack(type, representations.get(r).format, referencePeriodIndex, a, r));
+            }
+        }
+
+        // Tracks may share a counterpart, e.g. a pre-roll with a single representation.
+        List<PeriodTrack> periodTracks = new ArrayList<>();
+        Map<String, Integer> periodTrackIndexes = new HashMap<>();
+        List<int[]> trackPeriodTracks = new ArrayList<>(tracks.size());
+        for (DashTrack track : tracks) {
+            List<Integer> indexes = new ArrayList<>(mpd.getPeriodCount());
+            for (int p = 0; p < mpd.getPeriodCount(); p++) {
+                DashTrack periodTrack = p == referencePeriodIndex ? track : findMatchingTrack(mpd, p, track);
+                if (periodTrack == null) {
+                    continue;
+                }
+                Integer index = periodTrackIndexes.get(periodTrack.getRelativeId());
+                if (index == null) {
+                    index = periodTracks.size();
+                    periodTracks.add(createPeriodTrack(mpd, periodTrack));
+                    periodTrackIndexes.put(periodTrack.getRelativeId(), index);
+                }
+                indexes.add(index);
+            }
+            int[] array = new int[indexes.size()];
+            for (int i = 0; i < array.length; i++) {
+                array[i] = indexes.get(i);
+            }
+            trackPeriodTracks.add(array);
+        }
+
+        return new DashManifestSnapshot(itemDurationMs, referencePeriodIndex, tracks, periodTracks, trackPeriodTracks);
+    }
+
+    static DownloadItem.TrackType getTrackType(AdaptationSet adaptationSet) {
+        switch (adaptationSet.type) {
+            case AdaptationSet.TYPE_VIDEO:
+                return DownloadItem.TrackType.VIDEO;
+            case AdaptationSet.TYPE_AUDIO:
+                return DownloadItem.TrackType.AUDIO;
+            case AdaptationSet.TYPE_TEXT:
+                return DownloadItem.TrackType.TEXT;
+            default:
+                return DownloadItem.TrackType.UNKNOWN;
+        }
+    }
+
+    private static DashTrack createTrack(DownloadItem.TrackType type, Format format, int periodIndex, int adaptationIndex, int representationIndex) {
+        DashTrack track = new DashTrack(type, format.language, format.bitrate, periodIndex, adaptationIndex, representationIndex);
+        track.setHeight(format.height);
+        track.setWidth(format.width);
+        return track;
+    }
+
+    /**
+     * The representation of a period that matches track: same type and, if possible, the same
+     * language, with the closest bitrate. Text tracks are only matched by language, so a period
+     * without that language has no text.
+     */
+    private static DashTrack findMatchingTrack(MediaPresentationDescription mpd, int periodIndex, DashTrack track) {
+        String language = track.getLanguage();
+        List<AdaptationSet> adaptationSets = mpd.getPeriod(periodIndex).adaptationSets;
+        DashTrack best = null;
+        boolean bestLanguageMatches = false;
+        long bestDistance = Long.MAX_VALUE;
+        for (int a = 0; a < adaptationSets.size(); a++) {
+            AdaptationSet adaptationSet = adaptationSets.get(a);
+            if (getTrackType(adaptationSet) != track.getType()) {
+                continue;
+            }
+            List<Representation> representations = adaptationSet.representations;
+            for (int r = 0; r < representations.size(); r++) {
+                Format format = representations.get(r).format;
+                boolean languageMatches = language == null || language.equals(format.language);
+                if (!languageMatches && track.getType() == DownloadItem.TrackType.TEXT) {
+                    continue;
+                }
+                long distance = Math.abs(format.bitrate - track.getBitrate());
+                if (best == null || (languageMatches && !bestLanguageMatches) ||
+                        (languageMatches == bestLanguageMatches && distance < bestDistance)) {
+                    best = createTrack(track.getType(), format, periodIndex, a, r);
+                    bestLanguageMatches = languageMatches;
+                    bestDistance = distance;
+                }
+            }
+        }
+        return best;
+    }
+
+    private static PeriodTrack createPeriodTrack(MediaPresentationDescription mpd, DashTrack periodTrack) throws IOException {
+        int periodIndex = periodTrack.getPeriodIndex();
+        Period period = mpd.getPeriod(periodIndex);
+        Representation representation = period.adaptationSets.get(periodTrack.getAdaptationIndex())
+                .representations.get(periodTrack.getRepresentationIndex());
+        String reprId = representation.format.id;
+        String prefix = DashDownloader.getPeriodFilePrefix(periodIndex);
+        long periodDurationMs = mpd.getPeriodDuration(periodIndex);
+        List<Segment> segments = new ArrayList<>();
+
+        RangedUri initializationUri = representation.getInitializationUri();
+
+        if (representation instanceof Representation.MultiSegmentRepresentation) {
+            Representation.MultiSegmentRepresentation rep = (Representation.MultiSegmentRepresentation) representation;
+
+            if (initializationUri != null) {
+                segments.add(new Segment(initializationUri.getUriString(), prefix + "init-" + reprId + ".mp4", period.startMs, -1, -1, -1));
+            }
+
+            // A SegmentTimeline lists its segments; fixed-duration segments fill the period.
+            long periodDurationUs = periodDurationMs < 0 ? C.UNKNOWN_TIME_US : periodDurationMs * 1000;
+            int lastSegmentNum = rep.getLastSegmentNum(periodDurationUs);
+            if (lastSegmentNum == DashSegmentIndex.INDEX_UNBOUNDED) {
+                throw new IOException("Unknown duration of period " + periodIndex);
+            }
+            for (int segmentNum = rep.getFirstSegmentNum(); segmentNum <= lastSegmentNum; segmentNum++) {
+                RangedUri url = rep.getSegmentUrl(segmentNum);
+                segments.add(new Segment(url.getUriString(), prefix + "seg-" + reprId + "-" + segmentNum + ".m4s",
+                        period.startMs + rep.getTimeUs(segmentNum) / 1000, -1, -1, -1));
+            }
+
+        } else if (representation instanceof Representation.SingleSegmentRepresentation) {
+            Representation.SingleSegmentRepresentation rep = (Representation.SingleSegmentRepresentation) representation;
+            String mimeType = rep.format.mimeType;
+            String fileName = DashDownloader.getSingleSegmentFileName(periodIndex, reprId, mimeType);
+            RangedUri indexUri = rep.getIndexUri();
+            if (indexUri != null && mimeType != null && mimeType.endsWith("/mp4") && indexUri.length > 0) {
+                long headerStart = initializationUri != null ? Math.min(initializationUri.start, indexUri.start) : 0;
+                segments.add(new Segment(indexUri.getUriString(), fileName, period.startMs,
+                        headerStart, indexUri.start + indexUri.length - 1, indexUri.start));
+            } else if (indexUri != null) {
+                // An index we can't parse (e.g. webm cues); the whole file is still playable.
+                segments.add(new Segment(indexUri.getUriString(), fileName, period.startMs, -1, -1, -1));
+            } else {
+                segments.add(new Segment(rep.getIndex().getSegmentUrl(0).getUriString(), fileName, period.startMs, -1, -1, -1));
+            }
+        }
+
+        return new PeriodTrack(periodTrack, periodDurationMs, segments);
+    }
+
+    // Persistence.
+
+    void save(@NonNull File file) throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+        boolean success = false;
+        try {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeLong(itemDurationMs);
+            output.writeInt(referencePeriodIndex);
+
+            output.writeInt(tracks.size());
+            for (int i = 0; i < tracks.size(); i++) {
+                writeTrack(output, tracks.get(i));
+                int[] indexes = trackPeriodTracks.get(i);
+                output.writeInt(indexes.length);
+                for (int index : indexes) {
+                    output.writeInt(index);
+                }
+            }
+
+            output.writeInt(periodTracks.size());
+            String previousUrl = "";
+            String previousFileName = "";
+            for (PeriodTrack periodTrack : periodTracks) {
+                writeTrack(output, periodTrack.track);
+                output.writeLong(periodTrack.durationMs);
+                output.writeInt(periodTrack.segments.size());
+                for (Segment segment : periodTrack.segments) {
+                    writeSharedPrefix(output, previousUrl, segment.url);
+                    writeSharedPrefix(output, previousFileName, segment.fileName);
+                    previousUrl = segment.url;
+                    previousFileName = segment.fileName;
+                    output.writeLong(segment.startTimeMs);
+                    output.writeLong(segment.rangeStart);
+                    output.writeLong(segment.rangeEnd);
+                    output.writeLong(segment.indexStart);
+                }
+            }
+            output.close();
+            success = true;
+        } finally {
+            if (!success) {
+                Utils.safeClose(output);
+                tempFile.delete();
+            }
+        }
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Failed to write " + file);
+        }
+    }
+
+    static DashManifestSnapshot load(@NonNull File file) throws IOException {
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        // Every counted entry takes at least 4 bytes, so no count can be larger.
+        long maxCount = file.length() / 4;
+        try {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) {
+                throw new IOException("Unsupported manifest snapshot: " + file);
+            }
+            long itemDurationMs = input.readLong();
+            int referencePeriodIndex = input.readInt();
+
+            int trackCount = readCount(input, maxCount);
+            List<DashTrack> tracks = new ArrayList<>(trackCount);
+            List<int[]> trackPeriodTracks = new ArrayList<>(trackCount);
+            for (int i = 0; i < trackCount; i++) {
+                tracks.add(readTrack(input));
+                int[] indexes = new int[readCount(input, maxCount)];
+                for (int j = 0; j < indexes.length; j++) {
+                    indexes[j] = input.readInt();
+                }
+                trackPeriodTracks.add(indexes);
+            }
+
+            int periodTrackCount = readCount(input, maxCount);
+            List<PeriodTrack> periodTracks = new ArrayList<>(periodTrackCount);
+            String url = "";
+            String fileName = "";
+            for (int i = 0; i < periodTrackCount; i++) {
+                DashTrack track = readTrack(input);
+                long durationMs = input.readLong();
+                int segmentCount = readCount(input, maxCount);
+                List<Segment> segments = new ArrayList<>(segmentCount);
+                for (int j = 0; j < segmentCount; j++) {
+                    url = readSharedPrefix(input, url);
+                    fileName = readSharedPrefix(input, fileName);
+                    segments.add(new Segment(url, fileName, input.readLong(), input.readLong(), input.readLong(), input.readLong()));
+                }
+                periodTracks.add(new PeriodTrack(track, durationMs, segments));
+            }
+
+            for (int[] indexes : trackPeriodTracks) {
+                for (int index : indexes) {
+                    if (index < 0 || index >= periodTrackCount) {
+                        throw new IOException("Corrupt manifest snapshot: " + file);
+                    }
+                }
+            }
+            return new DashManifestSnapshot(itemDurationMs, referencePeriodIndex, tracks, periodTracks, trackPeriodTracks);
+
+        } catch (RuntimeException e) {
+            // E.g. an invalid track type. The caller falls back to parsing the manifest.
+            throw new IOException("Corrupt manifest snapshot: " + file, e);
+        } finally {
+            Utils.safeClose(input);
+        }
+    }
+
+    private static int readCount(DataInputStream input, long maxCount) throws IOException {
+        int count = input.readInt();
+        if (count < 0 || count > maxCount) {
+            throw new IOException("Corrupt manifest snapshot: count " + count);
+        }
+        return count;
+    }
+
+    private static void writeTrack(DataOutputStream output, DashTrack track) throws IOException {
+        output.writeUTF(track.getType().name());
+        output.writeBoolean(track.getLanguage() != null);
+        if (track.getLanguage() != null) {
+            output.writeUTF(track.getLanguage());
+        }
+        output.writeLong(track.getBitrate());
+        output.writeInt(track.getWidth());
+        output.writeInt(track.getHeight());
+        output.writeInt(track.getPeriodIndex());
+        output.writeInt(track.getAdaptationIndex());
+        output.writeInt(track.getRepresentationIndex());
+    }
+
+    private static DashTrack readTrack(DataInputStream input) throws IOException {
+        DownloadItem.TrackType type = DownloadItem.TrackType.valueOf(input.readUTF());
+        String language = input.readBoolean() ? input.readUTF() : null;
+        long bitrate = input.readLong();
+        int width = input.readInt();
+        int height = input.readInt();
+        DashTrack track = new DashTrack(type, language, bitrate, input.readInt(), input.readInt(), input.readInt());
+        track.setWidth(width);
+        track.setHeight(height);
+        return track;
+    }
+
+    private static void writeSharedPrefix(DataOutputStream output, String previous, String value) throws IOException {
+        int shared = 0;
+        int max = Math.min(previous.length(), value.length());
+        while (shared < max && previous.charAt(shared) == value.charAt(shared)) {
+            shared++;
+        }
+        output.writeShort(Math.min(shared, 0xFFFF));
+        output.writeUTF(value.substring(Math.min(shared, 0xFFFF)));
+    }
+
+    private static String readSharedPrefix(DataInputStream input, String previous) throws IOException {
+        int shared = input.readUnsignedShort();
+        if (shared > previous.length()) {
+            throw new IOException("Corrupt manifest snapshot");
+        }
+        return previous.substring(0, shared) + input.readUTF();
+    }
+}
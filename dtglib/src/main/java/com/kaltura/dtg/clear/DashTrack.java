@@ -22,7 +22,9 @@ class DashTrack implements DownloadItem.Track {
             {Database.COL_TRACK_ID, Database.COL_TRACK_TYPE, Database.COL_TRACK_LANGUAGE, Database.COL_TRACK_BITRATE, Database.COL_TRACK_EXTRA};
     private static final String ORIGINAL_ADAPTATION_SET_INDEX = "originalAdaptationSetIndex";
     private static final String ORIGINAL_REPRESENTATION_INDEX = "originalRepresentationIndex";
+    private static final String ORIGINAL_PERIOD_INDEX = "originalPeriodIndex";
     private static final String TAG = "DashTrack";
+    private int periodIndex;
     private int adaptationIndex;
     private int representationIndex;
     private DownloadItem.TrackType type;
@@ -32,9 +34,14 @@ class DashTrack implements DownloadItem.Track {
     private int height;
 
     DashTrack(DownloadItem.TrackType type, String language, long bitrate, int adaptationIndex, int representationIndex) {
+        this(type, language, bitrate, 0, adaptationIndex, representationIndex);
+    }
+
+    DashTrack(DownloadItem.TrackType type, String language, long bitrate, int periodIndex, int adaptationIndex, int representationIndex) {
         this.type = type;
         this.language = language;
         this.bitrate = bitrate;
+        this.periodIndex = periodIndex;
         this.adaptationIndex = adaptationIndex;
         this.representationIndex = representationIndex;
     }
@@ -48,6 +55,7 @@ class DashTrack implements DownloadItem.Track {
         JSONObject jsonExtra;
         try {
             jsonExtra = new JSONObject(extra);
+            periodIndex = jsonExtra.optInt(ORIGINAL_PERIOD_INDEX, 0);
             adaptationIndex = jsonExtra.optInt(ORIGINAL_ADAPTATION_SET_INDEX, 0);
             representationIndex = jsonExtra.optInt(ORIGINAL_REPRESENTATION_INDEX, 0);
         } catch (JSONException e) {
@@ -89,6 +97,7 @@ class DashTrack implements DownloadItem.Track {
         JSONObject jsonExtra;
         try {
             jsonExtra = new JSONObject(extra);
+            periodIndex = jsonExtra.optInt(ORIGINAL_PERIOD_INDEX, 0);
             adaptationIndex = jsonExtra.optInt(ORIGINAL_ADAPTATION_SET_INDEX, 0);
             representationIndex = jsonExtra.optInt(ORIGINAL_REPRESENTATION_INDEX, 0);
         } catch (JSONException e) {
@@ -105,6 +114,7 @@ class DashTrack implements DownloadItem.Track {
         JSONObject extra = null;
         try {
             extra = new JSONObject()
+                    .put(ORIGINAL_PERIOD_INDEX, getPeriodIndex())
                     .put(ORIGINAL_ADAPTATION_SET_INDEX, getAdaptationIndex())
                     .put(ORIGINAL_REPRESENTATION_INDEX, getRepresentationIndex());
         } catch (JSONException e) {
@@ -132,8 +142,14 @@ class DashTrack implements DownloadItem.Track {
         return bitrate;
     }
 
+    // Tracks of the first period keep the id they had before multi-period support.
     String getRelativeId() {
-        return "a" + getAdaptationIndex() + "r" + getRepresentationIndex();
+        String id = "a" + getAdaptationIndex() + "r" + getRepresentationIndex();
+        return periodIndex == 0 ? id : "p" + periodIndex + id;
+    }
+
+    int getPeriodIndex() {
+        return periodIndex;
     }
 
     int getAdaptationIndex() {
@@ -151,6 +167,7 @@ class DashTrack implements DownloadItem.Track {
 
         DashTrack dashTrack = (DashTrack) o;
 
+        if (periodIndex != dashTrack.periodIndex) return false;
         if (adaptationIndex != dashTrack.adaptationIndex) return false;
         if (representationIndex != dashTrack.representationIndex) return false;
         if (bitrate != dashTrack.bitrate) return false;
@@ -162,7 +179,8 @@ class DashTrack implements DownloadItem.Track {
 
     @Override
     public int hashCode() {
-        int result = adaptationIndex;
+        int result = periodIndex;
+        result = 31 * result + adaptationIndex;
         result = 31 * result + representationIndex;
         if (type != null) {
             result = 31 * result + type.hashCode();
@@ -181,7 +199,8 @@ class DashTrack implements DownloadItem.Track {
     @Override
     public String toString() {
         return "DashTrack{" +
-                "adaptationIndex=" + adaptationIndex +
+                "periodIndex=" + periodIndex +
+                ", adaptationIndex=" + adaptationIndex +
                 ", representationIndex=" + representationIndex +
                 ", type=" + type +
                 ", language='" + language + '\'' +
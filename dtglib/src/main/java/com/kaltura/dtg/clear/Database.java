@@ -18,18 +18,23 @@ import com.kaltura.dtg.Utils;
 
 import java.io.File;
 import java.net.MalformedURLException;
+import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
  * Created by noamt on 5/20/15.
  */
 class Database {
-    static final int DB_VERSION = 2;
+    static final int DB_VERSION = 7;
     static final String TBL_DOWNLOAD_FILES = "Files";
     static final String COL_FILE_URL = "FileURL";
     static final String COL_TARGET_FILE = "TargetFile";
@@ -43,6 +48,7 @@ class Database {
     static final String COL_ITEM_ESTIMATED_SIZE = "ItemEstimatedSize";
     static final String COL_ITEM_DOWNLOADED_SIZE = "ItemDownloadedSize";
     static final String COL_ITEM_PLAYBACK_PATH = "ItemPlaybackPath";
+    static final String COL_ITEM_PRIORITY = "ItemPriority";
 //    static final String TBL_STORAGE = "Storage";
 //    static final String COL_STORAGE_ITEM_ID = "StorageId";
 //    static final String COL_STORAGE_OWNER_ID = "OwnerId";
@@ -50,7 +56,7 @@ class Database {
 //    static final String COL_STORAGE_ITEM = "Item";
     static final String[] ALL_ITEM_COLS = new String[]{COL_ITEM_ID, COL_CONTENT_URL,
             COL_ITEM_STATE, COL_ITEM_ADD_TIME, COL_ITEM_ESTIMATED_SIZE, COL_ITEM_DOWNLOADED_SIZE,
-            COL_ITEM_PLAYBACK_PATH, COL_ITEM_DATA_DIR};
+            COL_ITEM_PLAYBACK_PATH, COL_ITEM_DATA_DIR, COL_ITEM_PRIORITY};
     static final String TAG = "Database";
     static final String TBL_TRACK = "Track";
     static final String COL_TRACK_ID = "TrackId";
@@ -61,6 +67,17 @@ class Database {
     static final String COL_TRACK_BITRATE = "TrackBitrate";
     static final String COL_TRACK_REL_ID = "TrackRelativeId";
     static final String COL_FILE_COMPLETE = "FileComplete";
+    static final String COL_FILE_LENGTH = "FileLength";
+    static final String COL_FILE_ETAG = "FileETag";
+    static final String COL_FILE_START_TIME = "FileStartTime";
+    static final String COL_FILE_RANGE_START = "FileRangeStart";
+    static final String COL_FILE_RANGE_END = "FileRangeEnd";
+    static final String COL_FILE_RANGE_DONE = "FileRangeDone";
+    // SQLite's default SQLITE_MAX_VARIABLE_NUMBER is 999.
+    private static final int MAX_SQL_ARGS = 500;
+
+    // Write transactions of all instances, for the benchmarks.
+    private static final AtomicLong transactionCount = new AtomicLong();
 
     private final SQLiteOpenHelper helper;
     private final SQLiteDatabase database;
@@ -81,10 +98,12 @@ class Database {
                         COL_ITEM_DATA_DIR, "TEXT NOT NULL",
                         COL_ITEM_ESTIMATED_SIZE, "INTEGER NOT NULL DEFAULT 0",
                         COL_ITEM_DOWNLOADED_SIZE, "INTEGER NOT NULL DEFAULT 0",
-                        COL_ITEM_PLAYBACK_PATH, "TEXT"
+                        COL_ITEM_PLAYBACK_PATH, "TEXT",
+                        COL_ITEM_PRIORITY, "INTEGER NOT NULL DEFAULT 0"
                 ));
 
                 createFilesTable(db);
+                createFilesIndexes(db);
 
                 createTrackTable(db);
             }
@@ -96,9 +115,27 @@ class Database {
                         COL_FILE_URL, "TEXT NOT NULL",
                         COL_TARGET_FILE, "TEXT NOT NULL",
                         COL_TRACK_REL_ID, "TEXT",
-                        COL_FILE_COMPLETE, "INTEGER NOT NULL DEFAULT 0"
+                        COL_FILE_COMPLETE, "INTEGER NOT NULL DEFAULT 0",
+                        COL_FILE_LENGTH, "INTEGER NOT NULL DEFAULT -1",
+                        COL_FILE_ETAG, "TEXT",
+                        COL_FILE_START_TIME, "INTEGER NOT NULL DEFAULT 0",
+                        COL_FILE_RANGE_START, "INTEGER NOT NULL DEFAULT 0",
+                        COL_FILE_RANGE_END, "INTEGER NOT NULL DEFAULT -1",
+                        COL_FILE_RANGE_DONE, "INTEGER NOT NULL DEFAULT 0"
                 ));
-                db.execSQL(Utils.createUniqueIndex(TBL_DOWNLOAD_FILES, COL_ITEM_ID, COL_FILE_URL));
+                db.execSQL(Utils.createUniqueIndex(TBL_DOWNLOAD_FILES, COL_ITEM_ID, COL_FILE_URL, COL_FILE_RANGE_START));
+            }
+
+            private void createFilesIndexes(SQLiteDatabase db) {
+                // Completion is marked by target file; pending files are read and counted per item/track.
+                db.execSQL(Utils.createIndex(TBL_DOWNLOAD_FILES, COL_TARGET_FILE));
+                db.execSQL(Utils.createIndex(TBL_DOWNLOAD_FILES, COL_ITEM_ID, COL_FILE_COMPLETE, COL_TRACK_REL_ID));
+                createFilesPagingIndex(db);
+            }
+
+            private void createFilesPagingIndex(SQLiteDatabase db) {
+                // Pending files are paged in (FileStartTime, ROWID) order.
+                db.execSQL(Utils.createIndex(TBL_DOWNLOAD_FILES, COL_ITEM_ID, COL_FILE_COMPLETE, COL_FILE_START_TIME));
             }
 
             private void createTrackTable(SQLiteDatabase db) {
@@ -120,7 +157,7 @@ class Database {
             public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
                 db.beginTransaction();
                 
-                if (newVersion == 2) {
+                if (oldVersion < 2) {
                     // Upgrade 1 -> 2: Track table was missing
                     createTrackTable(db);
                     
@@ -130,8 +167,48 @@ class Database {
                     createFilesTable(db);
                     
                     db.execSQL("INSERT INTO " + TBL_DOWNLOAD_FILES + "(" + COL_ITEM_ID + "," + COL_FILE_URL + "," + COL_TARGET_FILE + ") " +
-                            "SELECT ItemID, FileURL, TargetFile FROM Files");
+                            "SELECT ItemID, FileURL, TargetFile FROM OLD_" + TBL_DOWNLOAD_FILES);
                     db.execSQL("DROP TABLE OLD_" + TBL_DOWNLOAD_FILES);
+
+                    // The tables were created with the current schema.
+                    createFilesIndexes(db);
+
+                } else {
+                    if (oldVersion < 3) {
+                        // Upgrade 2 -> 3: indexes for marking and counting files
+                        db.execSQL(Utils.createIndex(TBL_DOWNLOAD_FILES, COL_TARGET_FILE));
+                        db.execSQL(Utils.createIndex(TBL_DOWNLOAD_FILES, COL_ITEM_ID, COL_FILE_COMPLETE, COL_TRACK_REL_ID));
+                    }
+
+                    if (oldVersion < 4) {
+                        // Upgrade 3 -> 4: remote length and ETag, for resuming without HEAD
+                        db.execSQL("ALTER TABLE " + TBL_DOWNLOAD_FILES + " ADD COLUMN " + COL_FILE_LENGTH + " INTEGER NOT NULL DEFAULT -1");
+                        db.execSQL("ALTER TABLE " + TBL_DOWNLOAD_FILES + " ADD COLUMN " + COL_FILE_ETAG + " TEXT");
+                    }
+
+                    if (oldVersion < 5) {
+                        // Upgrade 4 -> 5: media start time, for ordering the downloads
+                        db.execSQL("ALTER TABLE " + TBL_DOWNLOAD_FILES + " ADD COLUMN " + COL_FILE_START_TIME + " INTEGER NOT NULL DEFAULT 0");
+                    }
+
+                    if (oldVersion < 6) {
+                        // Upgrade 5 -> 6: index for paging pending files
+                        createFilesPagingIndex(db);
+                    }
+
+                    if (oldVersion < 7) {
+                        // Upgrade 6 -> 7: byte ranges, for downloading a file over several connections
+                        db.execSQL("ALTER TABLE " + TBL_DOWNLOAD_FILES + " ADD COLUMN " + COL_FILE_RANGE_START + " INTEGER NOT NULL DEFAULT 0");
+                        db.execSQL("ALTER TABLE " + TBL_DOWNLOAD_FILES + " ADD COLUMN " + COL_FILE_RANGE_END + " INTEGER NOT NULL DEFAULT -1");
+                        db.execSQL("ALTER TABLE " + TBL_DOWNLOAD_FILES + " ADD COLUMN " + COL_FILE_RANGE_DONE + " INTEGER NOT NULL DEFAULT 0");
+                        db.execSQL("DROP INDEX IF EXISTS unique_Files_ItemID_FileURL");
+                        db.execSQL(Utils.createUniqueIndex(TBL_DOWNLOAD_FILES, COL_ITEM_ID, COL_FILE_URL, COL_FILE_RANGE_START));
+                    }
+                }
+
+                if (oldVersion < 5) {
+                    // Upgrade 4 -> 5: item priority. The Items table is never recreated.
+                    db.execSQL("ALTER TABLE " + TBL_ITEMS + " ADD COLUMN " + COL_ITEM_PRIORITY + " INTEGER NOT NULL DEFAULT 0");
                 }
                 
                 db.setTransactionSuccessful();
@@ -158,11 +235,16 @@ class Database {
         return strings;
     }
 
+    private static String placeholders(int count) {
+        return "(" + TextUtils.join(",", Collections.nCopies(count, "?")) + ")";
+    }
+
     synchronized private boolean doTransaction(Transaction transaction) {
         if (database == null) {
             return false;
         }
 
+        transactionCount.incrementAndGet();
         boolean success;
         try {
             database.beginTransaction();
@@ -178,6 +260,10 @@ class Database {
         return success;
     }
 
+    static long getTransactionCount() {
+        return transactionCount.get();
+    }
+
     synchronized void close() {
         database.close();
         helper.close();
@@ -189,10 +275,19 @@ class Database {
             public boolean execute(SQLiteDatabase db) {
                 ContentValues values = new ContentValues();
                 for (DownloadTask task : downloadTasks) {
+                    values.clear();
                     values.put(COL_ITEM_ID, item.getItemId());
                     values.put(COL_FILE_URL, task.url.toExternalForm());
                     values.put(COL_TARGET_FILE, task.targetFile.getAbsolutePath());
                     values.put(COL_TRACK_REL_ID, task.trackRelativeId);
+                    values.put(COL_FILE_START_TIME, task.startTimeMs);
+                    if (task.isRanged()) {
+                        // The ranges were split by the length in the HEAD response.
+                        values.put(COL_FILE_RANGE_START, task.rangeStart);
+                        values.put(COL_FILE_RANGE_END, task.rangeEnd);
+                        values.put(COL_FILE_LENGTH, task.contentLength);
+                        values.put(COL_FILE_ETAG, task.etag);
+                    }
                     try {
                         long rowid = db.insertWithOnConflict(TBL_DOWNLOAD_FILES, null, values, SQLiteDatabase.CONFLICT_IGNORE);
                         if (rowid <= 0) {
@@ -210,23 +305,55 @@ class Database {
         });
     }
 
-    synchronized ArrayList<DownloadTask> readPendingDownloadTasksFromDB(final String itemId) {
-
-        final ArrayList<DownloadTask> downloadTasks = new ArrayList<>();
+    /**
+     * Read a page of the item's pending tasks, in (FileStartTime, ROWID) order, starting after the
+     * given position. Pass Long.MIN_VALUE and -1 to read the first page.
+     *
+     * @param timeRange if not null, only read tasks that start inside [timeRange[0], timeRange[1])
+     *                  (inRange == true) or outside it (inRange == false).
+     */
+    synchronized ArrayList<DownloadTask> readPendingDownloadTasksPage(final String itemId, long afterStartTimeMs, long afterRowId,
+                                                                     @Nullable long[] timeRange, boolean inRange, int limit) {
+
+        final ArrayList<DownloadTask> downloadTasks = new ArrayList<>(limit);
+
+        List<String> args = new ArrayList<>();
+        args.add(itemId);
+        String start = String.valueOf(afterStartTimeMs);
+        String selection = COL_ITEM_ID + "==? AND " + COL_FILE_COMPLETE + "==0" +
+                " AND (" + COL_FILE_START_TIME + ">? OR (" + COL_FILE_START_TIME + "==? AND ROWID>?))";
+        Collections.addAll(args, start, start, String.valueOf(afterRowId));
+        if (timeRange != null) {
+            if (inRange) {
+                selection += " AND " + COL_FILE_START_TIME + ">=? AND " + COL_FILE_START_TIME + "<?";
+            } else {
+                selection += " AND (" + COL_FILE_START_TIME + "<? OR " + COL_FILE_START_TIME + ">=?)";
+            }
+            Collections.addAll(args, String.valueOf(timeRange[0]), String.valueOf(timeRange[1]));
+        }
 
         SQLiteDatabase db = database;
         Cursor cursor = null;
 
         try {
-            cursor = db.query(TBL_DOWNLOAD_FILES, new String[]{COL_FILE_URL, COL_TARGET_FILE},
-                    COL_ITEM_ID + "==? AND " + COL_FILE_COMPLETE + "==0", new String[]{itemId}, null, null, "ROWID");
+            cursor = db.query(TBL_DOWNLOAD_FILES,
+                    new String[]{"ROWID", COL_FILE_URL, COL_TARGET_FILE, COL_TRACK_REL_ID, COL_FILE_LENGTH, COL_FILE_ETAG, COL_FILE_START_TIME,
+                            COL_FILE_RANGE_START, COL_FILE_RANGE_END, COL_FILE_RANGE_DONE},
+                    selection, args.toArray(new String[args.size()]), null, null,
+                    COL_FILE_START_TIME + ",ROWID", String.valueOf(limit));
             
             while (cursor.moveToNext()) {
-                String url = cursor.getString(0);
-                String file = cursor.getString(1);
+                String url = cursor.getString(1);
+                String file = cursor.getString(2);
                 try {
-                    DownloadTask task = new DownloadTask(url, file);
+                    DownloadTask task = new DownloadTask(new URL(url), new File(file), cursor.getLong(7), cursor.getLong(8));
+                    task.rangeDone = cursor.getLong(9);
+                    task.rowId = cursor.getLong(0);
                     task.itemId = itemId;
+                    task.trackRelativeId = cursor.getString(3);
+                    task.contentLength = cursor.getLong(4);
+                    task.etag = cursor.getString(5);
+                    task.startTimeMs = cursor.getLong(6);
                     downloadTasks.add(task);
                 } catch (MalformedURLException e) {
                     Log.w(TAG, "Malformed URL while reading downloads from db", e);
@@ -240,22 +367,72 @@ class Database {
         return downloadTasks;
     }
 
-    synchronized void markTaskAsComplete(final DownloadTask downloadTask) {
-        
+    synchronized void markTasksAsComplete(final List<DownloadTask> downloadTasks) {
+        saveProgress(Collections.<DefaultDownloadItem>emptyList(), downloadTasks, Collections.<DownloadTask>emptyList(),
+                Collections.<DownloadTask>emptyList());
+    }
+
+    // Write downloaded and estimated sizes, mark finished tasks as complete and save the tasks' content info and
+    // range progress, in one transaction.
+    synchronized void saveProgress(final Collection<DefaultDownloadItem> items, final List<DownloadTask> completedTasks,
+                                   final List<DownloadTask> contentInfoTasks, final List<DownloadTask> rangeTasks) {
+        if (items.isEmpty() && completedTasks.isEmpty() && contentInfoTasks.isEmpty() && rangeTasks.isEmpty()) {
+            return;
+        }
         doTransaction(new Transaction() {
             @Override
             public boolean execute(SQLiteDatabase db) {
-                ContentValues values = new ContentValues();
+                ContentValues values = new ContentValues(2);
+                for (DefaultDownloadItem item : items) {
+                    values.put(COL_ITEM_DOWNLOADED_SIZE, item.getDownloadedSizeBytes());
+                    values.put(COL_ITEM_ESTIMATED_SIZE, item.getEstimatedSizeBytes());
+                    db.update(TBL_ITEMS, values, COL_ITEM_ID + "==?", new String[]{item.getItemId()});
+                }
+
+                // The ranges of a file share its target file, so rows are marked by ROWID when it's known.
+                List<String> rowIds = new ArrayList<>();
+                List<String> targetFiles = new ArrayList<>();
+                for (DownloadTask task : completedTasks) {
+                    if (task.rowId >= 0) {
+                        rowIds.add(String.valueOf(task.rowId));
+                    } else {
+                        targetFiles.add(task.targetFile.getAbsolutePath());
+                    }
+                }
+                values.clear();
                 values.put(COL_FILE_COMPLETE, 1);
-                
-                db.updateWithOnConflict(TBL_DOWNLOAD_FILES, values, COL_TARGET_FILE + "==?",
-                        new String[]{downloadTask.targetFile.getAbsolutePath()},
-                        SQLiteDatabase.CONFLICT_IGNORE);
+                updateFilesIn(db, values, "ROWID", rowIds);
+                updateFilesIn(db, values, COL_TARGET_FILE, targetFiles);
+
+                values.clear();
+                for (DownloadTask task : contentInfoTasks) {
+                    values.put(COL_FILE_LENGTH, task.contentLength);
+                    values.put(COL_FILE_ETAG, task.etag);
+                    if (task.rowId >= 0) {
+                        db.update(TBL_DOWNLOAD_FILES, values, "ROWID==?", new String[]{String.valueOf(task.rowId)});
+                    } else {
+                        db.update(TBL_DOWNLOAD_FILES, values, COL_TARGET_FILE + "==?", new String[]{task.targetFile.getAbsolutePath()});
+                    }
+                }
+
+                values.clear();
+                for (DownloadTask task : rangeTasks) {
+                    values.put(COL_FILE_RANGE_DONE, task.rangeDone);
+                    db.update(TBL_DOWNLOAD_FILES, values, "ROWID==?", new String[]{String.valueOf(task.rowId)});
+                }
                 return true;
             }
         });
     }
 
+    private static void updateFilesIn(SQLiteDatabase db, ContentValues values, String column, List<String> keys) {
+        for (int start = 0; start < keys.size(); start += MAX_SQL_ARGS) {
+            List<String> batch = keys.subList(start, Math.min(start + MAX_SQL_ARGS, keys.size()));
+            db.updateWithOnConflict(TBL_DOWNLOAD_FILES, values, column + " IN " + placeholders(batch.size()),
+                    batch.toArray(new String[batch.size()]), SQLiteDatabase.CONFLICT_IGNORE);
+        }
+    }
+
     synchronized DefaultDownloadItem findItemInDB(String itemId) {
 
         SQLiteDatabase db = database;
@@ -419,6 +596,9 @@ class Database {
                         case COL_ITEM_DATA_DIR:
                             values.put(COL_ITEM_DATA_DIR, item.getDataDir());
                             break;
+                        case COL_ITEM_PRIORITY:
+                            values.put(COL_ITEM_PRIORITY, item.getPriority());
+                            break;
 
                         // invalid -- can't change those. 
                         case COL_ITEM_ID:
@@ -471,6 +651,9 @@ class Database {
                 case COL_ITEM_FINISH_TIME:
                     item.setFinishedTime(cursor.getLong(i));
                     break;
+                case COL_ITEM_PRIORITY:
+                    item.setPriorityValue(cursor.getInt(i));
+                    break;
             }
         }
         return item;
@@ -483,7 +666,7 @@ class Database {
         for (int i = 0; i < states.length; i++) {
             stateNames[i] = states[i].name();
         }
-        String placeholders = "(" + TextUtils.join(",", Collections.nCopies(stateNames.length, "?")) + ")";
+        String placeholders = placeholders(stateNames.length);
 
         ArrayList<DefaultDownloadItem> items = new ArrayList<>();
 
@@ -542,6 +725,42 @@ class Database {
         return count;
     }
 
+    // Pending file count per track of the item. Files without a track are counted under the null key.
+    synchronized Map<String, Integer> countPendingFilesByTrack(String itemId) {
+        Map<String, Integer> counts = new HashMap<>();
+        Cursor cursor = null;
+        try {
+            String sql = "SELECT " + COL_TRACK_REL_ID + ", COUNT(*) FROM " + TBL_DOWNLOAD_FILES +
+                    " WHERE " + COL_ITEM_ID + "==? AND " + COL_FILE_COMPLETE + "==0 GROUP BY " + COL_TRACK_REL_ID;
+            cursor = database.rawQuery(sql, new String[]{itemId});
+            while (cursor.moveToNext()) {
+                counts.put(cursor.isNull(0) ? null : cursor.getString(0), cursor.getInt(1));
+            }
+        } finally {
+            safeClose(cursor);
+        }
+        return counts;
+    }
+
+    // Pending file count per DownloadSizeEstimator group (track and file extension) of the item.
+    synchronized Map<String, Integer> countPendingFilesByGroup(String itemId) {
+        Map<String, Integer> counts = new HashMap<>();
+        Cursor cursor = null;
+        try {
+            cursor = database.query(TBL_DOWNLOAD_FILES, new String[]{COL_TRACK_REL_ID, COL_TARGET_FILE},
+                    COL_ITEM_ID + "==? AND " + COL_FILE_COMPLETE + "==0", new String[]{itemId}, null, null, null);
+            while (cursor.moveToNext()) {
+                String trackId = cursor.isNull(0) ? null : cursor.getString(0);
+                String key = DownloadSizeEstimator.groupKey(trackId, new File(cursor.getString(1)).getName());
+                Integer count = counts.get(key);
+                counts.put(key, count == null ? 1 : count + 1);
+            }
+        } finally {
+            safeClose(cursor);
+        }
+        return counts;
+    }
+
     synchronized void addTracks(final DefaultDownloadItem item, final List<DashTrack> availableTracks, final List<DashTrack> selectedTracks) {
         doTransaction(new Transaction() {
             @Override
@@ -611,6 +830,62 @@ class Database {
         return tracks;
     }
 
+    // The total length of the byte ranges of the item's target files (absolute paths).
+    synchronized long sumRangeBytes(String itemId, List<String> targetFiles) {
+        long sum = 0;
+        // One argument is the item id.
+        int batchSize = MAX_SQL_ARGS - 1;
+        for (int start = 0; start < targetFiles.size(); start += batchSize) {
+            List<String> batch = targetFiles.subList(start, Math.min(start + batchSize, targetFiles.size()));
+            List<String> args = new ArrayList<>(batch.size() + 1);
+            args.add(itemId);
+            args.addAll(batch);
+            Cursor cursor = null;
+            try {
+                String sql = "SELECT SUM(" + COL_FILE_RANGE_END + "-" + COL_FILE_RANGE_START + "+1) FROM " + TBL_DOWNLOAD_FILES +
+                        " WHERE " + COL_ITEM_ID + "==? AND " + COL_FILE_RANGE_END + ">=0 AND " + COL_TARGET_FILE + " IN " + placeholders(batch.size());
+                cursor = database.rawQuery(sql, args.toArray(new String[args.size()]));
+                if (cursor.moveToFirst()) {
+                    sum += cursor.getLong(0);
+                }
+            } finally {
+                safeClose(cursor);
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Delete the item's rows of removedFiles, and move movedFiles to another track.
+     * @param removedFiles absolute paths of target files; all byte ranges of a file are deleted.
+     * @param movedFiles absolute path of a target file -> the relative id of its new track.
+     */
+    synchronized void removeTrackFiles(final String itemId, final List<String> removedFiles, final Map<String, String> movedFiles) {
+        doTransaction(new Transaction() {
+            @Override
+            public boolean execute(SQLiteDatabase db) {
+                // One argument is the item id.
+                int batchSize = MAX_SQL_ARGS - 1;
+                for (int start = 0; start < removedFiles.size(); start += batchSize) {
+                    List<String> batch = removedFiles.subList(start, Math.min(start + batchSize, removedFiles.size()));
+                    List<String> args = new ArrayList<>(batch.size() + 1);
+                    args.add(itemId);
+                    args.addAll(batch);
+                    db.delete(TBL_DOWNLOAD_FILES, COL_ITEM_ID + "==? AND " + COL_TARGET_FILE + " IN " + placeholders(batch.size()),
+                            args.toArray(new String[args.size()]));
+                }
+
+                ContentValues values = new ContentValues(1);
+                for (Map.Entry<String, String> entry : movedFiles.entrySet()) {
+                    values.put(COL_TRACK_REL_ID, entry.getValue());
+                    db.update(TBL_DOWNLOAD_FILES, values, COL_ITEM_ID + "==? AND " + COL_TARGET_FILE + "==?",
+                            strings(itemId, entry.getKey()));
+                }
+                return true;
+            }
+        });
+    }
+
     synchronized void updateTracksState(final String itemId, final List<DashTrack> tracks, final DashDownloader.TrackState newState) {
         doTransaction(new Transaction() {
             @Override
@@ -18,15 +18,17 @@ class DefaultDownloadItem implements DownloadItem {
     private final String itemId;
     private final String contentUrl;
 
-    private DefaultDownloadService service;
-    private DownloadState state = DownloadState.NEW;
+    // Instances are shared (see ItemCache), so fields touched by the download threads are volatile.
+    private volatile DefaultDownloadService service;
+    private volatile DownloadState state = DownloadState.NEW;
     private long addedTime;
     private long finishedTime;
-    private long estimatedSizeBytes;
-    private long downloadedSizeBytes;
+    private volatile long estimatedSizeBytes;
+    private volatile long downloadedSizeBytes;
     
-    private String dataDir;
-    private String playbackPath;
+    private volatile String dataDir;
+    private volatile String playbackPath;
+    private volatile int priority = PRIORITY_NORMAL;
     
     private TrackSelector trackSelector;
 
@@ -82,7 +84,7 @@ class DefaultDownloadItem implements DownloadItem {
         this.finishedTime = finishedTime;
     }
 
-    long incDownloadBytes(long downloadedBytes) {
+    synchronized long incDownloadBytes(long downloadedBytes) {
         long updated = downloadedSizeBytes + downloadedBytes;
         this.downloadedSizeBytes = updated;
         return updated;
@@ -143,29 +145,50 @@ class DefaultDownloadItem implements DownloadItem {
     @Override
     public TrackSelector getTrackSelector() {
         
+        // If selection is in progress, return the current selector. The initial selection of
+        // both DASH and HLS happens while the metadata is loaded.
+        if (trackSelector != null) {
+            return trackSelector;
+        }
+
         if (playbackPath ==null || !playbackPath.endsWith(".mpd")) {
-            Log.w(TAG, "Track selection is only supported for dash");
+            Log.w(TAG, "Changing the selected tracks is only supported for dash");
             return null;
         }
         
-        // If selection is in progress, return the current selector.
-        
-        if (trackSelector == null) {
-            DashDownloadUpdater dashDownloadUpdater = null;
-            try {
-                dashDownloadUpdater = new DashDownloadUpdater(this);
-            } catch (IOException e) {
-                Log.e(TAG, "Error initializing DashDownloadUpdater", e);
-                return null;
-            }
-            TrackSelector trackSelector = dashDownloadUpdater.getTrackSelector();
-
-            setTrackSelector(trackSelector);
+        DashDownloadUpdater dashDownloadUpdater = null;
+        try {
+            dashDownloadUpdater = new DashDownloadUpdater(this);
+        } catch (IOException e) {
+            Log.e(TAG, "Error initializing DashDownloadUpdater", e);
+            return null;
         }
+        TrackSelector trackSelector = dashDownloadUpdater.getTrackSelector();
+
+        setTrackSelector(trackSelector);
 
         return trackSelector;
     }
 
+    @Override
+    public int getPriority() {
+        return priority;
+    }
+
+    @Override
+    public void setPriority(int priority) {
+        service.setItemPriority(this, priority);
+    }
+
+    void setPriorityValue(int priority) {
+        this.priority = priority;
+    }
+
+    @Override
+    public void prioritizeTimeRange(long startMs, long endMs) {
+        service.prioritizeTimeRange(this.getItemId(), startMs, endMs);
+    }
+
     void setTrackSelector(TrackSelector trackSelector) {
         this.trackSelector = trackSelector;
     }
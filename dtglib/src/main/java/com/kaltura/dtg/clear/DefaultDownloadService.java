@@ -7,16 +7,15 @@ import android.database.SQLException;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.net.Uri;
-import android.os.AsyncTask;
 import android.os.Binder;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Message;
 import android.support.annotation.Nullable;
 import android.text.TextUtils;
 import android.util.Log;
 
-import com.kaltura.android.exoplayer.hls.Variant;
 import com.kaltura.dtg.ContentManager;
 import com.kaltura.dtg.DownloadItem;
 import com.kaltura.dtg.DownloadState;
@@ -32,34 +31,46 @@ import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.TreeSet;
-import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.FutureTask;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class DefaultDownloadService extends Service {
     private static final String TAG = "DefaultDownloadService";
+    private static final long CONCURRENCY_INTERVAL_MILLIS = 3000;
+    private static final int MSG_TASK_PROGRESS = 1;
+    private static final DownloadTask.State[] TASK_STATES = DownloadTask.State.values();
     private final Context context;  // allow mocking
     private LocalBinder localBinder = new LocalBinder();
     private Database database;
+    private ItemCache itemCache;
+    private ProgressJournal progressJournal;
+    private final PendingFilesCounter pendingFilesCounter = new PendingFilesCounter();
+    private final DownloadSizeEstimator sizeEstimator = new DownloadSizeEstimator();
     private File downloadsDir;
     private boolean started;
     private boolean stopping;
     private DownloadStateListener downloadStateListener;
-    private ExecutorService executorService;
-    private ItemFutureMap futureMap = new ItemFutureMap();
+    private DownloadScheduler scheduler;
+    private ConcurrencyController concurrencyController;
+    private long concurrencyEvaluatedAt;
+    private final BandwidthLimiter bandwidthLimiter = new BandwidthLimiter();
+    private BufferPool bufferPool;
+    private ExecutorService metadataExecutor;
+    // Small requests sent from the metadata threads: HEAD requests of size estimation and the
+    // index ranges of DASH segments.
+    private ExecutorService metadataRequestExecutor;
     private Handler listenerHandler = null;
     private Handler taskProgressHandler = null;
+    private ProgressDispatcher progressDispatcher;
     private ContentManager.Settings settings;
 
-    private HashSet<String> removedItems = new HashSet<>();
-    private HashSet<String> pausedItems = new HashSet<>();
+    // Running tasks and the paused/removed flags of the items; used from all threads.
+    private final TaskRegistry taskRegistry = new TaskRegistry();
 
     public DefaultDownloadService(Context context) {
         this.context = context;
@@ -71,25 +82,66 @@ public class DefaultDownloadService extends Service {
 
     private final DownloadTask.Listener mDownloadTaskListener = new DownloadTask.Listener() {
         @Override
-        public void onTaskProgress(final DownloadTask task, final DownloadTask.State newState, final int newBytes, final Exception stopError) {
+        public void onTaskProgress(DownloadTask task, DownloadTask.State newState, int newBytes, Exception stopError) {
             if (taskProgressHandler.getLooper().getThread().isAlive()) {
-                taskProgressHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        DefaultDownloadService.this.onTaskProgress(task, newState, newBytes, stopError);
-                    }
-                });
+                // A pooled message instead of a Runnable per report; an error is rare enough to wrap.
+                Object obj = stopError == null ? task : new TaskError(task, stopError);
+                taskProgressHandler.obtainMessage(MSG_TASK_PROGRESS, newBytes, newState.ordinal(), obj).sendToTarget();
+            }
+        }
+
+        @Override
+        public void onTaskContentInfo(DownloadTask task) {
+            if (!stopping && !taskRegistry.isRemoved(task.itemId)) {
+                progressJournal.recordContentInfo(task);
             }
         }
     };
 
+    private final Handler.Callback taskProgressCallback = new Handler.Callback() {
+        @Override
+        public boolean handleMessage(Message msg) {
+            if (msg.what != MSG_TASK_PROGRESS) {
+                return false;
+            }
+            if (msg.obj instanceof TaskError) {
+                TaskError taskError = (TaskError) msg.obj;
+                onTaskProgress(taskError.task, TASK_STATES[msg.arg2], msg.arg1, taskError.error);
+            } else {
+                onTaskProgress((DownloadTask) msg.obj, TASK_STATES[msg.arg2], msg.arg1, null);
+            }
+            return true;
+        }
+    };
+
+    private final Runnable adjustConcurrency = new Runnable() {
+        @Override
+        public void run() {
+            if (stopping || concurrencyController == null) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            int concurrency = concurrencyController.evaluate(now - concurrencyEvaluatedAt, scheduler.isSaturated());
+            concurrencyEvaluatedAt = now;
+            scheduler.setConcurrency(concurrency);
+            taskProgressHandler.postDelayed(this, CONCURRENCY_INTERVAL_MILLIS);
+        }
+    };
+
     private void onTaskProgress(DownloadTask task, DownloadTask.State newState, int newBytes, final Exception stopError) {
         if (stopping) {
             return;
         }
 
+        if (concurrencyController != null) {
+            concurrencyController.onBytes(newBytes);
+            if (newState == DownloadTask.State.ERROR || (newState == DownloadTask.State.STOPPED && stopError != null)) {
+                concurrencyController.onError();
+            }
+        }
+
         final String itemId = task.itemId;
-        if (removedItems.contains(itemId)) {
+        if (taskRegistry.isRemoved(itemId)) {
             // Ignore this report.
             return;
         }
@@ -101,66 +153,63 @@ public class DefaultDownloadService extends Service {
         }
 
         int pendingCount = -1;
+        DownloadTask completedTask = null;
         if (newState == DownloadTask.State.COMPLETED) {
-            database.markTaskAsComplete(task);
-            pendingCount = countPendingFiles(itemId, null);
+            pendingCount = pendingFilesCounter.decrement(task);
+            if (pendingCount < 0) {
+                // Counts were not loaded, go to the db.
+                database.markTasksAsComplete(Collections.singletonList(task));
+                pendingCount = database.countPendingFiles(itemId);
+            } else {
+                // Marked in the db with the next journal flush.
+                completedTask = task;
+            }
             Log.i(TAG, "Pending tasks for item: " + pendingCount);
         }
 
         if (newState == DownloadTask.State.ERROR) {
             Log.d(TAG, "Task has failed; cancelling item " + itemId);
-            item.setState(DownloadState.FAILED);
-            database.updateItemState(itemId, DownloadState.FAILED);
-            futureMap.cancelItem(itemId);
-            listenerHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    downloadStateListener.onDownloadFailure(item, stopError);
-                }
-            });
+            progressJournal.flush();
+            setItemState(item, DownloadState.FAILED);
+            scheduler.cancelItem(itemId);
+            progressDispatcher.failed(item, stopError);
             return;
         }
 
-        final long totalBytes = item.incDownloadBytes(newBytes);
-        updateItemInfoInDB(item, Database.COL_ITEM_DOWNLOADED_SIZE);
+        item.incDownloadBytes(newBytes);
+        if (newState == DownloadTask.State.COMPLETED) {
+            // Saved with the downloaded size.
+            item.setEstimatedSizeBytes(sizeEstimator.onTaskCompleted(item, task, pendingCount));
+        }
+        if (task.isRanged() && newBytes != 0) {
+            progressJournal.recordRangeProgress(task);
+        }
+        progressJournal.record(item, newBytes, completedTask);
 
         if (pendingCount == 0) {
             // We finished the last (or only) chunk of the item.
+            progressJournal.flush();
+            pendingFilesCounter.remove(itemId);
+            sizeEstimator.forget(itemId);
             database.setDownloadFinishTime(itemId);
 
-            item.setState(DownloadState.COMPLETED);
-            database.updateItemState(item.getItemId(), DownloadState.COMPLETED);
-            listenerHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    downloadStateListener.onDownloadComplete(item);
-                }
-            });
+            setItemState(item, DownloadState.COMPLETED);
+            progressDispatcher.completed(item);
         } else if (item.getState() != DownloadState.PAUSED && newState == DownloadTask.State.STOPPED) {
-            if (!pausedItems.contains(item.getItemId())) {
-                item.setState(DownloadState.PAUSED);
-                database.updateItemState(item.getItemId(), DownloadState.PAUSED);
+            if (!taskRegistry.isPaused(item.getItemId())) {
+                progressJournal.flush();
+                setItemState(item, DownloadState.PAUSED);
 
-                final DownloadStateReason stateReason;
+                DownloadStateReason stateReason;
                 if (stopError instanceof SocketException || stopError instanceof SocketTimeoutException) {
                     stateReason = DownloadStateReason.PAUSED_BY_NETWORK;
                 } else {
                     stateReason = DownloadStateReason.PAUSED_BY_ERROR;
                 }
-                listenerHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        downloadStateListener.onDownloadPause(item, stateReason, stopError);
-                    }
-                });
+                progressDispatcher.paused(item, stateReason, stopError);
             }
         } else if (pendingCount > 0 || newState == DownloadTask.State.IN_PROGRESS) {
-            listenerHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    downloadStateListener.onProgressChange(item, totalBytes);
-                }
-            });
+            progressDispatcher.progress(item);
         }
 
     }
@@ -235,40 +284,32 @@ public class DefaultDownloadService extends Service {
         HandlerThread listenerThread = new HandlerThread("DownloadStateListener");
         listenerThread.start();
         listenerHandler = new Handler(listenerThread.getLooper());
+        progressDispatcher = new ProgressDispatcher(listenerThread.getLooper(),
+                downloadStateListener != null ? downloadStateListener : noopListener,
+                settings.progressReportIntervalMillis);
 
         // HandlerThread for handling task progress updates
         listenerThread = new HandlerThread("DownloadTaskListener");
         listenerThread.start();
-        taskProgressHandler = new Handler(listenerThread.getLooper());
+        taskProgressHandler = new Handler(listenerThread.getLooper(), taskProgressCallback);
     }
 
     private void stopHandlerThreads() {
         listenerHandler.getLooper().quit();
         listenerHandler = null;
+        progressDispatcher = null;
         taskProgressHandler.getLooper().quit();
         taskProgressHandler = null;
     }
 
     void pauseItemDownload(final String itemId) {
         if (itemId != null) {
-            futureMap.cancelItem(itemId);
+            scheduler.cancelItem(itemId);
         } else {
-            futureMap.cancelAll();
+            scheduler.cancelAll();
         }
-        // Maybe add PAUSE_ALL with executorService.purge(); and remove futures
     }
 
-    void downloadChunks(ArrayList<DownloadTask> chunks, String itemId) {
-        if (chunks == null) {
-            return;
-        }
-        for (DownloadTask task : chunks) {
-            task.itemId = itemId;
-            FutureTask future = futureTask(itemId, task);
-            executorService.execute(future);
-            futureMap.add(itemId, future);
-        }
-    }
 
     void updateItemInfoInDB(DefaultDownloadItem item, String... columns) {
         if (database != null) {
@@ -276,6 +317,12 @@ public class DefaultDownloadService extends Service {
         }
     }
 
+    // Write-through: the cached item is changed first, then the db.
+    private void setItemState(DefaultDownloadItem item, DownloadState state) {
+        item.setState(state);
+        database.updateItemState(item.getItemId(), state);
+    }
+
     private void assertStarted() {
         if (!started) {
             throw new IllegalStateException("Service not started");
@@ -298,10 +345,40 @@ public class DefaultDownloadService extends Service {
 
         File dbFile = new File(dataDir, "downloads.db");
         database = new Database(dbFile, context);
+        itemCache = new ItemCache(database, this);
 
         startHandlerThreads();
 
-        executorService = Executors.newFixedThreadPool(settings.maxConcurrentDownloads);
+        bandwidthLimiter.setGlobalLimit(settings.maxBytesPerSecond);
+
+        int maxThreads = settings.maxConcurrentDownloads;
+        if (settings.adaptiveConcurrency) {
+            concurrencyController = new ConcurrencyController(settings.adaptiveConcurrencyFloor,
+                    settings.adaptiveConcurrencyCeiling, settings.maxConcurrentDownloads);
+            maxThreads = Math.max(settings.adaptiveConcurrencyFloor, settings.adaptiveConcurrencyCeiling);
+        }
+
+        bufferPool = new BufferPool(settings.downloadBufferSize, maxThreads);
+
+        // Manifests of different items are fetched in parallel; each item's requests stay in order.
+        metadataExecutor = Executors.newFixedThreadPool(Math.max(1, settings.maxConcurrentMetadataLoads));
+        metadataRequestExecutor = Executors.newFixedThreadPool(DownloadSizeEstimator.SAMPLE_THREADS);
+
+        progressJournal = new ProgressJournal(database, taskProgressHandler,
+                settings.progressFlushIntervalMillis, settings.progressFlushThresholdBytes);
+
+        scheduler = new DownloadScheduler(maxThreads, settings.maxConcurrentDownloadsPerItem, taskRegistry,
+                new DownloadScheduler.TaskRunner() {
+                    @Override
+                    public void run(DownloadTask task) throws Exception {
+                        runTask(task);
+                    }
+                });
+        if (concurrencyController != null) {
+            scheduler.setConcurrency(concurrencyController.getConcurrency());
+            concurrencyEvaluatedAt = System.currentTimeMillis();
+            taskProgressHandler.postDelayed(adjustConcurrency, CONCURRENCY_INTERVAL_MILLIS);
+        }
         started = true;
     }
 
@@ -319,16 +396,24 @@ public class DefaultDownloadService extends Service {
         }
 
         taskProgressHandler.getLooper().quit();
-        executorService.shutdownNow();
-
-        try {
-            executorService.awaitTermination(10, TimeUnit.SECONDS);
-        } catch (InterruptedException e) {
-            Log.e(TAG, "stop: awaitTerminationInterrupted", e);
-        }
+        scheduler.shutdown(10);
+        metadataExecutor.shutdownNow();
+        metadataExecutor = null;
+        metadataRequestExecutor.shutdownNow();
+        metadataRequestExecutor = null;
+        scheduler = null;
+        concurrencyController = null;
         stopHandlerThreads();
 
+        // Save the progress of the stopped tasks.
+        progressJournal.close();
+        progressJournal = null;
+
         // close db
+        pendingFilesCounter.clear();
+        sizeEstimator.clear();
+        itemCache.clear();
+        itemCache = null;
         database.close();
         database = null;
 
@@ -348,31 +433,80 @@ public class DefaultDownloadService extends Service {
     public void loadItemMetadata(final DefaultDownloadItem item) {
         assertStarted();
 
-        AsyncTask.execute(new Runnable() {
+        metadataExecutor.execute(new Runnable() {
             @Override
             public void run() {
-                try {
-                    if (!removedItems.contains(item.getItemId())) {
-                        downloadMetadata(item);
-                        item.setState(DownloadState.INFO_LOADED);
-                        updateItemInfoInDB(item,
-                                Database.COL_ITEM_STATE, Database.COL_ITEM_ESTIMATED_SIZE,
-                                Database.COL_ITEM_PLAYBACK_PATH);
-                        downloadStateListener.onDownloadMetadata(item, null);
-                    }
-                } catch (IOException e) {
-                    Log.e(TAG, "Failed to download metadata for " + item.getItemId() + ", removed: " + removedItems.contains(item.getItemId()), e);
-                    if (!removedItems.contains(item.getItemId())) {
-                        downloadStateListener.onDownloadMetadata(item, e);
-                    }
-                } catch (SQLException e) {
-                    Log.e(TAG, "Failed to save metadata for " + item.getItemId() + ", removed: " + removedItems.contains(item.getItemId()), e);
-                    if (!removedItems.contains(item.getItemId())) {
-                        downloadStateListener.onDownloadMetadata(item, e);
+                loadMetadataNow(item);
+            }
+        });
+    }
+
+    /**
+     * Load the metadata of several items at once, on the metadata pool. Every item still gets its
+     * own {@link DownloadStateListener#onDownloadMetadata(DownloadItem, Exception)}; the listener
+     * is called once, after all of them, with each item's error (null if loaded).
+     */
+    public void loadItemsMetadata(final List<DefaultDownloadItem> items, @Nullable final ContentManager.OnMetadataLoadedListener listener) {
+        assertStarted();
+
+        final Map<DownloadItem, Exception> results = new LinkedHashMap<>();
+        for (DefaultDownloadItem item : items) {
+            results.put(item, null);
+        }
+        final AtomicInteger remaining = new AtomicInteger(items.size());
+
+        for (final DefaultDownloadItem item : items) {
+            metadataExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    // Count the item even if loading threw, or the listener would never be called.
+                    Exception error = new IllegalStateException("Metadata loading did not finish");
+                    try {
+                        error = loadMetadataNow(item);
+                    } finally {
+                        synchronized (results) {
+                            results.put(item, error);
+                        }
+                        if (remaining.decrementAndGet() == 0 && listener != null) {
+                            listener.onMetadataLoaded(results);
+                        }
                     }
                 }
+            });
+        }
+        if (items.isEmpty() && listener != null) {
+            listener.onMetadataLoaded(results);
+        }
+    }
+
+    // Returns the error, or null if the metadata was loaded (or the item was removed meanwhile).
+    private Exception loadMetadataNow(DefaultDownloadItem item) {
+        try {
+            if (!taskRegistry.isRemoved(item.getItemId())) {
+                downloadMetadata(item);
+                item.setState(DownloadState.INFO_LOADED);
+                updateItemInfoInDB(item,
+                        Database.COL_ITEM_STATE, Database.COL_ITEM_ESTIMATED_SIZE,
+                        Database.COL_ITEM_PLAYBACK_PATH);
+                downloadStateListener.onDownloadMetadata(item, null);
             }
-        });
+            return null;
+        } catch (IOException e) {
+            return metadataFailed(item, "Failed to download metadata for ", e);
+        } catch (SQLException e) {
+            return metadataFailed(item, "Failed to save metadata for ", e);
+        } catch (RuntimeException e) {
+            // E.g. a malformed manifest that the parser didn't turn into an IOException.
+            return metadataFailed(item, "Failed to parse metadata for ", e);
+        }
+    }
+
+    private Exception metadataFailed(DefaultDownloadItem item, String message, Exception e) {
+        Log.e(TAG, message + item.getItemId() + ", removed: " + taskRegistry.isRemoved(item.getItemId()), e);
+        if (!taskRegistry.isRemoved(item.getItemId())) {
+            downloadStateListener.onDownloadMetadata(item, e);
+        }
+        return e;
     }
 
     public File getItemDataDir(String itemId) {
@@ -400,7 +534,12 @@ public class DefaultDownloadService extends Service {
     }
 
     private void downloadMetadataDash(DefaultDownloadItem item, File itemDataDir) throws IOException {
-        final DashDownloader dashDownloader = new DashDownloadCreator(item.getContentURL(), itemDataDir);
+        final DashDownloadCreator dashDownloader = new DashDownloadCreator(item.getContentURL(), itemDataDir);
+        dashDownloader.setIndexExecutor(metadataRequestExecutor);
+        long budget = getTrackSelectionBudget(item.getItemId());
+        if (budget != TrackSelectionPolicy.UNLIMITED) {
+            dashDownloader.selectDefaultTracks(budget);
+        }
 
         // Handle service being stopped
         if (isServiceStopped()) {
@@ -417,63 +556,157 @@ public class DefaultDownloadService extends Service {
 
         item.setTrackSelector(null);
 
+        LinkedHashSet<DownloadTask> downloadTasks = dashDownloader.getDownloadTasks();
+        //Log.d(TAG, "tasks:" + downloadTasks);
+
+        long estimatedDownloadSize = DownloadSizeEstimator.estimate(downloadTasks,
+                dashDownloader.getEstimatedDownloadSize(), settings.sizeEstimationSampleCount, metadataRequestExecutor);
+        assertEnoughSpace(item.getItemId(), estimatedDownloadSize);
+
         List<DashTrack> availableTracks = dashDownloader.getAvailableTracks();
         List<DashTrack> selectedTracks = dashDownloader.getSelectedTracks();
 
         database.addTracks(item, availableTracks, selectedTracks);
 
-        long estimatedDownloadSize = dashDownloader.getEstimatedDownloadSize();
         item.setEstimatedSizeBytes(estimatedDownloadSize);
 
-        LinkedHashSet<DownloadTask> downloadTasks = dashDownloader.getDownloadTasks();
-        //Log.d(TAG, "tasks:" + downloadTasks);
-
         item.setPlaybackPath(dashDownloader.getPlaybackPath());
 
         addDownloadTasksToDB(item, new ArrayList<>(downloadTasks));
     }
 
+    // Bytes the default tracks of a new item may take; see Settings.trackSelectionMaxBytes.
+    private long getTrackSelectionBudget(String itemId) {
+        long budget = settings.trackSelectionMaxBytes > 0 ? settings.trackSelectionMaxBytes : TrackSelectionPolicy.UNLIMITED;
+        if (settings.trackSelectionFreeSpaceFraction > 0) {
+            long freeBytes = (long) (downloadsDir.getUsableSpace() * settings.trackSelectionFreeSpaceFraction) - getPendingBytes(itemId);
+            budget = Math.min(budget, Math.max(freeBytes, 0));
+        }
+        return budget;
+    }
+
+    // Bytes the items other than itemId still have to download, by their estimated sizes.
+    private long getPendingBytes(String itemId) {
+        long pendingBytes = 0;
+        DownloadState[] states = {DownloadState.INFO_LOADED, DownloadState.IN_PROGRESS, DownloadState.PAUSED};
+        for (DefaultDownloadItem other : getDownloads(states)) {
+            if (!other.getItemId().equals(itemId)) {
+                pendingBytes += Math.max(other.getEstimatedSizeBytes() - other.getDownloadedSizeBytes(), 0);
+            }
+        }
+        return pendingBytes;
+    }
+
+    private void assertEnoughSpace(String itemId, long estimatedSizeBytes) throws IOException {
+        if (settings.trackSelectionFreeSpaceFraction <= 0) {
+            return;
+        }
+        long freeBytes = downloadsDir.getUsableSpace() - getPendingBytes(itemId);
+        if (estimatedSizeBytes > freeBytes) {
+            throw new IOException(Utils.format("Not enough storage for %s: %d bytes needed, %d available",
+                    itemId, estimatedSizeBytes, freeBytes));
+        }
+    }
+
     private boolean isServiceStopped() {
         return stopping || !started;
     }
 
     private void downloadMetadataSimple(URL url, DefaultDownloadItem item, File itemDataDir) throws IOException {
-        long length = Utils.httpHeadGetLength(url);
+        Utils.HeadInfo head = Utils.httpHead(url);
+        long length = head.length;
 
         String fileNameFullPath = Utils.getHashedFileName(url.getPath());
         File targetFile = new File(itemDataDir, fileNameFullPath);
-        DownloadTask downloadTask = new DownloadTask(url, targetFile);
+
+        // Large files are downloaded over several connections, one byte range each.
+        int rangeCount = 1;
+        if (head.acceptsRanges && length > 0 && settings.segmentedDownloadMinRangeBytes > 0) {
+            rangeCount = (int) Math.min(settings.segmentedDownloadRanges, length / settings.segmentedDownloadMinRangeBytes);
+        }
+
+        List<DownloadTask> downloadTasks;
+        if (rangeCount > 1) {
+            downloadTasks = DownloadTask.createRangeTasks(url, targetFile, length, head.etag, rangeCount);
+        } else {
+            downloadTasks = Collections.singletonList(new DownloadTask(url, targetFile));
+        }
+
+        assertEnoughSpace(item.getItemId(), length);
 
         item.setEstimatedSizeBytes(length);
         item.setPlaybackPath(fileNameFullPath);
 
-        addDownloadTasksToDB(item, Collections.singletonList(downloadTask));
+        addDownloadTasksToDB(item, downloadTasks);
     }
 
     void addDownloadTasksToDB(DefaultDownloadItem item, List<DownloadTask> tasks) {
         // Filter-out things that are already
         database.addDownloadTasksToDB(item, tasks);
+
+        if (pendingFilesCounter.isLoaded(item.getItemId())) {
+            // New files were added to a running item; recount and pick them up.
+            loadPendingFilesCount(item.getItemId());
+            scheduler.tasksAdded(item.getItemId());
+        }
+    }
+
+    long sumRangeBytesInDB(DefaultDownloadItem item, List<String> targetFiles) {
+        return database.sumRangeBytes(item.getItemId(), targetFiles);
+    }
+
+    void removeTrackFilesFromDB(DefaultDownloadItem item, List<String> removedFiles, Map<String, String> movedFiles) {
+        database.removeTrackFiles(item.getItemId(), removedFiles, movedFiles);
+
+        if (pendingFilesCounter.isLoaded(item.getItemId())) {
+            // Files were removed from a running item; recount and drop its queued tasks.
+            loadPendingFilesCount(item.getItemId());
+            scheduler.tasksRemoved(item.getItemId());
+        }
+    }
+
+    private void loadPendingFilesCount(String itemId) {
+        // Completed tasks still in the journal would be counted as pending.
+        progressJournal.flush();
+        pendingFilesCounter.load(itemId, database.countPendingFilesByTrack(itemId));
+        sizeEstimator.load(itemId, database.countPendingFilesByGroup(itemId));
     }
 
     private void downloadMetadataHLS(DefaultDownloadItem item, File itemDataDir) throws IOException {
         HLSParser hlsParser = new HLSParser(item, itemDataDir);
         hlsParser.parseMaster();
+        long budget = getTrackSelectionBudget(item.getItemId());
+        if (budget != TrackSelectionPolicy.UNLIMITED) {
+            hlsParser.selectDefaultTracks(budget);
+        }
 
-        // Select best bitrate
-        TreeSet<Variant> sortedVariants = hlsParser.getSortedVariants();
-        Variant selectedVariant = sortedVariants.first();   // first == highest bitrate
-        hlsParser.selectVariant(selectedVariant);
+        // Handle service being stopped
+        if (isServiceStopped()) {
+            Log.w(TAG, "Service not started or being stopped, ignoring HLSParser");
+            return;
+        }
 
-        hlsParser.parseVariant();
-        ArrayList<DownloadTask> encryptionKeys = hlsParser.createEncryptionKeyDownloadTasks();
-        ArrayList<DownloadTask> chunks = hlsParser.createSegmentDownloadTasks();
-        item.setEstimatedSizeBytes(hlsParser.getEstimatedSizeBytes());
+        // The best variant and the first audio and text renditions that fit are selected by default.
+        DownloadItem.TrackSelector trackSelector = hlsParser.getTrackSelector();
+        item.setTrackSelector(trackSelector);
+
+        downloadStateListener.onTracksAvailable(item, trackSelector);
+
+        hlsParser.apply();
+
+        item.setTrackSelector(null);
+
+        // All selected tracks are downloaded together.
+        ArrayList<DownloadTask> downloadTasks = hlsParser.createDownloadTasks();
+        long estimatedSize = DownloadSizeEstimator.estimate(downloadTasks, hlsParser.getEstimatedSizeBytes(),
+                settings.sizeEstimationSampleCount, metadataRequestExecutor);
+        assertEnoughSpace(item.getItemId(), estimatedSize);
+        item.setEstimatedSizeBytes(estimatedSize);
 
         // set playback path the the relative url path, excluding the leading slash.
         item.setPlaybackPath(hlsParser.getPlaybackPath());
 
-        addDownloadTasksToDB(item, encryptionKeys);
-        addDownloadTasksToDB(item, chunks);
+        addDownloadTasksToDB(item, downloadTasks);
         // TODO: handle db insertion errors
     }
 
@@ -483,7 +716,7 @@ public class DefaultDownloadService extends Service {
             throw new IllegalStateException("Can't download empty itemId");
         }
 
-        pausedItems.remove(itemId);
+        taskRegistry.clearPaused(itemId);
 
         final DefaultDownloadItem item = findItemImpl(itemId);
         if (item == null) {
@@ -494,31 +727,19 @@ public class DefaultDownloadService extends Service {
             throw new IllegalStateException("Can't start download while itemState == NEW");
         }
 
-        item.setState(DownloadState.IN_PROGRESS);
+        setItemState(item, DownloadState.IN_PROGRESS);
 
-        listenerHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                downloadStateListener.onDownloadStart(item);
-            }
-        });
+        progressDispatcher.started(item);
 
-        // Read download tasks from db
-        ArrayList<DownloadTask> chunksToDownload = database.readPendingDownloadTasksFromDB(itemId);
+        // The tasks themselves are paged from the db by the scheduler.
+        loadPendingFilesCount(itemId);
 
-        if (chunksToDownload.isEmpty()) {
-            database.updateItemState(itemId, DownloadState.COMPLETED);
-
-            listenerHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    downloadStateListener.onDownloadComplete(item);
-                }
-            });
+        if (pendingFilesCounter.get(itemId, null) == 0) {
+            setItemState(item, DownloadState.COMPLETED);
+            progressDispatcher.completed(item);
 
         } else {
-            downloadChunks(chunksToDownload, itemId);
-            database.updateItemState(itemId, DownloadState.IN_PROGRESS);
+            scheduler.enqueue(itemId, item.getPriority(), new PendingTaskPager(database, progressJournal, itemId));
         }
 
         return item.getState();
@@ -527,24 +748,46 @@ public class DefaultDownloadService extends Service {
     public void pauseDownload(final DefaultDownloadItem item, final DownloadStateReason reason) {
         assertStarted();
 
-        if (item != null && !pausedItems.contains(item.getItemId())) {
-            pausedItems.add(item.getItemId());
-            int countPendingFiles = database.countPendingFiles(item.getItemId());
+        if (item != null && taskRegistry.markPaused(item.getItemId())) {
+            int countPendingFiles = countPendingFiles(item.getItemId(), null);
             if (countPendingFiles > 0) {
                 pauseItemDownload(item.getItemId());
             }
 
-            item.setState(DownloadState.PAUSED);
-            database.updateItemState(item.getItemId(), DownloadState.PAUSED);
-            listenerHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    downloadStateListener.onDownloadPause(item, reason, null);
-                }
-            });
+            progressJournal.flush();
+            setItemState(item, DownloadState.PAUSED);
+            progressDispatcher.paused(item, reason, null);
         }
     }
 
+    public void setItemPriority(DefaultDownloadItem item, int priority) {
+        assertStarted();
+
+        item.setPriorityValue(priority);
+        updateItemInfoInDB(item, Database.COL_ITEM_PRIORITY);
+        scheduler.setItemPriority(item.getItemId(), priority);
+    }
+
+    public void prioritizeTimeRange(String itemId, long startMs, long endMs) {
+        assertStarted();
+
+        scheduler.prioritizeTimeRange(itemId, startMs, endMs);
+    }
+
+    public int getDownloadConcurrency() {
+        assertStarted();
+
+        return scheduler.getConcurrency();
+    }
+
+    public void setMaxBytesPerSecond(long bytesPerSecond) {
+        bandwidthLimiter.setGlobalLimit(bytesPerSecond);
+    }
+
+    public void setItemMaxBytesPerSecond(String itemId, long bytesPerSecond) {
+        bandwidthLimiter.setItemLimit(itemId, bytesPerSecond);
+    }
+
     public void resumeDownload(DefaultDownloadItem item) {
         assertStarted();
 
@@ -561,19 +804,19 @@ public class DefaultDownloadService extends Service {
             return;
         }
 
-        removedItems.add(item.getItemId());
+        taskRegistry.markRemoved(item.getItemId());
         pauseDownload(item, DownloadStateReason.PAUSED_FOR_REMOVING);
-
+        scheduler.forgetItem(item.getItemId());
+        bandwidthLimiter.removeItem(item.getItemId());
 
         deleteItemFiles(item.getItemId());
+        progressJournal.discard(item.getItemId());
+        pendingFilesCounter.remove(item.getItemId());
+        sizeEstimator.forget(item.getItemId());
         database.removeItemFromDB(item);
+        itemCache.remove(item.getItemId());
 
-        listenerHandler.post(new Runnable() {
-            @Override
-            public void run() {
-                downloadStateListener.onDownloadRemoved(item.getItemId());
-            }
-        });
+        progressDispatcher.removed(item.getItemId());
     }
 
     private void deleteItemFiles(String item) {
@@ -584,13 +827,7 @@ public class DefaultDownloadService extends Service {
     }
 
     private DefaultDownloadItem findItemImpl(String itemId) {
-        // TODO: cache items in memory?
-        DefaultDownloadItem item = database.findItemInDB(itemId);
-        if (item != null) {
-            item.setProvider(this);
-        }
-
-        return item;
+        return itemCache.get(itemId);
     }
 
     /**
@@ -605,14 +842,20 @@ public class DefaultDownloadService extends Service {
     }
 
     public long getDownloadedItemSize(@Nullable String itemId) {
-        return database.getDownloadedItemSize(itemId);
+        if (itemId != null) {
+            DefaultDownloadItem item = findItemImpl(itemId);
+            return item != null ? item.getDownloadedSizeBytes() : 0;
+        }
+        // The sum comes from the db, so write the pending progress first.
+        progressJournal.flush();
+        return database.getDownloadedItemSize(null);
     }
 
     public DefaultDownloadItem createItem(String itemId, String contentURL) {
         assertStarted();
 
         // if this item was just removed, unmark it as removed.
-        removedItems.remove(itemId);
+        taskRegistry.clearRemoved(itemId);
 
         DefaultDownloadItem item = findItemImpl(itemId);
         // If item already exists, return null.
@@ -637,23 +880,25 @@ public class DefaultDownloadService extends Service {
         database.addItemToDB(item, itemDataDir);
 
         item.setProvider(this);
+        itemCache.put(item);
         return item;
     }
 
     public void updateItemState(String itemId, DownloadState state) {
         assertStarted();
 
-        database.updateItemState(itemId, state);
+        DefaultDownloadItem item = findItemImpl(itemId);
+        if (item != null) {
+            setItemState(item, state);
+        } else {
+            database.updateItemState(itemId, state);
+        }
     }
 
     public List<DefaultDownloadItem> getDownloads(DownloadState[] states) {
         assertStarted();
 
-        ArrayList<DefaultDownloadItem> items = database.readItemsFromDB(states);
-
-        for (DefaultDownloadItem item : items) {
-            item.setProvider(this);
-        }
+        List<DefaultDownloadItem> items = itemCache.canonicalize(database.readItemsFromDB(states));
 
         return Collections.unmodifiableList(items);
     }
@@ -690,6 +935,9 @@ public class DefaultDownloadService extends Service {
             listener = noopListener;
         }
         downloadStateListener = listener;
+        if (progressDispatcher != null) {
+            progressDispatcher.setListener(listener);
+        }
     }
 
     public long getEstimatedItemSize(String itemId) {
@@ -706,65 +954,82 @@ public class DefaultDownloadService extends Service {
         database.updateTracksState(itemId, DashDownloader.flattenTrackList(tracksMap), state);
     }
 
+    // Null while the service is stopped.
+    ExecutorService getMetadataRequestExecutor() {
+        return metadataRequestExecutor;
+    }
+
+    Map<String, Integer> countPendingFilesByTrack(String itemId) {
+        // Completed tasks still in the journal would be counted as pending.
+        progressJournal.flush();
+        return database.countPendingFilesByTrack(itemId);
+    }
+
     int countPendingFiles(String itemId, @Nullable String trackId) {
-        return database.countPendingFiles(itemId, trackId);
+        int count = pendingFilesCounter.get(itemId, trackId);
+        if (count < 0) {
+            progressJournal.flush();
+            count = database.countPendingFiles(itemId, trackId);
+        }
+        return count;
     }
 
-    private FutureTask futureTask(final String itemId, final DownloadTask task) {
+    // Runs on a scheduler thread.
+    private void runTask(final DownloadTask task) throws InterruptedException {
+        final String itemId = task.itemId;
         task.setListener(mDownloadTaskListener);
         task.setDownloadSettings(settings);
-        Callable<Void> callable = new Callable<Void>() {
-            @Override
-            public Void call() throws Exception {
-                while (true) {
-                    if (!settings.useCellularData) {
-                        ConnectivityManager connManager = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
-                        if (connManager != null) {
-                            NetworkInfo wifi = connManager.getNetworkInfo(ConnectivityManager.TYPE_WIFI);
-                            if (!wifi.isConnected()) {
-                                DefaultDownloadItem item = findItem(itemId);
-                                if (item.getState() != DownloadState.PAUSED) {
-                                    pauseDownload(item, DownloadStateReason.PAUSED_BY_NETWORK);
-                                }
-                                break;
-                            }
-                        }
-                    }
-
-                    try {
-                        task.download();
-                        break;
-                    } catch (HttpRetryException e) {
-                        Log.d(TAG, "Task should be retried");
-                        Thread.sleep(2000);
-                        // continue
-                    } catch (IOException ex) {
+        task.setBandwidthLimiter(bandwidthLimiter);
+        task.setBufferPool(bufferPool);
+
+        while (true) {
+            if (!settings.useCellularData) {
+                ConnectivityManager connManager = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+                if (connManager != null) {
+                    NetworkInfo wifi = connManager.getNetworkInfo(ConnectivityManager.TYPE_WIFI);
+                    if (!wifi.isConnected()) {
                         DefaultDownloadItem item = findItem(itemId);
-                        // If it was a connection error, pauses the download
-                        ConnectivityManager connManager = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
-                        if (connManager != null) {
-                            NetworkInfo networkInfo = connManager.getActiveNetworkInfo();
-                            if (networkInfo == null || (!networkInfo.isConnected() || !networkInfo.isAvailable())) {
-                                if (item.getState() != DownloadState.PAUSED) {
-                                    pauseDownload(item, DownloadStateReason.PAUSED_BY_NETWORK);
-                                    break;
-                                }
-                            }
-                        } else if (item.getState() != DownloadState.FAILED) {
-                            onTaskProgress(task, DownloadTask.State.ERROR, 0, ex);
+                        if (item != null && item.getState() != DownloadState.PAUSED) {
+                            pauseDownload(item, DownloadStateReason.PAUSED_BY_NETWORK);
                         }
                         break;
                     }
                 }
-                return null;
             }
-        };
-        return new FutureTask<Void>(callable) {
-            @Override
-            protected void done() {
-                futureMap.remove(itemId, this);
+
+            try {
+                task.download();
+                break;
+            } catch (HttpRetryException e) {
+                Log.d(TAG, "Task should be retried");
+                if (concurrencyController != null) {
+                    // Mostly timeouts -- too many connections for the link.
+                    concurrencyController.onError();
+                }
+                Thread.sleep(2000);
+                // continue
+            } catch (IOException ex) {
+                DefaultDownloadItem item = findItem(itemId);
+                if (item == null) {
+                    // Removed while downloading.
+                    break;
+                }
+                // If it was a connection error, pauses the download
+                ConnectivityManager connManager = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+                if (connManager != null) {
+                    NetworkInfo networkInfo = connManager.getActiveNetworkInfo();
+                    if (networkInfo == null || (!networkInfo.isConnected() || !networkInfo.isAvailable())) {
+                        if (item.getState() != DownloadState.PAUSED) {
+                            pauseDownload(item, DownloadStateReason.PAUSED_BY_NETWORK);
+                            break;
+                        }
+                    }
+                } else if (item.getState() != DownloadState.FAILED) {
+                    onTaskProgress(task, DownloadTask.State.ERROR, 0, ex);
+                }
+                break;
             }
-        };
+        }
     }
 
     public void setDownloadSettings(ContentManager.Settings downloadSettings) {
@@ -777,7 +1042,22 @@ public class DefaultDownloadService extends Service {
         this.settings.httpTimeoutMillis = downloadSettings.httpTimeoutMillis;
         this.settings.maxDownloadRetries = downloadSettings.maxDownloadRetries;
         this.settings.maxConcurrentDownloads = downloadSettings.maxConcurrentDownloads;
+        this.settings.maxConcurrentDownloadsPerItem = downloadSettings.maxConcurrentDownloadsPerItem;
+        this.settings.adaptiveConcurrency = downloadSettings.adaptiveConcurrency;
+        this.settings.adaptiveConcurrencyFloor = downloadSettings.adaptiveConcurrencyFloor;
+        this.settings.adaptiveConcurrencyCeiling = downloadSettings.adaptiveConcurrencyCeiling;
+        this.settings.maxBytesPerSecond = downloadSettings.maxBytesPerSecond;
+        this.settings.segmentedDownloadRanges = downloadSettings.segmentedDownloadRanges;
+        this.settings.segmentedDownloadMinRangeBytes = downloadSettings.segmentedDownloadMinRangeBytes;
+        this.settings.downloadBufferSize = downloadSettings.downloadBufferSize;
+        this.settings.maxConcurrentMetadataLoads = downloadSettings.maxConcurrentMetadataLoads;
+        this.settings.trackSelectionMaxBytes = downloadSettings.trackSelectionMaxBytes;
+        this.settings.trackSelectionFreeSpaceFraction = downloadSettings.trackSelectionFreeSpaceFraction;
+        this.settings.sizeEstimationSampleCount = downloadSettings.sizeEstimationSampleCount;
         this.settings.useCellularData = downloadSettings.useCellularData;
+        this.settings.progressFlushIntervalMillis = downloadSettings.progressFlushIntervalMillis;
+        this.settings.progressFlushThresholdBytes = downloadSettings.progressFlushThresholdBytes;
+        this.settings.progressReportIntervalMillis = downloadSettings.progressReportIntervalMillis;
     }
 
     class LocalBinder extends Binder {
@@ -785,4 +1065,14 @@ public class DefaultDownloadService extends Service {
             return DefaultDownloadService.this;
         }
     }
+
+    private static class TaskError {
+        final DownloadTask task;
+        final Exception error;
+
+        TaskError(DownloadTask task, Exception error) {
+            this.task = task;
+            this.error = error;
+        }
+    }
 }
@@ -15,6 +15,8 @@ import com.kaltura.dtg.DownloadStateListener;
 import com.kaltura.dtg.DownloadStateReason;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 class DefaultProviderProxy {
@@ -81,6 +83,14 @@ class DefaultProviderProxy {
         service.loadItemMetadata((DefaultDownloadItem) item);
     }
 
+    public void loadItemsMetadata(Collection<DownloadItem> items, ContentManager.OnMetadataLoadedListener listener) {
+        List<DefaultDownloadItem> defaultItems = new ArrayList<>(items.size());
+        for (DownloadItem item : items) {
+            defaultItems.add((DefaultDownloadItem) item);
+        }
+        service.loadItemsMetadata(defaultItems, listener);
+    }
+
     public DownloadState startDownload(String itemId) {
         return service.startDownload(itemId);
     }
@@ -89,6 +99,22 @@ class DefaultProviderProxy {
         service.pauseDownload((DefaultDownloadItem) item, DownloadStateReason.PAUSED_BY_USER);
     }
 
+    public void setItemPriority(DownloadItem item, int priority) {
+        service.setItemPriority((DefaultDownloadItem) item, priority);
+    }
+
+    public int getDownloadConcurrency() {
+        return service.getDownloadConcurrency();
+    }
+
+    public void setMaxBytesPerSecond(long bytesPerSecond) {
+        service.setMaxBytesPerSecond(bytesPerSecond);
+    }
+
+    public void setItemMaxBytesPerSecond(String itemId, long bytesPerSecond) {
+        service.setItemMaxBytesPerSecond(itemId, bytesPerSecond);
+    }
+
     public void resumeDownload(DownloadItem item) {
         service.resumeDownload((DefaultDownloadItem) item);
     }
@@ -0,0 +1,505 @@
+package com.kaltura.dtg.clear;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides which pending task runs next, instead of handing all of them to a FIFO thread pool.
+ *
+ * Every item has its own queue. A free download slot goes to the queue with the highest item
+ * priority; queues with the same priority take turns (round-robin), so an item that was started
+ * first can't starve the others. An item never runs more than maxPerItem tasks at once.
+ *
+ * Tasks are pulled from the item's {@link TaskSource} in windows of at most {@link #WINDOW_SIZE}
+ * queued and running tasks, so memory doesn't grow with the length of the item. Inside a window,
+ * tasks are ordered by their start time in the media. {@link #prioritizeTimeRange(String, long, long)}
+ * moves the tasks of a time range to the head of the queue.
+ *
+ * A source may read the db, so it's only called on a single refill thread, never under the
+ * scheduler's lock. A page that was read before the item was cancelled or its source rewound is
+ * dropped.
+ */
+class DownloadScheduler {
+    private static final String TAG = "DownloadScheduler";
+
+    // Max number of tasks per item that are held in memory (queued or running).
+    static final int WINDOW_SIZE = 32;
+
+    private final ExecutorService executorService;
+    private final ExecutorService refillExecutor;
+    private final TaskRegistry registry;
+    private final TaskRunner taskRunner;
+    private final int maxThreads;
+    private final int maxPerItem;
+    private int concurrency;
+
+    // Items in round-robin order.
+    private final List<ItemQueue> queues = new ArrayList<>();
+    private final Map<String, long[]> timeRanges = new HashMap<>();
+    private int nextQueue;
+    private int running;
+    private long enqueueCounter;
+    private boolean shutdown;
+
+    interface TaskRunner {
+        // Download the task, including retries. Called on a download thread.
+        void run(DownloadTask task) throws Exception;
+    }
+
+    interface TaskSource {
+        /**
+         * @return up to maxCount pending tasks, continuing from the previous call. Returning fewer
+         * than maxCount means there are no more.
+         */
+        List<DownloadTask> next(int maxCount);
+
+        // Start over. If timeRange isn't null, the tasks that start inside it come first.
+        void rewind(@Nullable long[] timeRange);
+    }
+
+    /**
+     * @param maxThreads number of download threads, the upper limit of {@link #setConcurrency(int)}.
+     * @param maxPerItem max number of tasks of a single item that run at once; 0 means no limit.
+     */
+    DownloadScheduler(int maxThreads, int maxPerItem, @NonNull TaskRunner taskRunner) {
+        this(maxThreads, maxPerItem, new TaskRegistry(), taskRunner);
+    }
+
+    // The running tasks' futures are kept in registry.
+    DownloadScheduler(int maxThreads, int maxPerItem, @NonNull TaskRegistry registry, @NonNull TaskRunner taskRunner) {
+        this.registry = registry;
+        this.maxThreads = Math.max(1, maxThreads);
+        this.maxPerItem = Math.min(maxPerItem > 0 ? maxPerItem : this.maxThreads, WINDOW_SIZE);
+        this.concurrency = this.maxThreads;
+        this.taskRunner = taskRunner;
+        this.executorService = Executors.newFixedThreadPool(this.maxThreads);
+        this.refillExecutor = Executors.newSingleThreadExecutor();
+    }
+
+    /**
+     * Change the number of tasks that run at once. When lowered, running tasks are not stopped;
+     * new tasks start only when the number of running tasks drops below the new value.
+     */
+    synchronized void setConcurrency(int concurrency) {
+        this.concurrency = Math.max(1, Math.min(maxThreads, concurrency));
+        schedule();
+    }
+
+    synchronized int getConcurrency() {
+        return concurrency;
+    }
+
+    // Whether all slots are busy and tasks are waiting for one.
+    synchronized boolean isSaturated() {
+        if (running < concurrency) {
+            return false;
+        }
+        for (ItemQueue queue : queues) {
+            if (!queue.pending.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    synchronized void enqueue(@NonNull String itemId, int priority, @NonNull TaskSource source) {
+        if (shutdown) {
+            return;
+        }
+        ItemQueue queue = findQueue(itemId);
+        if (queue == null) {
+            queue = new ItemQueue(itemId, timeRanges.get(itemId));
+            queues.add(queue);
+        }
+        queue.priority = priority;
+        queue.source = source;
+        queue.exhausted = false;
+        queue.recentlyFinishedIds.clear();
+        queue.setOrder(timeRanges.get(itemId));
+        queue.rewind(timeRanges.get(itemId));
+        refill(queue);
+        schedule();
+    }
+
+    synchronized void setItemPriority(@NonNull String itemId, int priority) {
+        ItemQueue queue = findQueue(itemId);
+        if (queue != null) {
+            queue.priority = priority;
+            // Affects the next free slot; running tasks are not preempted.
+            schedule();
+        }
+    }
+
+    /**
+     * Download the item's tasks that start in [startMs, endMs) before its other tasks. Applies to
+     * the item's current download and to later ones.
+     */
+    synchronized void prioritizeTimeRange(@NonNull String itemId, long startMs, long endMs) {
+        long[] range = new long[]{startMs, endMs};
+        timeRanges.put(itemId, range);
+
+        ItemQueue queue = findQueue(itemId);
+        if (queue != null && queue.source != null) {
+            // Drop the window and read it again, starting with the range.
+            queue.clearPending();
+            queue.setOrder(range);
+            queue.rewind(range);
+            refill(queue);
+            schedule();
+        }
+    }
+
+    // Tasks were added to the item's source; read it again from the start.
+    synchronized void tasksAdded(@NonNull String itemId) {
+        ItemQueue queue = findQueue(itemId);
+        if (queue != null && queue.source != null) {
+            queue.rewind(timeRanges.get(itemId));
+            refill(queue);
+            schedule();
+        }
+    }
+
+    // Tasks were removed from the item's source; drop the queued ones and read it again.
+    synchronized void tasksRemoved(@NonNull String itemId) {
+        ItemQueue queue = findQueue(itemId);
+        if (queue != null && queue.source != null) {
+            queue.clearPending();
+            queue.rewind(timeRanges.get(itemId));
+            refill(queue);
+            schedule();
+        }
+    }
+
+    // Drop the item's queued tasks and interrupt its running tasks.
+    synchronized void cancelItem(@NonNull String itemId) {
+        ItemQueue queue = findQueue(itemId);
+        if (queue != null) {
+            stop(queue);
+        }
+        registry.cancelItem(itemId);
+    }
+
+    synchronized void cancelAll() {
+        for (ItemQueue queue : new ArrayList<>(queues)) {
+            stop(queue);
+        }
+        registry.cancelAll();
+    }
+
+    // Forget the item's settings, e.g. when it's removed.
+    synchronized void forgetItem(@NonNull String itemId) {
+        cancelItem(itemId);
+        timeRanges.remove(itemId);
+    }
+
+    synchronized int getQueuedCount(@NonNull String itemId) {
+        ItemQueue queue = findQueue(itemId);
+        return queue == null ? 0 : queue.pending.size();
+    }
+
+    synchronized int getRunningCount() {
+        return running;
+    }
+
+    // Whether a page is being read from a source.
+    synchronized boolean isRefilling() {
+        for (ItemQueue queue : queues) {
+            if (queue.refilling || queue.rewindPending) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    void shutdown(long timeoutSeconds) {
+        synchronized (this) {
+            shutdown = true;
+            cancelAll();
+        }
+        executorService.shutdownNow();
+        refillExecutor.shutdownNow();
+        try {
+            executorService.awaitTermination(timeoutSeconds, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Log.e(TAG, "shutdown: awaitTermination interrupted", e);
+        }
+    }
+
+    private ItemQueue findQueue(String itemId) {
+        for (ItemQueue queue : queues) {
+            if (queue.itemId.equals(itemId)) {
+                return queue;
+            }
+        }
+        return null;
+    }
+
+    private void stop(ItemQueue queue) {
+        queue.clearPending();
+        queue.source = null;
+        queue.exhausted = true;
+        removeIfIdle(queue);
+    }
+
+    private void removeIfIdle(ItemQueue queue) {
+        if (queue.exhausted && !queue.refilling && queue.pending.isEmpty() && queue.runningIds.isEmpty()) {
+            int index = queues.indexOf(queue);
+            queues.remove(index);
+            if (index < nextQueue) {
+                nextQueue--;
+            }
+        }
+    }
+
+    // Read from the source on the refill thread when at least half of the window is free, or
+    // when the source has to be rewound. At most one read per item is in flight.
+    private void refill(final ItemQueue queue) {
+        if (shutdown || queue.refilling || queue.source == null) {
+            return;
+        }
+        final int free = WINDOW_SIZE - queue.pending.size() - queue.runningIds.size();
+        final boolean read = !queue.exhausted && free >= WINDOW_SIZE / 2;
+        final boolean rewind = queue.rewindPending;
+        if (!read && !rewind) {
+            return;
+        }
+        final TaskSource source = queue.source;
+        final long[] timeRange = queue.rewindRange;
+        final int generation = queue.generation;
+        queue.rewindPending = false;
+        queue.refilling = true;
+
+        refillExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                List<DownloadTask> page = null;
+                try {
+                    if (rewind) {
+                        source.rewind(timeRange);
+                    }
+                    page = read ? source.next(free) : new ArrayList<DownloadTask>();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Failed to read pending tasks of " + queue.itemId, e);
+                }
+                onPageRead(queue, source, generation, read ? free : 0, page);
+            }
+        });
+    }
+
+    private synchronized void onPageRead(ItemQueue queue, TaskSource source, int generation, int requested, List<DownloadTask> page) {
+        queue.refilling = false;
+        if (queue.source == source && queue.generation == generation) {
+            if (page == null) {
+                // Don't retry in a loop; the next enqueue or tasksAdded() reads the source again.
+                queue.exhausted = true;
+            } else {
+                if (page.size() < requested) {
+                    queue.exhausted = true;
+                }
+                for (DownloadTask task : page) {
+                    // After a rewind, the source returns tasks that are already queued, running or done.
+                    if (queue.isKnown(task.taskId)) {
+                        continue;
+                    }
+                    queue.pendingIds.add(task.taskId);
+                    queue.pending.add(new Entry(task, enqueueCounter++));
+                }
+            }
+        }
+        // Otherwise the item was cancelled or rewound while the page was read, and the page may
+        // be stale. A pending rewind is sent now.
+        if (queues.contains(queue)) {
+            refill(queue);
+            removeIfIdle(queue);
+        }
+        schedule();
+    }
+
+    // Start tasks until all slots are busy or nothing can run.
+    private void schedule() {
+        while (!shutdown && running < concurrency) {
+            ItemQueue queue = pickQueue();
+            if (queue == null) {
+                return;
+            }
+            Entry entry = queue.pending.poll();
+            queue.pendingIds.remove(entry.task.taskId);
+            queue.runningIds.add(entry.task.taskId);
+            running++;
+            submit(queue, entry.task);
+        }
+    }
+
+    // The runnable queue with the highest priority; ties go to the first one after the last pick.
+    private ItemQueue pickQueue() {
+        ItemQueue best = null;
+        for (int i = 0; i < queues.size(); i++) {
+            ItemQueue queue = queues.get((nextQueue + i) % queues.size());
+            refill(queue);
+            if (queue.runningIds.size() >= maxPerItem) {
+                continue;
+            }
+            if (queue.pending.isEmpty()) {
+                continue;
+            }
+            if (best == null || queue.priority > best.priority) {
+                best = queue;
+            }
+        }
+
+        // Queues that ran out can only be removed after the loop.
+        for (ItemQueue queue : new ArrayList<>(queues)) {
+            removeIfIdle(queue);
+        }
+
+        if (best != null) {
+            nextQueue = queues.indexOf(best) + 1;
+        }
+        return best;
+    }
+
+    private void submit(final ItemQueue queue, final DownloadTask task) {
+        FutureTask<Void> future = new FutureTask<Void>(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    taskRunner.run(task);
+                } catch (InterruptedException e) {
+                    // Cancelled.
+                } catch (Exception e) {
+                    Log.e(TAG, "Task failed: " + task, e);
+                }
+            }
+        }, null) {
+            @Override
+            protected void done() {
+                registry.remove(queue.itemId, this);
+                onTaskDone(queue, task, isCancelled());
+            }
+        };
+        registry.add(queue.itemId, future);
+        executorService.execute(future);
+    }
+
+    private synchronized void onTaskDone(ItemQueue queue, DownloadTask task, boolean cancelled) {
+        if (queue.runningIds.remove(task.taskId)) {
+            running--;
+            if (!cancelled) {
+                queue.addFinished(task.taskId);
+            }
+        }
+        if (queues.contains(queue)) {
+            removeIfIdle(queue);
+        }
+        schedule();
+    }
+
+    private static class Entry {
+        final DownloadTask task;
+        final long sequence;
+
+        Entry(DownloadTask task, long sequence) {
+            this.task = task;
+            this.sequence = sequence;
+        }
+    }
+
+    private static class ItemQueue {
+        final String itemId;
+        int priority;
+        TaskSource source;
+        boolean exhausted;
+
+        // A page is being read on the refill thread.
+        boolean refilling;
+
+        // The source is rewound before the next read. generation counts the rewinds, so that a
+        // page that was read before the last one is dropped.
+        boolean rewindPending;
+        long[] rewindRange;
+        int generation;
+        PriorityQueue<Entry> pending;
+        final Set<String> pendingIds = new HashSet<>();
+        final Set<String> runningIds = new HashSet<>();
+
+        // Completion reaches the db asynchronously, so a rewind may still read the last finished
+        // tasks as pending.
+        final Set<String> recentlyFinishedIds = new LinkedHashSet<>();
+
+        ItemQueue(String itemId, long[] timeRange) {
+            this.itemId = itemId;
+            this.pending = new PriorityQueue<>(WINDOW_SIZE, comparator(timeRange));
+        }
+
+        void rewind(long[] timeRange) {
+            rewindPending = true;
+            rewindRange = timeRange;
+            generation++;
+            exhausted = false;
+        }
+
+        boolean isKnown(String taskId) {
+            return pendingIds.contains(taskId) || runningIds.contains(taskId) || recentlyFinishedIds.contains(taskId);
+        }
+
+        void addFinished(String taskId) {
+            recentlyFinishedIds.add(taskId);
+            if (recentlyFinishedIds.size() > WINDOW_SIZE) {
+                Iterator<String> it = recentlyFinishedIds.iterator();
+                it.next();
+                it.remove();
+            }
+        }
+
+        void clearPending() {
+            pending.clear();
+            pendingIds.clear();
+        }
+
+        void setOrder(long[] timeRange) {
+            PriorityQueue<Entry> reordered = new PriorityQueue<>(WINDOW_SIZE, comparator(timeRange));
+            reordered.addAll(pending);
+            pending = reordered;
+        }
+
+        // By start time, with tasks inside the prioritized range first; ties in queueing order.
+        private static Comparator<Entry> comparator(final long[] timeRange) {
+            return new Comparator<Entry>() {
+                @Override
+                public int compare(Entry lhs, Entry rhs) {
+                    if (timeRange != null) {
+                        boolean lhsIn = inRange(lhs.task.startTimeMs);
+                        boolean rhsIn = inRange(rhs.task.startTimeMs);
+                        if (lhsIn != rhsIn) {
+                            return lhsIn ? -1 : 1;
+                        }
+                    }
+                    if (lhs.task.startTimeMs != rhs.task.startTimeMs) {
+                        return lhs.task.startTimeMs < rhs.task.startTimeMs ? -1 : 1;
+                    }
+                    return lhs.sequence < rhs.sequence ? -1 : (lhs.sequence == rhs.sequence ? 0 : 1);
+                }
+
+                private boolean inRange(long timeMs) {
+                    return timeMs >= timeRange[0] && timeMs < timeRange[1];
+                }
+            };
+        }
+    }
+}
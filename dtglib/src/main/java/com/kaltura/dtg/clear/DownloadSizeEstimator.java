@@ -0,0 +1,258 @@
+package com.kaltura.dtg.clear;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.kaltura.dtg.Utils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Estimates the download size of an item from its tasks, and refines the estimate as its files
+ * complete.
+ *
+ * Byte ranges are counted exactly. The other files are grouped by track and file extension, so
+ * init segments and keys aren't averaged with media segments. In each group, up to sampleCount
+ * files spread evenly over the group are sized with concurrent HEAD requests, and the group's mean
+ * is applied to the rest of it. A group without a successful sample gets its share (by file count)
+ * of the nominal, bitrate-based estimate; if there are no byte ranges and nothing could be sampled,
+ * the nominal estimate is used.
+ *
+ * While downloading, the mean size of each group's completed files is blended with the mean the
+ * previous estimate implied for the pending files, and the estimate becomes the downloaded bytes
+ * plus each group's pending files at the group's mean. The pending files per group are loaded with
+ * {@link #load(String, Map)}; without them, all files of the item are one group. When the last file
+ * completes, the estimate is the downloaded size.
+ */
+class DownloadSizeEstimator {
+    private static final String TAG = "DownloadSizeEstimator";
+
+    // Threads of the executor that sends the HEAD requests.
+    static final int SAMPLE_THREADS = 8;
+
+    // The previous estimate weighs as much as this many completed files.
+    private static final int PRIOR_WEIGHT_FILES = 8;
+
+    // Guarded by this: updated on the task progress thread, forgotten and cleared from other threads.
+    private final Map<String, ItemStats> stats = new HashMap<>();
+
+    private static class ItemStats {
+        // Set when the first file completes after a load; -1 until then.
+        long priorMean = -1;
+        // Pending files per group; null if not loaded.
+        Map<String, Integer> pendingFiles;
+        final Map<String, GroupStats> groups = new HashMap<>();
+
+        long mean(String key) {
+            GroupStats group = groups.get(key);
+            if (group == null) {
+                return priorMean;
+            }
+            return (priorMean * PRIOR_WEIGHT_FILES + group.completedBytes) / (PRIOR_WEIGHT_FILES + group.completedFiles);
+        }
+    }
+
+    private static class GroupStats {
+        long completedFiles;
+        long completedBytes;
+    }
+
+    // Files of a track with the same extension are expected to be of similar size.
+    static String groupKey(String trackRelativeId, String fileName) {
+        return trackRelativeId + ":" + extension(fileName);
+    }
+
+    static long estimate(@NonNull Collection<DownloadTask> tasks, long nominalBytes, int sampleCount,
+                         @NonNull ExecutorService sampleExecutor) {
+        long exactBytes = 0;
+        Map<String, List<DownloadTask>> groups = new LinkedHashMap<>();
+        for (DownloadTask task : tasks) {
+            if (task.isRanged()) {
+                exactBytes += task.rangeEnd - task.rangeStart + 1;
+                continue;
+            }
+            String key = groupKey(task.trackRelativeId, task.targetFile.getName());
+            List<DownloadTask> group = groups.get(key);
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(key, group);
+            }
+            group.add(task);
+        }
+
+        if (groups.isEmpty()) {
+            return exactBytes;
+        }
+
+        // Evenly spread samples: the middle file of each of sampleCount equal slices of the group.
+        Map<String, List<DownloadTask>> samples = new LinkedHashMap<>();
+        int totalSamples = 0;
+        for (Map.Entry<String, List<DownloadTask>> entry : groups.entrySet()) {
+            List<DownloadTask> group = entry.getValue();
+            int n = group.size();
+            int k = Math.max(0, Math.min(sampleCount, n));
+            List<DownloadTask> groupSamples = new ArrayList<>(k);
+            for (int i = 0; i < k; i++) {
+                groupSamples.add(group.get((int) ((2L * i + 1) * n / (2L * k))));
+            }
+            samples.put(entry.getKey(), groupSamples);
+            totalSamples += k;
+        }
+
+        Map<DownloadTask, Long> lengths = totalSamples > 0 ? headAll(samples.values(), sampleExecutor) :
+                new HashMap<DownloadTask, Long>();
+
+        long total = exactBytes;
+        boolean sampled = false;
+        for (Map.Entry<String, List<DownloadTask>> entry : groups.entrySet()) {
+            long sum = 0;
+            int count = 0;
+            for (DownloadTask sample : samples.get(entry.getKey())) {
+                Long length = lengths.get(sample);
+                if (length != null && length > 0) {
+                    sum += length;
+                    count++;
+                }
+            }
+            int n = entry.getValue().size();
+            if (count > 0) {
+                sampled = true;
+                total += sum * n / count;
+            } else {
+                total += nominalBytes * n / tasks.size();
+            }
+        }
+
+        Log.d(TAG, "Estimated " + total + " bytes from " + lengths.size() + " samples; nominal " + nominalBytes);
+        // The nominal estimate covers the byte ranges too, but they're better counted exactly.
+        return sampled || exactBytes > 0 ? total : nominalBytes;
+    }
+
+    // Content-Length of the sampled files by concurrent HEAD requests; failed samples are missing.
+    private static Map<DownloadTask, Long> headAll(Collection<List<DownloadTask>> samples, ExecutorService executor) {
+        Map<DownloadTask, Future<Long>> futures = new LinkedHashMap<>();
+        try {
+            for (List<DownloadTask> groupSamples : samples) {
+                for (final DownloadTask task : groupSamples) {
+                    futures.put(task, executor.submit(new Callable<Long>() {
+                        @Override
+                        public Long call() throws Exception {
+                            return Utils.httpHead(task.url).length;
+                        }
+                    }));
+                }
+            }
+
+            Map<DownloadTask, Long> lengths = new HashMap<>();
+            for (Map.Entry<DownloadTask, Future<Long>> entry : futures.entrySet()) {
+                try {
+                    lengths.put(entry.getKey(), entry.getValue().get());
+                } catch (ExecutionException e) {
+                    Log.w(TAG, "Failed to sample " + entry.getKey().url + ": " + e.getCause());
+                }
+            }
+            return lengths;
+
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            for (Future<Long> future : futures.values()) {
+                future.cancel(true);
+            }
+            return new HashMap<>();
+        }
+    }
+
+    private static String extension(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        return dot < 0 ? "" : fileName.substring(dot + 1);
+    }
+
+    /**
+     * Set the item's pending files per {@link #groupKey(String, String)}, e.g. when its download
+     * starts or its tracks change. The completed files' stats are kept.
+     */
+    synchronized void load(@NonNull String itemId, @NonNull Map<String, Integer> pendingFilesByGroup) {
+        ItemStats itemStats = stats.get(itemId);
+        if (itemStats == null) {
+            itemStats = new ItemStats();
+            stats.put(itemId, itemStats);
+        }
+        itemStats.pendingFiles = new HashMap<>(pendingFilesByGroup);
+        // The estimate may have changed with the files.
+        itemStats.priorMean = -1;
+    }
+
+    /**
+     * Refine the item's estimate after task has completed; call after the item's downloaded size
+     * includes the task's bytes.
+     *
+     * @return the new estimate.
+     */
+    synchronized long onTaskCompleted(@NonNull DefaultDownloadItem item, @NonNull DownloadTask task, int pendingCount) {
+        String itemId = item.getItemId();
+        long downloaded = item.getDownloadedSizeBytes();
+        if (pendingCount <= 0) {
+            stats.remove(itemId);
+            return downloaded;
+        }
+
+        long fileBytes = task.isRanged() ? task.rangeEnd - task.rangeStart + 1 : task.targetFile.length();
+
+        ItemStats itemStats = stats.get(itemId);
+        if (itemStats == null) {
+            itemStats = new ItemStats();
+            stats.put(itemId, itemStats);
+        }
+        if (itemStats.priorMean < 0) {
+            // The mean the current estimate implies for the files that were pending before this one.
+            long remaining = item.getEstimatedSizeBytes() - (downloaded - fileBytes);
+            itemStats.priorMean = Math.max(remaining, 0) / (pendingCount + 1);
+        }
+
+        Map<String, Integer> pendingFiles = itemStats.pendingFiles;
+        String key = pendingFiles == null ? "" : groupKey(task.trackRelativeId, task.targetFile.getName());
+        GroupStats group = itemStats.groups.get(key);
+        if (group == null) {
+            group = new GroupStats();
+            itemStats.groups.put(key, group);
+        }
+        group.completedFiles++;
+        group.completedBytes += fileBytes;
+
+        if (pendingFiles == null) {
+            return downloaded + pendingCount * itemStats.mean(key);
+        }
+
+        Integer groupPending = pendingFiles.get(key);
+        if (groupPending != null && groupPending > 0) {
+            pendingFiles.put(key, groupPending - 1);
+        }
+        long pendingBytes = 0;
+        int counted = 0;
+        for (Map.Entry<String, Integer> entry : pendingFiles.entrySet()) {
+            pendingBytes += entry.getValue() * itemStats.mean(entry.getKey());
+            counted += entry.getValue();
+        }
+        // Files that weren't loaded yet, at the prior mean.
+        pendingBytes += Math.max(pendingCount - counted, 0) * itemStats.priorMean;
+
+        return downloaded + pendingBytes;
+    }
+
+    synchronized void forget(String itemId) {
+        stats.remove(itemId);
+    }
+
+    synchronized void clear() {
+        stats.clear();
+    }
+}
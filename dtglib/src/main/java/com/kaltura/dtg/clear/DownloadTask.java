@@ -1,22 +1,29 @@
 package com.kaltura.dtg.clear;
 
+import android.text.TextUtils;
 import android.util.Log;
 
+import com.kaltura.dtg.HttpConnectionFactory;
 import com.kaltura.dtg.ContentManager;
 import com.kaltura.dtg.Utils;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
 import java.net.HttpRetryException;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Created by noamt on 5/13/15.
@@ -24,6 +31,7 @@ import java.net.UnknownHostException;
 class DownloadTask {
     private static final String TAG = "DownloadTask";
     private static final int PROGRESS_REPORT_COUNT = 100;
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
 
     // TODO: Hold url and targetFile as Strings, only convert to URL/File when used.
     final String taskId;
@@ -31,25 +39,69 @@ class DownloadTask {
     final File targetFile;
     String itemId;
     String trackRelativeId;
+    long startTimeMs;   // position in the media, used to order the downloads
+    long rowId = -1;    // in the Files table
+
+    // Recorded in the db when the download first starts, so a resume doesn't need a HEAD request.
+    long contentLength = -1;
+    String etag;
+
+    // A byte range of targetFile, downloaded in place; rangeEnd is inclusive, -1 means the whole file.
+    final long rangeStart;
+    final long rangeEnd;
+    volatile long rangeDone;    // bytes of the range that were written and reported
 
     private Listener listener;  // this is the service
 
     private int retryCount = 0;
     private ContentManager.Settings downloadSettings;
+    private BandwidthLimiter bandwidthLimiter;
+    private BufferPool bufferPool;
 
     DownloadTask(URL url, File targetFile) {
+        this(url, targetFile, 0, -1);
+    }
+
+    DownloadTask(URL url, File targetFile, long rangeStart, long rangeEnd) {
         this.url = url;
         this.targetFile = targetFile;
-        this.taskId = Utils.md5Hex(targetFile.getAbsolutePath());
+        this.rangeStart = rangeStart;
+        this.rangeEnd = rangeEnd;
+        String path = targetFile.getAbsolutePath();
+        this.taskId = Utils.md5Hex(rangeEnd < 0 ? path : path + "#" + rangeStart);
     }
 
     DownloadTask(String url, String targetFile) throws MalformedURLException {
         this(new URL(url), new File(targetFile));
     }
 
+    /**
+     * Split a file of known length into count byte ranges, to be downloaded in parallel.
+     * The server must accept byte ranges.
+     */
+    static List<DownloadTask> createRangeTasks(URL url, File targetFile, long length, String etag, int count) {
+        // Progress is reported in ints.
+        count = Math.max(count, (int) ((length - 1) / Integer.MAX_VALUE) + 1);
+        long rangeSize = (length + count - 1) / count;
+
+        List<DownloadTask> tasks = new ArrayList<>(count);
+        for (long start = 0; start < length; start += rangeSize) {
+            DownloadTask task = new DownloadTask(url, targetFile, start, Math.min(start + rangeSize, length) - 1);
+            task.contentLength = length;
+            task.etag = etag;
+            tasks.add(task);
+        }
+        return tasks;
+    }
+
+    boolean isRanged() {
+        return rangeEnd >= 0;
+    }
+
     @Override
     public String toString() {
-        return "<DownloadTask id='" + taskId + "' url='" + url + "' target='" + targetFile + "'>";
+        String range = isRanged() ? " range=" + rangeStart + "-" + rangeEnd : "";
+        return "<DownloadTask id='" + taskId + "' url='" + url + "' target='" + targetFile + "'" + range + ">";
     }
 
     private boolean createParentDir(File targetFile) {
@@ -71,10 +123,32 @@ class DownloadTask {
 
         reportProgress(State.STARTED, 0, null);
 
-        long localFileSize = targetFile.length();
+        if (isRanged()) {
+            if (rangeDone >= rangeEnd - rangeStart + 1) {
+                reportProgress(State.COMPLETED, 0, null);
+                return;
+            }
+            if (rangeDone > 0 && targetFile.length() < rangeStart + rangeDone) {
+                Log.w(TAG, "Target file is shorter than the downloaded range. Downloading the range again.");
+                reportProgress(State.IN_PROGRESS, (int) -rangeDone, null);
+            }
+        }
+
+        // A ranged task knows its progress from the db, not from the (preallocated) file.
+        long localFileSize = isRanged() ? 0 : targetFile.length();
+
+        if (localFileSize > 0 && contentLength > 0) {
+            // The remote length is known -- the ranged GET below validates the rest.
+            if (localFileSize == contentLength) {
+                reportProgress(State.COMPLETED, 0, null);
+                return;
+            } else if (localFileSize > contentLength) {
+                Log.w(TAG, "Target file is longer than remote. Deleting the target.");
+                localFileSize = restartFile(localFileSize);
+            }
 
-        // If file is already downloaded, make sure it's not larger than the remote.
-        if (localFileSize > 0) {
+        } else if (localFileSize > 0) {
+            // Old record without a length: make sure the file is not larger than the remote.
             try {
                 long remoteFileSize = Utils.httpHeadGetLength(url);
 
@@ -104,40 +178,108 @@ class DownloadTask {
         // Start the actual download.
         InputStream inputStream = null;
         HttpURLConnection conn = null;
-        FileOutputStream fileOutputStream = null;
+        RandomAccessFile file = null;
+        ByteBuffer buffer = null;
 
         State stopReason = null;
         Exception stopError = null;
 
         int progressReportBytes = 0;
         try {
-            conn = (HttpURLConnection) url.openConnection();
+            conn = HttpConnectionFactory.getDefault().open(url);
             conn.setReadTimeout(downloadSettings.httpTimeoutMillis);
             conn.setConnectTimeout(downloadSettings.httpTimeoutMillis);
             conn.setDoInput(true);
 
-            if (localFileSize > 0) {
-                // Resume
-                conn.setRequestProperty("Range", "Bytes=" + localFileSize + "-");
+            // Lengths must match the bytes on disk.
+            conn.setRequestProperty("Accept-Encoding", "identity");
+
+            if (isRanged()) {
+                conn.setRequestProperty("Range", "bytes=" + (rangeStart + rangeDone) + "-" + rangeEnd);
+                if (etag != null) {
+                    conn.setRequestProperty("If-Range", etag);
+                }
+            } else if (localFileSize > 0) {
+                // Resume. If the entity has changed, If-Range makes the server send all of it.
+                conn.setRequestProperty("Range", "bytes=" + localFileSize + "-");
+                if (etag != null) {
+                    conn.setRequestProperty("If-Range", etag);
+                }
             }
             conn.connect();
 
             int response = conn.getResponseCode();
+            if (response == 416 && localFileSize > 0) {
+                // Nothing to resume: either the file is complete or it doesn't match the remote.
+                long remoteLength = parseContentRangeTotal(conn.getHeaderField("Content-Range"));
+                if (remoteLength == localFileSize) {
+                    stopReason = State.COMPLETED;
+                    return;
+                }
+                restartFile(localFileSize);
+                throw new HttpRetryException("Requested range not satisfiable", response, url.toExternalForm());
+            }
             if (response >= 400) {
                 throw new IOException(Utils.format("Response code for %s is %d", url, response));
             }
 
+            if (isRanged() && !isExpectedRange(conn, response)) {
+                // The server ignored the range, or the file has changed since it was split. The
+                // other ranges can't be trusted either, so fail the item.
+                stopReason = State.ERROR;
+                stopError = new IOException(Utils.format("Unexpected response for range %d-%d of %s: %d %s",
+                        rangeStart, rangeEnd, url, response, conn.getHeaderField("Content-Range")));
+                return;
+            }
+
+            boolean append = false;
+            if (localFileSize > 0 && response == HttpURLConnection.HTTP_PARTIAL) {
+                String contentRange = conn.getHeaderField("Content-Range");
+                long remoteLength = parseContentRangeTotal(contentRange);
+                if (parseContentRangeStart(contentRange) != localFileSize || (contentLength > 0 && remoteLength != contentLength)) {
+                    Log.w(TAG, "Unexpected Content-Range for " + url + ": " + contentRange);
+                    restartFile(localFileSize);
+                    throw new HttpRetryException("Unexpected Content-Range", response, url.toExternalForm());
+                }
+                append = true;
+            } else if (localFileSize > 0) {
+                // The server sent the whole entity; start over.
+                localFileSize = restartFile(localFileSize);
+            }
+
+            if (!append && !isRanged()) {
+                recordContentInfo(conn);
+            }
+
             inputStream = conn.getInputStream();
-            fileOutputStream = new FileOutputStream(targetFile, true);
+            file = new RandomAccessFile(targetFile, "rw");
+            long position;
+            if (isRanged()) {
+                // All ranges write in place, into a file that has the full length from the start.
+                if (file.length() < contentLength) {
+                    file.setLength(contentLength);
+                }
+                position = rangeStart + rangeDone;
+            } else {
+                // A whole file is never preallocated: its length is where a resume starts.
+                if (!append) {
+                    file.setLength(0);
+                }
+                position = localFileSize;
+            }
+            FileChannel channel = file.getChannel();
 
-            byte[] buffer = new byte[10240]; // 10k buffer
+            buffer = bufferPool != null ? bufferPool.acquire() : ByteBuffer.allocate(DEFAULT_BUFFER_SIZE);
+            byte[] array = buffer.array();
 
             int byteCount;
             progressReportBytes = 0;
             int progressReportCounter = 0;
 
+            // Reads are collected in the buffer, which is written in one call when it's full, and
+            // before reporting progress -- reported bytes are always on disk.
             while (true) {
-                byteCount = inputStream.read(buffer);
+                byteCount = inputStream.read(array, buffer.arrayOffset() + buffer.position(), buffer.remaining());
 
                 progressReportCounter++;
 
@@ -147,11 +289,21 @@ class DownloadTask {
                 }
 
                 if (byteCount > 0) {
-                    fileOutputStream.write(buffer, 0, byteCount);
-                    progressReportBytes += byteCount;
+                    buffer.position(buffer.position() + byteCount);
+
+                    if (bandwidthLimiter != null) {
+                        bandwidthLimiter.acquire(itemId, byteCount);
+                    }
+                }
+
+                boolean report = progressReportCounter >= PROGRESS_REPORT_COUNT;
+                if (!buffer.hasRemaining() || (report && buffer.position() > 0)) {
+                    int written = writeBuffer(channel, buffer, position);
+                    position += written;
+                    progressReportBytes += written;
                 }
 
-                if (progressReportBytes > 0 && progressReportCounter >= PROGRESS_REPORT_COUNT) {
+                if (progressReportBytes > 0 && report) {
                     // Log.v(TAG, "progressReportBytes:" + progressReportBytes + "; progressReportCounter:" + progressReportCounter);
                     reportProgress(State.IN_PROGRESS, progressReportBytes, null);
                     progressReportBytes = 0;
@@ -159,6 +311,8 @@ class DownloadTask {
                 }
             }
 
+            progressReportBytes += writeBuffer(channel, buffer, position);
+
             stopReason = State.COMPLETED;
         } catch (SocketTimeoutException e) {
             // Not a fatal error -- consider retry.
@@ -171,8 +325,17 @@ class DownloadTask {
             stopReason = State.ERROR;
             stopError = e;
 
-        } catch (InterruptedIOException e) {
-            // Not an error -- task is cancelled.
+        } catch (HttpRetryException e) {
+            // The partial file didn't match the remote and was deleted -- download it again.
+            retryCount++;
+            if (retryCount < downloadSettings.maxDownloadRetries) {
+                throw e;
+            }
+            stopReason = State.ERROR;
+            stopError = e;
+
+        } catch (InterruptedIOException | ClosedByInterruptException e) {
+            // Not an error -- task is cancelled. The bytes left in the buffer were not reported.
             // Log.d(TAG, "Task " + taskId + " interrupted");
             stopReason = State.STOPPED;
         } catch (IOException e) {
@@ -181,10 +344,12 @@ class DownloadTask {
             stopError = e;
             throw e;
         } finally {
-            Utils.safeClose(inputStream, fileOutputStream);
-            if (conn != null) {
-                conn.disconnect();
+            Utils.safeClose(inputStream, file);
+            if (buffer != null && bufferPool != null) {
+                bufferPool.release(buffer);
             }
+            // Only a response that was read to the end leaves the connection reusable.
+            Utils.releaseConnection(conn, stopReason == State.COMPLETED);
 
             if (stopReason != null) {
                 reportProgress(stopReason, progressReportBytes, stopError);
@@ -192,8 +357,95 @@ class DownloadTask {
         }
     }
 
+    // Delete the partial file and take its bytes off the item's progress. Returns the new local size.
+    private long restartFile(long localFileSize) {
+        if (!targetFile.delete()) {
+            Log.w(TAG, "Can't delete targetFile");
+        }
+        reportProgress(State.IN_PROGRESS, (int) -localFileSize, null);
+        return 0;
+    }
+
+    // Write the buffered bytes at position, and clear the buffer. Returns the number of bytes written.
+    private static int writeBuffer(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        buffer.flip();
+        int written = 0;
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer, position + written);
+        }
+        buffer.clear();
+        return written;
+    }
+
+    // A ranged task must get exactly the bytes it asked for, of the file it was split from.
+    private boolean isExpectedRange(HttpURLConnection conn, int response) {
+        if (response != HttpURLConnection.HTTP_PARTIAL) {
+            return false;
+        }
+        String contentRange = conn.getHeaderField("Content-Range");
+        if (parseContentRangeStart(contentRange) != rangeStart + rangeDone) {
+            return false;
+        }
+        // Byte ranges from a playlist come without the length of the resource.
+        return contentLength < 0 || parseContentRangeTotal(contentRange) == contentLength;
+    }
+
+    private void recordContentInfo(HttpURLConnection conn) {
+        long length = -1;
+        String lengthHeader = conn.getHeaderField("Content-Length");
+        if (lengthHeader != null) {
+            try {
+                length = Long.parseLong(lengthHeader);
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Invalid Content-Length: " + lengthHeader);
+            }
+        }
+        String etag = conn.getHeaderField("ETag");
+        if (length != contentLength || !TextUtils.equals(etag, this.etag)) {
+            contentLength = length;
+            this.etag = etag;
+            listener.onTaskContentInfo(this);
+        }
+    }
+
+    // "bytes 100-199/1000" ==> 100
+    static long parseContentRangeStart(String contentRange) {
+        if (contentRange == null) {
+            return -1;
+        }
+        int space = contentRange.indexOf(' ');
+        int dash = contentRange.indexOf('-');
+        if (space < 0 || dash < space) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring(space + 1, dash).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // "bytes 100-199/1000" or "bytes */1000" ==> 1000
+    static long parseContentRangeTotal(String contentRange) {
+        if (contentRange == null) {
+            return -1;
+        }
+        int slash = contentRange.lastIndexOf('/');
+        if (slash < 0) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;  // "*"
+        }
+    }
+
     private void reportProgress(final State state, final int newBytes, Exception stopError) {
         // Log.d(TAG, "progress: " + this.taskId + ", " + state + ", " + newBytes + ", " + stopError);
+        if (isRanged()) {
+            rangeDone += newBytes;
+        }
         listener.onTaskProgress(this, state, newBytes, stopError);
     }
 
@@ -209,7 +461,7 @@ class DownloadTask {
     public boolean equals(Object o) {
         if (o instanceof DownloadTask) {
             DownloadTask otherTask = (DownloadTask) o;
-            return this.url.equals(otherTask.url) && this.targetFile.equals(otherTask.targetFile);
+            return this.url.equals(otherTask.url) && this.targetFile.equals(otherTask.targetFile) && this.rangeStart == otherTask.rangeStart;
         }
         return false;
     }
@@ -219,9 +471,18 @@ class DownloadTask {
         int code = 17;
         code = 31 * code + (this.url == null ? 0 : this.url.hashCode());
         code = 31 * code + (this.targetFile == null ? 0 : this.targetFile.hashCode());
+        code = 31 * code + (int) (this.rangeStart ^ (this.rangeStart >>> 32));
         return code;
     }
 
+    void setBandwidthLimiter(BandwidthLimiter bandwidthLimiter) {
+        this.bandwidthLimiter = bandwidthLimiter;
+    }
+
+    void setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+    }
+
     void setDownloadSettings(ContentManager.Settings downloadSettings) {
         this.downloadSettings = downloadSettings;
     }
@@ -232,5 +493,8 @@ class DownloadTask {
 
     interface Listener {
         void onTaskProgress(DownloadTask task, State newState, int newBytes, Exception stopError);
+
+        // The task has learned (or re-learned) contentLength and etag from a full response.
+        void onTaskContentInfo(DownloadTask task);
     }
 }
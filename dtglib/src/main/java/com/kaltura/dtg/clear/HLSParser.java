@@ -1,53 +1,68 @@
 package com.kaltura.dtg.clear;
 
-import android.text.TextUtils;
+import android.support.annotation.NonNull;
 import android.util.Log;
-import android.webkit.URLUtil;
 import com.kaltura.android.exoplayer.hls.HlsMasterPlaylist;
-import com.kaltura.android.exoplayer.hls.HlsMediaPlaylist;
-import com.kaltura.android.exoplayer.hls.HlsMediaPlaylist.Segment;
 import com.kaltura.android.exoplayer.hls.HlsPlaylist;
 import com.kaltura.android.exoplayer.hls.HlsPlaylistParser;
 import com.kaltura.android.exoplayer.hls.Variant;
+import com.kaltura.dtg.HttpConnectionFactory;
 import com.kaltura.dtg.DownloadItem;
 import com.kaltura.dtg.Utils;
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
-import java.net.MalformedURLException;
+import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.LinkedHashSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.TreeSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Created by noamt on 5/20/15.
  */
 
 // Wrapper around ExoPlayer's HlsPlaylistParser. Also saves state (master playlist, selected, etc).
+// Every selected track (variant, audio or subtitle rendition) is downloaded to its own directory,
+// named by the track's relative id, with its media playlist and segments.
 class HLSParser {
 
     public static final String FILTERED_MASTER_M3U8 = "master.m3u8";
     public static final String VARIANT_M3U8 = "variant.m3u8";
     public static final String ORIGINAL_MASTER_M3U8 = "ORIGINAL-MASTER.m3u8";
     private static final String TAG = "HLSParser";
+    private static final String STREAM_INF_TAG = "#EXT-X-STREAM-INF";
+    private static final String I_FRAME_STREAM_INF_TAG = "#EXT-X-I-FRAME-STREAM-INF";
+    private static final String MEDIA_TAG = "#EXT-X-MEDIA";
+    private static final Pattern MEDIA_TYPE_PATTERN = Pattern.compile("TYPE=(AUDIO|SUBTITLES)\\b");
+    private static final Pattern URI_PATTERN = Pattern.compile("URI=\"(.+?)\"");
+    private static final Pattern AUDIO_GROUP_PATTERN = Pattern.compile("(?<=[:,])AUDIO=\"[^\"]*\",?");
+    private static final Pattern SUBTITLES_GROUP_PATTERN = Pattern.compile("(?<=[:,])SUBTITLES=\"[^\"]*\",?");
+    // EXT-X-MEDIA has no bandwidth; assume a typical stereo AAC rendition.
+    private static final long DEFAULT_AUDIO_BITRATE = 128000;
     // All fields in HlsPlaylistParser are static final, it can be safely shared.
     private static final HlsPlaylistParser sPlaylistParser = new HlsPlaylistParser();
     private final DownloadItem item;
     private final File targetDirectory;
-    private TreeSet<Variant> sortedVariants;
     private HlsMasterPlaylist masterPlaylist;
-    private HlsMediaPlaylist mediaPlaylist;
-    private File masterPlaylistFile;
     private String masterPlaylistData;
-    private String filteredPlaylistPath;
-    private Variant selectedVariant;
     private URL masterURL;
-    private URL variantURL;
+
+    private Map<DownloadItem.TrackType, List<HlsTrack>> availableTracks;
+    private Map<DownloadItem.TrackType, List<HlsTrack>> selectedTracks;
+    private List<TrackMedia> trackMedia;
+    // Media playlists that were already downloaded, e.g. to learn the duration.
+    private final Map<HlsTrack, TrackMedia> parsedMedia = new HashMap<>();
+    private long durationUs;
 
     public HLSParser(DownloadItem item, File targetDirectory) {
         this.item = item;
@@ -82,18 +97,6 @@ class HLSParser {
         return hlsPlaylist;
     }
 
-    public String getFilteredPlaylistPath() {
-        return filteredPlaylistPath;
-    }
-
-    public Variant getSelectedVariant() {
-        return selectedVariant;
-    }
-
-    public URL getVariantURL() {
-        return variantURL;
-    }
-
     public URL getMasterURL() {
         return masterURL;
     }
@@ -102,83 +105,232 @@ class HLSParser {
         return targetDirectory;
     }
 
-    public TreeSet<Variant> getSortedVariants() {
-        return sortedVariants;
-    }
-
     // Download and parse master playlist
     public void parseMaster() throws IOException {
 
         masterURL = new URL(item.getContentURL());
         DownloadedPlaylist downloadedPlaylist = downloadAndParsePlaylist(HlsPlaylist.TYPE_MASTER, masterURL, targetDirectory, item.getItemId());
 
-        masterPlaylistFile = downloadedPlaylist.targetFile;
         masterPlaylist = (HlsMasterPlaylist) downloadedPlaylist.playlist;
         masterPlaylistData = downloadedPlaylist.data;
 
-        Comparator<Variant> bitrateComparator = new Comparator<Variant>() {
+        createTracks();
+        selectDefaultTracks(TrackSelectionPolicy.UNLIMITED);
+    }
+
+    public HlsMasterPlaylist getMasterPlaylist() {
+        return masterPlaylist;
+    }
+
+    private void createTracks() {
+        availableTracks = new HashMap<>();
+        for (DownloadItem.TrackType type : DownloadItem.TrackType.values()) {
+            availableTracks.put(type, new ArrayList<HlsTrack>(1));
+        }
+        addTracks(DownloadItem.TrackType.VIDEO, masterPlaylist.variants);
+        addTracks(DownloadItem.TrackType.AUDIO, masterPlaylist.audios);
+        addTracks(DownloadItem.TrackType.TEXT, masterPlaylist.subtitles);
+    }
+
+    private void addTracks(DownloadItem.TrackType type, List<Variant> variants) {
+        List<HlsTrack> tracks = availableTracks.get(type);
+        for (int i = 0; i < variants.size(); i++) {
+            tracks.add(new HlsTrack(type, i, variants.get(i)));
+        }
+    }
+
+    /**
+     * Select the best tracks whose estimated size fits budgetBytes; see {@link TrackSelectionPolicy}.
+     * parseMaster() selects with no budget, i.e. the best variant and the first renditions. With a
+     * budget, the duration is taken from the media playlist of the best variant.
+     */
+    void selectDefaultTracks(long budgetBytes) throws IOException {
+        if (budgetBytes != TrackSelectionPolicy.UNLIMITED) {
+            List<HlsTrack> videoTracks = availableTracks.get(DownloadItem.TrackType.VIDEO);
+            if (!videoTracks.isEmpty()) {
+                HlsTrack best = Collections.max(videoTracks, DownloadItem.Track.bitrateComparator);
+                durationUs = getTrackMedia(best).durationUs;
+            }
+        }
+
+        TrackSelectionPolicy policy = new TrackSelectionPolicy(budgetBytes);
+        selectedTracks = policy.select(availableTracks, new TrackSelectionPolicy.SizeEstimator<HlsTrack>() {
             @Override
-            public int compare(Variant lhs, Variant rhs) {
-                return rhs.format.bitrate - lhs.format.bitrate;
+            public long estimateSize(HlsTrack track) {
+                return (long) (getBitrate(track) / 8.0 * durationUs / 1000 / 1000);
             }
-        };
+        });
+    }
 
-        sortedVariants = new TreeSet<>(bitrateComparator);
-        sortedVariants.addAll(masterPlaylist.variants);
+    private static long getBitrate(HlsTrack track) {
+        long bitrate = track.getBitrate();
+        if (bitrate == 0 && track.getType() == DownloadItem.TrackType.AUDIO) {
+            bitrate = DEFAULT_AUDIO_BITRATE;
+        }
+        return bitrate;
     }
 
-    public HlsMasterPlaylist getMasterPlaylist() {
-        return masterPlaylist;
+    List<HlsTrack> getAvailableTracks(@NonNull DownloadItem.TrackType type) {
+        return Collections.unmodifiableList(availableTracks.get(type));
+    }
+
+    void setSelectedTracks(@NonNull DownloadItem.TrackType type, @NonNull List<HlsTrack> tracks) {
+        List<HlsTrack> available = availableTracks.get(type);
+        for (HlsTrack track : tracks) {
+            if (!available.contains(track)) {
+                throw new IllegalArgumentException("Not an available " + type + " track: " + track);
+            }
+        }
+        selectedTracks.put(type, new ArrayList<>(tracks));
     }
 
-    public void selectVariant(Variant selectedVariant) {
-        this.selectedVariant = selectedVariant;
+    @NonNull
+    List<HlsTrack> getSelectedTracks() {
+        List<HlsTrack> tracks = new ArrayList<>();
+        for (DownloadItem.TrackType type : DownloadItem.TrackType.values()) {
+            tracks.addAll(selectedTracks.get(type));
+        }
+        return tracks;
+    }
 
-        // Remove other variants from file.
-        sortedVariants.remove(selectedVariant);
+    DownloadItem.TrackSelector getTrackSelector() {
+        return new DownloadItem.TrackSelector() {
+            private HLSParser parser = HLSParser.this;
 
-        // Remove all bitrates except the selected.
-        String[] lines = masterPlaylistData.split("[\r\n]+");
-        // Removing all lines that reference the non-selected bitrates.
-        // This is very inefficient -- O(n^2) -- but n is expected to be very small (< 10).
-        for (Variant variant : sortedVariants) {
-            for (int i = 0; i < lines.length; i++) {
+            @Override
+            public List<DownloadItem.Track> getAvailableTracks(@NonNull DownloadItem.TrackType type) {
+                return new ArrayList<DownloadItem.Track>(parser.getAvailableTracks(type));
+            }
 
-                String line = lines[i];
-                if (line == null) {
-                    continue;
-                }
+            @Override
+            public List<DownloadItem.Track> getDownloadedTracks(@NonNull DownloadItem.TrackType type) {
+                Log.w(TAG, "Initial selector has no downloaded tracks!");
+                return new ArrayList<>();
+            }
 
-                if (line.matches(".+?BANDWIDTH=" + variant.format.bitrate + "\\b.+")) {
-                    lines[i] = null;
-                } else if (line.equals(variant.url)) {
-                    lines[i] = null;
+            @Override
+            public void setSelectedTracks(@NonNull DownloadItem.TrackType type, @NonNull List<DownloadItem.Track> tracks) {
+                List<HlsTrack> hlsTracks = new ArrayList<>(tracks.size());
+                for (DownloadItem.Track track : tracks) {
+                    // Tracks come from getAvailableTracks(); leaving the potential ClassCastException on purpose.
+                    hlsTracks.add((HlsTrack) track);
                 }
+                parser.setSelectedTracks(type, hlsTracks);
+            }
+
+            @Override
+            public void apply() throws IOException {
+                parser.apply();
+            }
+        };
+    }
+
+    // Download the media playlists of the selected tracks and write the local playlists.
+    public void apply() throws IOException {
+        if (trackMedia != null) {
+            Log.w(TAG, "Ignoring unsupported extra call to apply()");
+            return;
+        }
+        if (selectedTracks.get(DownloadItem.TrackType.VIDEO).isEmpty()) {
+            throw new IOException("No variant selected");
+        }
+
+        List<TrackMedia> media = new ArrayList<>();
+        List<HlsTrack> selected = getSelectedTracks();
+        for (HlsTrack track : selected) {
+            media.add(getTrackMedia(track));
+        }
+        for (TrackMedia unselected : parsedMedia.values()) {
+            if (!selected.contains(unselected.track)) {
+                Utils.deleteRecursive(unselected.directory);
             }
         }
+        saveLocalMaster();
+        trackMedia = media;
+    }
+
+    private void saveLocalMaster() {
+        Set<HlsTrack> selected = new HashSet<>(getSelectedTracks());
+        boolean keepAudioGroups = !selectedTracks.get(DownloadItem.TrackType.AUDIO).isEmpty();
+        boolean keepSubtitlesGroups = !selectedTracks.get(DownloadItem.TrackType.TEXT).isEmpty();
 
+        // Indexes match HlsPlaylistParser's: a variant per stream URI, an audio rendition per
+        // AUDIO tag with a URI, a subtitle rendition per SUBTITLES tag.
+        int variantIndex = 0;
+        int audioIndex = 0;
+        int subtitleIndex = 0;
+        String streamInf = null;
 
-        // Rebuild playlist
-        StringBuilder filteredPlaylist = new StringBuilder(masterPlaylistData.length());
+        String[] lines = masterPlaylistData.split("[\r\n]+");
+        StringBuilder localPlaylist = new StringBuilder(masterPlaylistData.length());
         for (String line : lines) {
-            if (line != null) {
-                if (!line.isEmpty() && line.charAt(0) != '#') {
-                    // this is the variant's playlist
-                    line = VARIANT_M3U8;
-//                    line = line.trim();
-//                    line = getHashedFileName(line);
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+
+            if (line.startsWith(STREAM_INF_TAG)) {
+                streamInf = line;
+                if (!keepAudioGroups) {
+                    streamInf = removeAttribute(streamInf, AUDIO_GROUP_PATTERN);
+                }
+                if (!keepSubtitlesGroups) {
+                    streamInf = removeAttribute(streamInf, SUBTITLES_GROUP_PATTERN);
+                }
+
+            } else if (line.charAt(0) != '#') {
+                if (streamInf != null) {
+                    HlsTrack track = getTrack(DownloadItem.TrackType.VIDEO, variantIndex++);
+                    if (selected.contains(track)) {
+                        localPlaylist.append(streamInf).append('\n').append(localPlaylistPath(track)).append('\n');
+                    }
+                    streamInf = null;
+                }
+
+            } else if (line.startsWith(MEDIA_TAG)) {
+                Matcher uriMatcher = URI_PATTERN.matcher(line);
+                if (!uriMatcher.find()) {
+                    // Muxed media or closed captions, nothing to download.
+                    localPlaylist.append(line).append('\n');
+                    continue;
+                }
+                Matcher typeMatcher = MEDIA_TYPE_PATTERN.matcher(line);
+                HlsTrack track = null;
+                if (typeMatcher.find()) {
+                    if ("AUDIO".equals(typeMatcher.group(1))) {
+                        track = getTrack(DownloadItem.TrackType.AUDIO, audioIndex++);
+                    } else {
+                        track = getTrack(DownloadItem.TrackType.TEXT, subtitleIndex++);
+                    }
+                }
+                if (track != null && selected.contains(track)) {
+                    localPlaylist.append(line.substring(0, uriMatcher.start(1)))
+                            .append(localPlaylistPath(track))
+                            .append(line.substring(uriMatcher.end(1)))
+                            .append('\n');
                 }
-                filteredPlaylist.append(line).append('\n');
+
+            } else if (!line.startsWith(I_FRAME_STREAM_INF_TAG)) {
+                // I-frame playlists are not downloaded.
+                localPlaylist.append(line).append('\n');
             }
         }
 
-        String filteredString = filteredPlaylist.toString();
+        saveToFile(localPlaylist.toString(), new File(targetDirectory, FILTERED_MASTER_M3U8));
+    }
 
-        // Save back to file.
-        File filteredPlaylistFile = new File(masterPlaylistFile.getParentFile(), FILTERED_MASTER_M3U8);
+    private static String removeAttribute(String line, Pattern attributePattern) {
+        line = attributePattern.matcher(line).replaceAll("");
+        return line.endsWith(",") ? line.substring(0, line.length() - 1) : line;
+    }
 
-        saveToFile(filteredString, filteredPlaylistFile);
+    private HlsTrack getTrack(DownloadItem.TrackType type, int index) {
+        List<HlsTrack> tracks = availableTracks.get(type);
+        return index < tracks.size() ? tracks.get(index) : null;
+    }
 
+    private static String localPlaylistPath(HlsTrack track) {
+        return track.getRelativeId() + "/" + VARIANT_M3U8;
     }
 
     private void saveToFile(String data, File file) {
@@ -197,133 +349,99 @@ class HLSParser {
         }
     }
 
-    public void parseVariant() throws IOException {
+    private TrackMedia getTrackMedia(HlsTrack track) throws IOException {
+        TrackMedia media = parsedMedia.get(track);
+        if (media == null) {
+            media = parseMediaPlaylist(track);
+            parsedMedia.put(track, media);
+        }
+        return media;
+    }
 
-        variantURL = new URL(masterURL, selectedVariant.url);
-        DownloadedPlaylist downloadedPlaylist = downloadAndParsePlaylist(HlsPlaylist.TYPE_MEDIA, variantURL, targetDirectory, item.getItemId());
+    // Stream the track's media playlist into its local copy, creating the download tasks on the way.
+    private TrackMedia parseMediaPlaylist(HlsTrack track) throws IOException {
 
-        mediaPlaylist = (HlsMediaPlaylist) downloadedPlaylist.playlist;
+        URL playlistURL = new URL(masterURL, track.getUrl());
+        File trackDirectory = new File(targetDirectory, track.getRelativeId());
+        if (!trackDirectory.mkdirs() && !trackDirectory.isDirectory()) {
+            throw new IOException("Can't create " + trackDirectory);
+        }
 
-        // modify pathnames
-        String[] lines = downloadedPlaylist.data.split("[\r\n]+");
-        for (int i = 0; i < lines.length; i++) {
-            String line = lines[i];
-            line = line.trim();
-            if (!line.isEmpty() && line.charAt(0) != '#') {
-                lines[i] = Utils.getHashedFileName(line);
-            }
-            if (sPlaylistParser.containsEncryptionKey(line)) {
-                lines[i] = replaceRemoteEncryptionKeyWithLocal(line);
-            }
-            Log.d(TAG, String.format("rename in playlist: '%s' ==> '%s'", line, lines[i]));
+        Log.d(TAG, "Downloading playlist: " + playlistURL);
+        HlsMediaPlaylistRewriter rewriter = new HlsMediaPlaylistRewriter(playlistURL, trackDirectory, track.getRelativeId());
+        InputStream inputStream = null;
+        FileOutputStream outputStream = null;
+        HttpURLConnection conn = null;
+        boolean fullyRead = false;
+        try {
+            conn = HttpConnectionFactory.getDefault().open(playlistURL);
+            conn.setRequestMethod("GET");
+            conn.connect();
+            inputStream = conn.getInputStream();
+            outputStream = new FileOutputStream(new File(trackDirectory, VARIANT_M3U8));
+            rewriter.rewrite(inputStream, outputStream);
+            fullyRead = inputStream.read() == -1;
+        } finally {
+            Utils.safeClose(outputStream);
+            Utils.safeClose(inputStream);
+            Utils.releaseConnection(conn, fullyRead);
         }
-        String modifiedData = TextUtils.join("\n", lines);
 
-        saveToFile(modifiedData, downloadedPlaylist.targetFile);
+        return new TrackMedia(track, playlistURL, trackDirectory, rewriter);
     }
 
     public DownloadItem getItem() {
         return item;
     }
 
-    public HlsMediaPlaylist getMediaPlaylist() {
-        return mediaPlaylist;
-    }
-
-    public ArrayList<DownloadTask> createEncryptionKeyDownloadTasks() throws MalformedURLException {
-        // create download tasks for all chunks.
-        List<HlsMediaPlaylist.Segment> segments = mediaPlaylist.segments;
-        // Using LinkedHashSet (which is an Ordered Set) to prevent duplicates.
-        // TODO: be smarter about duplicates.
-        LinkedHashSet<DownloadTask> downloadTasks = new LinkedHashSet<>(segments.size());
-
-        for (HlsMediaPlaylist.Segment segment : segments) {
-            if (segment.isEncrypted) {
-                downloadTasks.add(createEncryptionKeyDownloadTask(segment));
-            }
+    // Encryption keys first, then the segments of all selected tracks.
+    public ArrayList<DownloadTask> createDownloadTasks() {
+        ArrayList<DownloadTask> downloadTasks = new ArrayList<>();
+        for (TrackMedia media : trackMedia) {
+            downloadTasks.addAll(media.keyTasks);
         }
-
-        return new ArrayList<>(downloadTasks);
-    }
-
-    public ArrayList<DownloadTask> createSegmentDownloadTasks() throws MalformedURLException {
-        // create download tasks for all chunks.
-        List<HlsMediaPlaylist.Segment> segments = mediaPlaylist.segments;
-        // Using LinkedHashSet (which is an Ordered Set) to prevent duplicates.
-        // TODO: be smarter about duplicates.
-        LinkedHashSet<DownloadTask> downloadTasks = new LinkedHashSet<>(segments.size());
-
-        for (HlsMediaPlaylist.Segment segment : segments) {
-
-            URL segmentURL = new URL(variantURL, segment.url);
-            File segmentFile = new File(targetDirectory, Utils.getHashedFileName(segment.url));
-
-//            Log.d(TAG, String.format("rename in file: '%s' ==> '%s' (%s ==> %s)",
-//                    segmentURL, segmentFile, segment.url, Utils.getHashedFileName(segment.url)));
-
-            downloadTasks.add(new DownloadTask(segmentURL, segmentFile));
+        for (TrackMedia media : trackMedia) {
+            downloadTasks.addAll(media.segmentTasks);
         }
-
-        return new ArrayList<>(downloadTasks);
+        return downloadTasks;
     }
 
     public long getEstimatedSizeBytes() {
-        return (long) (selectedVariant.format.bitrate / 8.0 * mediaPlaylist.durationUs / 1000 / 1000);
+        long size = 0;
+        for (TrackMedia media : trackMedia) {
+            // Byte ranges are counted exactly; whole files are estimated from their duration.
+            size += media.rangeBytes + (long) (getBitrate(media.track) / 8.0 * media.wholeFilesSecs);
+        }
+        return size;
     }
 
     public String getPlaybackPath() {
         return FILTERED_MASTER_M3U8;
     }
 
-    /**
-     * Modifies encryption remote url to an local one that will be loaded in
-     * createEncryptionKeyDownloadTasks()
-     */
-    private String replaceRemoteEncryptionKeyWithLocal(String encryptionKeyLine) {
-        try {
-            String encryptionUri = sPlaylistParser.extractUriAttribute(encryptionKeyLine);
-            String encryptionKeyFileName = createEncryptionKeyFileName(encryptionUri);
-            return encryptionKeyLine.replace(encryptionUri, encryptionKeyFileName);
-        } catch (Exception e) {
-            return encryptionKeyLine;
-        }
-    }
-
-    /**
-     * @param segment
-     * @return DownloadTask for the remote encryption file. File name matches with the one stored
-     * in replaceRemoteEncryptionKeyWithLocal() method and the variant.m3u8 file
-     * @throws MalformedURLException
-     */
-    private DownloadTask createEncryptionKeyDownloadTask(Segment segment) throws MalformedURLException  {
-        String encryptionKeyFileName = createEncryptionKeyFileName(segment.encryptionKeyUri);
-        File encryptionKeyFile = new File(targetDirectory, encryptionKeyFileName);
-        URL encryptionKeyURL = prepareEncryptionKeyUrl(segment.encryptionKeyUri);
-        return new DownloadTask(encryptionKeyURL, encryptionKeyFile);
-    }
-
-    /**
-     * Checks whether the provided url is an absolute url and returns a full one
-     * @param url
-     * @return
-     * @throws MalformedURLException
-     */
-    private URL prepareEncryptionKeyUrl(String url) throws MalformedURLException {
-        if (!URLUtil.isValidUrl(url)) {
-            return new URL(variantURL, url);
-        } else {
-            return new URL(url);
+    // The localized media playlist of a track, and what it takes to download it.
+    private static class TrackMedia {
+        final HlsTrack track;
+        final URL playlistURL;
+        final File directory;
+        final long durationUs;
+        final List<DownloadTask> keyTasks;
+        final List<DownloadTask> segmentTasks;
+        final long rangeBytes;
+        final double wholeFilesSecs;
+
+        TrackMedia(HlsTrack track, URL playlistURL, File directory, HlsMediaPlaylistRewriter rewriter) {
+            this.track = track;
+            this.playlistURL = playlistURL;
+            this.directory = directory;
+            this.durationUs = rewriter.getDurationUs();
+            this.keyTasks = rewriter.getKeyTasks();
+            this.segmentTasks = rewriter.getSegmentTasks();
+            this.rangeBytes = rewriter.getRangeBytes();
+            this.wholeFilesSecs = rewriter.getWholeFilesSecs();
         }
     }
 
-    /**
-     * @param encryptionKeyUri
-     * @return Encrypted filename for AES-128 key file that should replace the remote key URI
-     */
-    private String createEncryptionKeyFileName(String encryptionKeyUri) {
-        return Utils.getHashedFileName(encryptionKeyUri);
-    }
-
     static class DownloadedPlaylist {
         final String data;
         final File targetFile;
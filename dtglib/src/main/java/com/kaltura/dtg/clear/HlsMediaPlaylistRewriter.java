@@ -0,0 +1,301 @@
+package com.kaltura.dtg.clear;
+
+import android.support.annotation.NonNull;
+
+import com.kaltura.dtg.Utils;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Localizes an HLS media playlist in a single pass: reads it line by line, writes the local copy
+ * with segment and key URIs replaced by local file names, and creates the download tasks as it
+ * goes. Nothing is held per line; only the byte ranges are kept until the end, where the ranges of
+ * each resource are merged.
+ *
+ * Whole segments and AES-128 keys become tasks once per URI. Byte ranges of a resource are sorted,
+ * and ranges that touch or overlap are merged, up to {@link #MAX_MERGED_RANGE_BYTES}; the result
+ * never overlaps. A resource that is also referenced without a range is downloaded whole. Ranges
+ * are downloaded in place, so the local playlist keeps the remote offsets, written explicitly.
+ */
+class HlsMediaPlaylistRewriter {
+    // Byte ranges of one resource that touch are fetched in a single request, up to this size.
+    static final long MAX_MERGED_RANGE_BYTES = 4 * 1024 * 1024;
+
+    private static final String EXTINF_TAG = "#EXTINF:";
+    private static final String BYTERANGE_TAG = "#EXT-X-BYTERANGE:";
+    private static final String KEY_TAG = "#EXT-X-KEY:";
+    private static final String STREAM_INF_TAG = "#EXT-X-STREAM-INF";
+    private static final String ENDLIST_TAG = "#EXT-X-ENDLIST";
+    private static final String METHOD_AES128 = "METHOD=AES-128";
+    private static final String URI_ATTR = "URI=\"";
+
+    private final URL playlistURL;
+    private final File directory;
+    private final String trackRelativeId;
+
+    // Remote URI to local file name; each URI is hashed once.
+    private final Map<String, String> localNames = new HashMap<>();
+    private final Set<String> wholeFiles = new HashSet<>();
+    private final Set<String> keys = new HashSet<>();
+    private final Map<String, List<ByteRange>> byteRanges = new LinkedHashMap<>();
+    private final List<DownloadTask> keyTasks = new ArrayList<>();
+    private final List<DownloadTask> segmentTasks = new ArrayList<>();
+
+    private long durationUs;
+    private double wholeFilesSecs;
+    private long rangeBytes;
+
+    HlsMediaPlaylistRewriter(@NonNull URL playlistURL, @NonNull File directory, String trackRelativeId) {
+        this.playlistURL = playlistURL;
+        this.directory = directory;
+        this.trackRelativeId = trackRelativeId;
+    }
+
+    /**
+     * Read the remote playlist from input and write the local one to output. Neither stream is
+     * closed.
+     */
+    void rewrite(@NonNull InputStream input, @NonNull OutputStream output) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(input, "UTF-8"));
+        Writer writer = new BufferedWriter(new OutputStreamWriter(output, "UTF-8"));
+
+        double segmentSecs = 0;
+        long rangeLength = -1;
+        long rangeOffset = 0;    // the next implicit offset
+        int segmentCount = 0;
+
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+
+            if (line.charAt(0) != '#') {
+                long startTimeUs = durationUs;
+                durationUs += (long) (segmentSecs * 1000 * 1000);
+                if (rangeLength >= 0) {
+                    addByteRange(line, rangeOffset, rangeLength, startTimeUs, segmentSecs);
+                    rangeOffset += rangeLength;
+                } else {
+                    addWholeFile(line, startTimeUs, segmentSecs);
+                    rangeOffset = 0;
+                }
+                line = localName(line);
+                segmentSecs = 0;
+                rangeLength = -1;
+                segmentCount++;
+
+            } else if (line.startsWith(EXTINF_TAG)) {
+                int comma = line.indexOf(',');
+                segmentSecs = parseDouble(line.substring(EXTINF_TAG.length(), comma < 0 ? line.length() : comma));
+
+            } else if (line.startsWith(BYTERANGE_TAG)) {
+                String value = line.substring(BYTERANGE_TAG.length());
+                int at = value.indexOf('@');
+                rangeLength = parseLong(at < 0 ? value : value.substring(0, at));
+                if (at >= 0) {
+                    rangeOffset = parseLong(value.substring(at + 1));
+                }
+                // An implicit offset follows from the previous range, which may have been merged.
+                line = BYTERANGE_TAG + rangeLength + "@" + rangeOffset;
+
+            } else if (line.startsWith(KEY_TAG)) {
+                line = rewriteKey(line);
+
+            } else if (line.startsWith(STREAM_INF_TAG)) {
+                throw new IOException("Expected a media playlist: " + playlistURL);
+            }
+
+            writer.write(line);
+            writer.write('\n');
+
+            if (line.equals(ENDLIST_TAG)) {
+                break;
+            }
+        }
+        writer.flush();
+
+        if (segmentCount == 0) {
+            throw new IOException("No segments in media playlist: " + playlistURL);
+        }
+        addRangeTasks();
+    }
+
+    private static double parseDouble(String value) throws IOException {
+        try {
+            return Double.parseDouble(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid number in playlist: " + value);
+        }
+    }
+
+    private static long parseLong(String value) throws IOException {
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid number in playlist: " + value);
+        }
+    }
+
+    private String localName(String uri) {
+        String name = localNames.get(uri);
+        if (name == null) {
+            name = Utils.getHashedFileName(uri);
+            localNames.put(uri, name);
+        }
+        return name;
+    }
+
+    private void addWholeFile(String uri, long startTimeUs, double secs) throws IOException {
+        wholeFilesSecs += secs;
+        if (wholeFiles.add(uri)) {
+            DownloadTask task = new DownloadTask(new URL(playlistURL, uri), new File(directory, localName(uri)));
+            task.trackRelativeId = trackRelativeId;
+            task.startTimeMs = startTimeUs / 1000;
+            segmentTasks.add(task);
+        }
+    }
+
+    private void addByteRange(String uri, long offset, long length, long startTimeUs, double secs) {
+        List<ByteRange> ranges = byteRanges.get(uri);
+        if (ranges == null) {
+            ranges = new ArrayList<>();
+            byteRanges.put(uri, ranges);
+        }
+        ranges.add(new ByteRange(offset, offset + length - 1, startTimeUs, secs));
+    }
+
+    // Replace the URI of an AES-128 key with the local key file, and download it once.
+    private String rewriteKey(String line) throws IOException {
+        if (!line.contains(METHOD_AES128)) {
+            return line;
+        }
+        int uriStart = line.indexOf(URI_ATTR);
+        int uriEnd = uriStart < 0 ? -1 : line.indexOf('"', uriStart + URI_ATTR.length());
+        if (uriEnd < 0) {
+            return line;
+        }
+        uriStart += URI_ATTR.length();
+        String uri = line.substring(uriStart, uriEnd);
+        String name = localName(uri);
+        if (keys.add(uri)) {
+            DownloadTask task = new DownloadTask(new URL(playlistURL, uri), new File(directory, name));
+            task.trackRelativeId = trackRelativeId;
+            keyTasks.add(task);
+        }
+        return line.substring(0, uriStart) + name + line.substring(uriEnd);
+    }
+
+    private void addRangeTasks() throws IOException {
+        Comparator<ByteRange> offsetComparator = new Comparator<ByteRange>() {
+            @Override
+            public int compare(ByteRange lhs, ByteRange rhs) {
+                return lhs.start < rhs.start ? -1 : (lhs.start == rhs.start ? 0 : 1);
+            }
+        };
+
+        for (Map.Entry<String, List<ByteRange>> entry : byteRanges.entrySet()) {
+            String uri = entry.getKey();
+            List<ByteRange> sorted = entry.getValue();
+            if (wholeFiles.contains(uri)) {
+                // Downloaded whole; its ranges are estimated like whole files.
+                for (ByteRange range : sorted) {
+                    wholeFilesSecs += range.secs;
+                }
+                continue;
+            }
+            Collections.sort(sorted, offsetComparator);
+
+            URL url = new URL(playlistURL, uri);
+            File file = new File(directory, localName(uri));
+            ByteRange current = null;
+            for (ByteRange range : sorted) {
+                long start = range.start;
+                if (current != null && start <= current.end + 1) {
+                    if (range.end <= current.end) {
+                        continue;   // already covered
+                    }
+                    if (range.end - current.start + 1 <= MAX_MERGED_RANGE_BYTES) {
+                        current.end = range.end;
+                        current.startTimeUs = Math.min(current.startTimeUs, range.startTimeUs);
+                        continue;
+                    }
+                    // Too large to merge; only fetch the bytes that are not covered yet.
+                    start = current.end + 1;
+                }
+                if (current != null) {
+                    addRangeTask(url, file, current);
+                }
+                current = new ByteRange(start, range.end, range.startTimeUs, 0);
+            }
+            addRangeTask(url, file, current);
+        }
+        byteRanges.clear();
+    }
+
+    private void addRangeTask(URL url, File file, ByteRange range) {
+        DownloadTask task = new DownloadTask(url, file, range.start, range.end);
+        task.trackRelativeId = trackRelativeId;
+        task.startTimeMs = range.startTimeUs / 1000;
+        segmentTasks.add(task);
+        rangeBytes += range.end - range.start + 1;
+    }
+
+    // Keys of the playlist, in playlist order.
+    List<DownloadTask> getKeyTasks() {
+        return keyTasks;
+    }
+
+    // Whole segments in playlist order, then the merged byte ranges.
+    List<DownloadTask> getSegmentTasks() {
+        return segmentTasks;
+    }
+
+    long getDurationUs() {
+        return durationUs;
+    }
+
+    // Exact size of the byte range tasks.
+    long getRangeBytes() {
+        return rangeBytes;
+    }
+
+    // Duration of the segments that are downloaded as whole files.
+    double getWholeFilesSecs() {
+        return wholeFilesSecs;
+    }
+
+    // An inclusive byte range of a segment resource.
+    private static class ByteRange {
+        final long start;
+        long end;
+        long startTimeUs;
+        final double secs;
+
+        ByteRange(long start, long end, long startTimeUs, double secs) {
+            this.start = start;
+            this.end = end;
+            this.startTimeUs = startTimeUs;
+            this.secs = secs;
+        }
+    }
+}
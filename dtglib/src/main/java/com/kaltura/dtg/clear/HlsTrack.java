@@ -0,0 +1,111 @@
+package com.kaltura.dtg.clear;
+
+import android.text.TextUtils;
+
+import com.kaltura.android.exoplayer.hls.Variant;
+import com.kaltura.dtg.DownloadItem;
+
+/**
+ * A variant (VIDEO) or an EXT-X-MEDIA rendition (AUDIO, TEXT) of an HLS master playlist.
+ *
+ * The relative id is the type and the index in the master playlist, e.g. "v2" for the third
+ * variant; it's also the local directory of the track's media playlist and segments.
+ */
+class HlsTrack implements DownloadItem.Track {
+    private final DownloadItem.TrackType type;
+    private final String relativeId;
+    private final String url;   // as written in the master playlist
+    private final String name;
+    private final String language;
+    private final long bitrate;
+    private final int width;
+    private final int height;
+
+    HlsTrack(DownloadItem.TrackType type, int index, Variant variant) {
+        this.type = type;
+        this.relativeId = prefix(type) + index;
+        this.url = variant.url;
+        this.name = variant.format.id;
+        this.language = variant.format.language;
+        this.bitrate = Math.max(variant.format.bitrate, 0);
+        this.width = variant.format.width;
+        this.height = variant.format.height;
+    }
+
+    private static String prefix(DownloadItem.TrackType type) {
+        switch (type) {
+            case VIDEO:
+                return "v";
+            case AUDIO:
+                return "a";
+            case TEXT:
+                return "t";
+            default:
+                return "u";
+        }
+    }
+
+    String getRelativeId() {
+        return relativeId;
+    }
+
+    String getUrl() {
+        return url;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    @Override
+    public DownloadItem.TrackType getType() {
+        return type;
+    }
+
+    @Override
+    public String getLanguage() {
+        return language;
+    }
+
+    @Override
+    public long getBitrate() {
+        return bitrate;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        HlsTrack hlsTrack = (HlsTrack) o;
+
+        return relativeId.equals(hlsTrack.relativeId) && TextUtils.equals(url, hlsTrack.url);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * relativeId.hashCode() + (url != null ? url.hashCode() : 0);
+    }
+
+    @Override
+    public String toString() {
+        return "HlsTrack{" +
+                "relativeId=" + relativeId +
+                ", type=" + type +
+                ", name='" + name + '\'' +
+                ", language='" + language + '\'' +
+                ", bitrate=" + bitrate +
+                ", resolution=" + width + "x" + height +
+                '}';
+    }
+}
@@ -0,0 +1,67 @@
+package com.kaltura.dtg.clear;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory registry of the items known to the service, keyed by itemId.
+ *
+ * Once an item is loaded (or created), the cached instance is the authoritative copy: the service
+ * changes it first and then writes the change through to the {@link Database}. Lookups only go
+ * to the database on a cache miss.
+ */
+class ItemCache {
+    private final Map<String, DefaultDownloadItem> items = new HashMap<>();
+    private final Database database;
+    private final DefaultDownloadService service;
+
+    ItemCache(@NonNull Database database, @NonNull DefaultDownloadService service) {
+        this.database = database;
+        this.service = service;
+    }
+
+    @Nullable
+    synchronized DefaultDownloadItem get(@NonNull String itemId) {
+        DefaultDownloadItem item = items.get(itemId);
+        if (item == null) {
+            item = database.findItemInDB(itemId);
+            if (item != null) {
+                item.setProvider(service);
+                items.put(itemId, item);
+            }
+        }
+        return item;
+    }
+
+    synchronized void put(@NonNull DefaultDownloadItem item) {
+        items.put(item.getItemId(), item);
+    }
+
+    synchronized void remove(@NonNull String itemId) {
+        items.remove(itemId);
+    }
+
+    synchronized void clear() {
+        items.clear();
+    }
+
+    // Replace freshly-read db items with their cached instances; cache the ones we didn't have.
+    synchronized List<DefaultDownloadItem> canonicalize(@NonNull List<DefaultDownloadItem> dbItems) {
+        List<DefaultDownloadItem> result = new ArrayList<>(dbItems.size());
+        for (DefaultDownloadItem dbItem : dbItems) {
+            DefaultDownloadItem item = items.get(dbItem.getItemId());
+            if (item == null) {
+                item = dbItem;
+                item.setProvider(service);
+                items.put(item.getItemId(), item);
+            }
+            result.add(item);
+        }
+        return result;
+    }
+}
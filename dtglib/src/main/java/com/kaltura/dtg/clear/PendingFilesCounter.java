@@ -0,0 +1,79 @@
+package com.kaltura.dtg.clear;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * In-memory count of the pending (not completed) files of each item and track, so that item
+ * completion can be detected without counting the Files table after every finished task.
+ *
+ * An item's counts are loaded from the db when its download starts, and decremented as its tasks
+ * complete. Items that were not loaded report -1.
+ */
+class PendingFilesCounter {
+
+    private final Map<String, ItemCounts> items = new HashMap<>();
+
+    synchronized void load(@NonNull String itemId, @NonNull Map<String, Integer> countsByTrack) {
+        ItemCounts counts = new ItemCounts();
+        for (Map.Entry<String, Integer> entry : countsByTrack.entrySet()) {
+            counts.byTrack.put(entry.getKey(), entry.getValue());
+            counts.total += entry.getValue();
+        }
+        items.put(itemId, counts);
+    }
+
+    synchronized boolean isLoaded(@NonNull String itemId) {
+        return items.containsKey(itemId);
+    }
+
+    synchronized void remove(@NonNull String itemId) {
+        items.remove(itemId);
+    }
+
+    synchronized void clear() {
+        items.clear();
+    }
+
+    /**
+     * Count the task as completed.
+     * @return the number of files still pending for the task's item, or -1 if the item wasn't loaded.
+     */
+    synchronized int decrement(@NonNull DownloadTask task) {
+        ItemCounts counts = items.get(task.itemId);
+        if (counts == null) {
+            return -1;
+        }
+        // A task that isn't counted, e.g. of a track removed while it ran, leaves the counts as they are.
+        Integer trackCount = counts.byTrack.get(task.trackRelativeId);
+        if (trackCount != null && trackCount > 0) {
+            counts.byTrack.put(task.trackRelativeId, trackCount - 1);
+            counts.total--;
+        }
+        return counts.total;
+    }
+
+    /**
+     * @param trackId a track's relative id, or null to count all files of the item.
+     * @return the number of pending files, or -1 if the item wasn't loaded.
+     */
+    synchronized int get(@NonNull String itemId, @Nullable String trackId) {
+        ItemCounts counts = items.get(itemId);
+        if (counts == null) {
+            return -1;
+        }
+        if (trackId == null) {
+            return counts.total;
+        }
+        Integer trackCount = counts.byTrack.get(trackId);
+        return trackCount == null ? 0 : trackCount;
+    }
+
+    private static class ItemCounts {
+        final Map<String, Integer> byTrack = new HashMap<>();
+        int total;
+    }
+}
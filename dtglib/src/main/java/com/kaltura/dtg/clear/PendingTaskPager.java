@@ -0,0 +1,64 @@
+package com.kaltura.dtg.clear;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.List;
+
+/**
+ * Reads an item's pending tasks from the db a page at a time, so that only a window of them is
+ * held in memory, however long the item is.
+ *
+ * Pages are read with a (FileStartTime, ROWID) cursor. When a time range is prioritized, the tasks
+ * inside the range are read first, then the rest.
+ */
+class PendingTaskPager implements DownloadScheduler.TaskSource {
+    private final Database database;
+    private final ProgressJournal progressJournal;
+    private final String itemId;
+
+    private long[] timeRange;
+    private boolean inRange;
+    private long afterStartTimeMs;
+    private long afterRowId;
+
+    PendingTaskPager(@NonNull Database database, @NonNull ProgressJournal progressJournal, @NonNull String itemId) {
+        this.database = database;
+        this.progressJournal = progressJournal;
+        this.itemId = itemId;
+        rewind(null);
+    }
+
+    @Override
+    public synchronized List<DownloadTask> next(int maxCount) {
+        // Completed tasks that are still in the journal would be read as pending.
+        progressJournal.flush();
+
+        List<DownloadTask> page = database.readPendingDownloadTasksPage(itemId, afterStartTimeMs, afterRowId, timeRange, inRange, maxCount);
+        if (page.isEmpty() && timeRange != null && inRange) {
+            // Done with the range; continue with the tasks outside it.
+            inRange = false;
+            resetCursor();
+            page = database.readPendingDownloadTasksPage(itemId, afterStartTimeMs, afterRowId, timeRange, false, maxCount);
+        }
+
+        if (!page.isEmpty()) {
+            DownloadTask last = page.get(page.size() - 1);
+            afterStartTimeMs = last.startTimeMs;
+            afterRowId = last.rowId;
+        }
+        return page;
+    }
+
+    @Override
+    public synchronized void rewind(@Nullable long[] timeRange) {
+        this.timeRange = timeRange;
+        this.inRange = timeRange != null;
+        resetCursor();
+    }
+
+    private void resetCursor() {
+        afterStartTimeMs = Long.MIN_VALUE;
+        afterRowId = -1;
+    }
+}
@@ -0,0 +1,158 @@
+package com.kaltura.dtg.clear;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+
+import com.kaltura.dtg.DownloadItem;
+import com.kaltura.dtg.DownloadStateListener;
+import com.kaltura.dtg.DownloadStateReason;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Delivers download state callbacks to the app's {@link DownloadStateListener}, on a single looper.
+ *
+ * Progress is coalesced: an item that reported progress is only marked dirty, and all dirty items
+ * get one {@link DownloadStateListener#onProgressChange(DownloadItem, long)} with their current
+ * downloaded size when the interval expires. State transitions (start, pause, complete, failure,
+ * removal) are delivered right away and in order; an item's pending progress is delivered just
+ * before its state transition. Events are sent as pooled {@link Message}s, not Runnables.
+ */
+class ProgressDispatcher implements Handler.Callback {
+    private static final int MSG_PROGRESS = 1;
+    private static final int MSG_START = 2;
+    private static final int MSG_PAUSE = 3;
+    private static final int MSG_COMPLETE = 4;
+    private static final int MSG_FAILURE = 5;
+    private static final int MSG_REMOVED = 6;
+
+    private static final DownloadStateReason[] REASONS = DownloadStateReason.values();
+
+    private final Handler handler;
+    private final long intervalMillis;
+    private volatile DownloadStateListener listener;
+
+    // Guarded by this.
+    private final Map<String, DefaultDownloadItem> dirtyItems = new LinkedHashMap<>();
+    private boolean progressScheduled;
+    private long lastProgressTime;
+
+    // Only used on the looper.
+    private final List<DefaultDownloadItem> progressBatch = new ArrayList<>();
+
+    ProgressDispatcher(@NonNull Looper looper, @NonNull DownloadStateListener listener, long intervalMillis) {
+        this.handler = new Handler(looper, this);
+        this.listener = listener;
+        this.intervalMillis = intervalMillis;
+    }
+
+    void setListener(@NonNull DownloadStateListener listener) {
+        this.listener = listener;
+    }
+
+    void progress(@NonNull DefaultDownloadItem item) {
+        synchronized (this) {
+            dirtyItems.put(item.getItemId(), item);
+            if (progressScheduled) {
+                return;
+            }
+            progressScheduled = true;
+            handler.sendEmptyMessageAtTime(MSG_PROGRESS, Math.max(SystemClock.uptimeMillis(), lastProgressTime + intervalMillis));
+        }
+    }
+
+    void started(@NonNull DownloadItem item) {
+        handler.obtainMessage(MSG_START, item).sendToTarget();
+    }
+
+    void completed(@NonNull DownloadItem item) {
+        handler.obtainMessage(MSG_COMPLETE, item).sendToTarget();
+    }
+
+    void paused(@NonNull DownloadItem item, @NonNull DownloadStateReason reason, Exception error) {
+        handler.obtainMessage(MSG_PAUSE, reason.ordinal(), 0, new ItemError(item, error)).sendToTarget();
+    }
+
+    void failed(@NonNull DownloadItem item, Exception error) {
+        handler.obtainMessage(MSG_FAILURE, new ItemError(item, error)).sendToTarget();
+    }
+
+    void removed(@NonNull String itemId) {
+        synchronized (this) {
+            dirtyItems.remove(itemId);
+        }
+        handler.obtainMessage(MSG_REMOVED, itemId).sendToTarget();
+    }
+
+    @Override
+    public boolean handleMessage(Message msg) {
+        DownloadStateListener listener = this.listener;
+        switch (msg.what) {
+            case MSG_PROGRESS:
+                synchronized (this) {
+                    progressBatch.addAll(dirtyItems.values());
+                    dirtyItems.clear();
+                    progressScheduled = false;
+                    lastProgressTime = SystemClock.uptimeMillis();
+                }
+                for (DefaultDownloadItem item : progressBatch) {
+                    listener.onProgressChange(item, item.getDownloadedSizeBytes());
+                }
+                progressBatch.clear();
+                return true;
+
+            case MSG_START:
+                listener.onDownloadStart((DownloadItem) msg.obj);
+                return true;
+
+            case MSG_COMPLETE:
+                DownloadItem item = (DownloadItem) msg.obj;
+                deliverPendingProgress(listener, item.getItemId());
+                listener.onDownloadComplete(item);
+                return true;
+
+            case MSG_PAUSE:
+                ItemError pause = (ItemError) msg.obj;
+                deliverPendingProgress(listener, pause.item.getItemId());
+                listener.onDownloadPause(pause.item, REASONS[msg.arg1], pause.error);
+                return true;
+
+            case MSG_FAILURE:
+                ItemError failure = (ItemError) msg.obj;
+                deliverPendingProgress(listener, failure.item.getItemId());
+                listener.onDownloadFailure(failure.item, failure.error);
+                return true;
+
+            case MSG_REMOVED:
+                listener.onDownloadRemoved((String) msg.obj);
+                return true;
+        }
+        return false;
+    }
+
+    private void deliverPendingProgress(DownloadStateListener listener, String itemId) {
+        DefaultDownloadItem item;
+        synchronized (this) {
+            item = dirtyItems.remove(itemId);
+        }
+        if (item != null) {
+            listener.onProgressChange(item, item.getDownloadedSizeBytes());
+        }
+    }
+
+    private static class ItemError {
+        final DownloadItem item;
+        final Exception error;
+
+        ItemError(DownloadItem item, Exception error) {
+            this.item = item;
+            this.error = error;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.kaltura.dtg.clear;
+
+import android.os.Handler;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Coalesces downloaded-size updates and task completions instead of writing each progress report
+ * to the db.
+ *
+ * Byte deltas are accumulated per item (the running total is kept by the cached item) and the
+ * dirty items are written to the Items table, together with the batch of completed tasks, in a
+ * single transaction, either when the flush interval expires or when enough bytes have accumulated.
+ * State transitions call {@link #flush()} directly, so a crash loses at most one flush window of
+ * progress.
+ */
+class ProgressJournal {
+    private final Database database;
+    private final Handler handler;
+    private final long flushIntervalMillis;
+    private final long flushThresholdBytes;
+
+    private final Map<String, DefaultDownloadItem> dirtyItems = new LinkedHashMap<>();
+    private List<DownloadTask> completedTasks = new ArrayList<>();
+    private List<DownloadTask> contentInfoTasks = new ArrayList<>();
+    private Map<Long, DownloadTask> rangeTasks = new LinkedHashMap<>();
+    private long pendingBytes;
+    private boolean flushScheduled;
+
+    private final Runnable flushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (ProgressJournal.this) {
+                flushScheduled = false;
+            }
+            flush();
+        }
+    };
+
+    ProgressJournal(@NonNull Database database, @NonNull Handler handler, long flushIntervalMillis, long flushThresholdBytes) {
+        this.database = database;
+        this.handler = handler;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.flushThresholdBytes = flushThresholdBytes;
+    }
+
+    void record(@NonNull DefaultDownloadItem item, long newBytes, @Nullable DownloadTask completedTask) {
+        boolean flushNow;
+        synchronized (this) {
+            dirtyItems.put(item.getItemId(), item);
+            pendingBytes += newBytes;
+            if (completedTask != null) {
+                completedTasks.add(completedTask);
+            }
+
+            flushNow = pendingBytes >= flushThresholdBytes;
+            if (!flushNow && !flushScheduled) {
+                flushScheduled = handler.postDelayed(flushRunnable, flushIntervalMillis);
+            }
+        }
+
+        if (flushNow) {
+            flush();
+        }
+    }
+
+    // Save the task's contentLength and etag with the next flush.
+    synchronized void recordContentInfo(@NonNull DownloadTask task) {
+        contentInfoTasks.add(task);
+    }
+
+    // Save the ranged task's progress with the next flush, together with the item's downloaded size.
+    synchronized void recordRangeProgress(@NonNull DownloadTask task) {
+        rangeTasks.put(task.rowId, task);
+    }
+
+    // Remove the item without writing it, e.g. when it's removed from the db.
+    synchronized void discard(@NonNull String itemId) {
+        dirtyItems.remove(itemId);
+        removeItemTasks(completedTasks, itemId);
+        removeItemTasks(contentInfoTasks, itemId);
+        removeItemTasks(rangeTasks.values(), itemId);
+    }
+
+    private static void removeItemTasks(Collection<DownloadTask> tasks, String itemId) {
+        for (Iterator<DownloadTask> it = tasks.iterator(); it.hasNext(); ) {
+            if (itemId.equals(it.next().itemId)) {
+                it.remove();
+            }
+        }
+    }
+
+    void flush() {
+        List<DefaultDownloadItem> items;
+        List<DownloadTask> tasks;
+        List<DownloadTask> infoTasks;
+        List<DownloadTask> ranges;
+        synchronized (this) {
+            if (dirtyItems.isEmpty() && completedTasks.isEmpty() && contentInfoTasks.isEmpty() && rangeTasks.isEmpty()) {
+                return;
+            }
+            items = new ArrayList<>(dirtyItems.values());
+            dirtyItems.clear();
+            pendingBytes = 0;
+            tasks = completedTasks;
+            completedTasks = new ArrayList<>();
+            infoTasks = contentInfoTasks;
+            contentInfoTasks = new ArrayList<>();
+            ranges = new ArrayList<>(rangeTasks.values());
+            rangeTasks.clear();
+        }
+
+        // The items hold the running totals, so the latest value is written even if flushes race.
+        database.saveProgress(items, tasks, infoTasks, ranges);
+    }
+
+    void close() {
+        handler.removeCallbacks(flushRunnable);
+        flush();
+    }
+}
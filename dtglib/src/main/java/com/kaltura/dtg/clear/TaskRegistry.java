@@ -0,0 +1,175 @@
+package com.kaltura.dtg.clear;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The in-flight futures of each item, and the item's paused and removed flags, safe to use from
+ * any thread.
+ *
+ * Every item has its own entry with its own lock, so threads working on different items never
+ * contend; cancelling an item only touches that item's futures. The flags are read without
+ * locking. An entry without futures and flags is dropped; an entry is never reused after that,
+ * so an add that races with the drop retries on a fresh entry.
+ */
+class TaskRegistry {
+    private static final String TAG = "TaskRegistry";
+
+    private static final int PAUSED = 1;
+    private static final int REMOVED = 2;
+
+    private final ConcurrentMap<String, ItemEntry> items = new ConcurrentHashMap<>();
+
+    void add(@NonNull String itemId, @NonNull Future<?> future) {
+        while (true) {
+            ItemEntry entry = liveEntry(itemId);
+            synchronized (entry) {
+                if (!entry.dropped) {
+                    entry.futures.add(future);
+                    return;
+                }
+            }
+        }
+    }
+
+    void remove(@NonNull String itemId, @NonNull Future<?> future) {
+        ItemEntry entry = items.get(itemId);
+        if (entry != null) {
+            synchronized (entry) {
+                entry.futures.remove(future);
+                dropIfEmpty(itemId, entry);
+            }
+        }
+    }
+
+    // Interrupt the item's running tasks. Returns the number of futures that were cancelled.
+    int cancelItem(@NonNull String itemId) {
+        ItemEntry entry = items.get(itemId);
+        if (entry == null) {
+            return 0;
+        }
+        List<Future<?>> futures;
+        synchronized (entry) {
+            futures = new ArrayList<>(entry.futures);
+        }
+        // Outside the lock: a cancelled future removes itself.
+        Log.d(TAG, "cancelItem: " + itemId + "; count=" + futures.size());
+        for (Future<?> future : futures) {
+            future.cancel(true);
+        }
+        return futures.size();
+    }
+
+    void cancelAll() {
+        for (String itemId : items.keySet()) {
+            cancelItem(itemId);
+        }
+    }
+
+    int getTaskCount(@NonNull String itemId) {
+        ItemEntry entry = items.get(itemId);
+        if (entry == null) {
+            return 0;
+        }
+        synchronized (entry) {
+            return entry.futures.size();
+        }
+    }
+
+    boolean isPaused(@NonNull String itemId) {
+        return hasFlag(itemId, PAUSED);
+    }
+
+    // Returns false if the item was already paused.
+    boolean markPaused(@NonNull String itemId) {
+        return setFlag(itemId, PAUSED);
+    }
+
+    void clearPaused(@NonNull String itemId) {
+        clearFlag(itemId, PAUSED);
+    }
+
+    boolean isRemoved(@NonNull String itemId) {
+        return hasFlag(itemId, REMOVED);
+    }
+
+    // Returns false if the item was already removed.
+    boolean markRemoved(@NonNull String itemId) {
+        return setFlag(itemId, REMOVED);
+    }
+
+    void clearRemoved(@NonNull String itemId) {
+        clearFlag(itemId, REMOVED);
+    }
+
+    // Number of items that have futures or flags.
+    int size() {
+        return items.size();
+    }
+
+    private boolean hasFlag(String itemId, int flag) {
+        ItemEntry entry = items.get(itemId);
+        return entry != null && (entry.flags.get() & flag) != 0;
+    }
+
+    private boolean setFlag(String itemId, int flag) {
+        while (true) {
+            ItemEntry entry = liveEntry(itemId);
+            synchronized (entry) {
+                if (!entry.dropped) {
+                    int old = entry.flags.getAndSet(entry.flags.get() | flag);
+                    return (old & flag) == 0;
+                }
+            }
+        }
+    }
+
+    private void clearFlag(String itemId, int flag) {
+        ItemEntry entry = items.get(itemId);
+        if (entry != null) {
+            synchronized (entry) {
+                entry.flags.set(entry.flags.get() & ~flag);
+                dropIfEmpty(itemId, entry);
+            }
+        }
+    }
+
+    private ItemEntry liveEntry(String itemId) {
+        ItemEntry entry = items.get(itemId);
+        if (entry == null) {
+            ItemEntry newEntry = new ItemEntry();
+            entry = items.putIfAbsent(itemId, newEntry);
+            if (entry == null) {
+                entry = newEntry;
+            }
+        }
+        return entry;
+    }
+
+    // Must hold the entry's lock.
+    private void dropIfEmpty(String itemId, ItemEntry entry) {
+        if (!entry.dropped && entry.futures.isEmpty() && entry.flags.get() == 0) {
+            entry.dropped = true;
+            items.remove(itemId, entry);
+        }
+    }
+
+    private static class ItemEntry {
+        // Guarded by the entry's lock.
+        final Set<Future<?>> futures = Collections.newSetFromMap(new IdentityHashMap<Future<?>, Boolean>());
+        boolean dropped;
+
+        // Changed under the lock, read without it.
+        final AtomicInteger flags = new AtomicInteger();
+    }
+}
@@ -0,0 +1,142 @@
+package com.kaltura.dtg.clear;
+
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.kaltura.dtg.DownloadItem;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Chooses the default tracks of a new item: the best video, audio and text combination whose
+ * estimated size fits a byte budget.
+ *
+ * Audio is chosen from the language of the first audio track, text is the first text track. Video
+ * comes first: the highest video bitrate for which an audio track still fits, with the best such
+ * audio. Text is dropped if that's the only way to fit. If nothing fits, the smallest combination
+ * is chosen; the caller checks the final size against the free space.
+ */
+class TrackSelectionPolicy {
+    private static final String TAG = "TrackSelectionPolicy";
+
+    static final long UNLIMITED = Long.MAX_VALUE;
+
+    interface SizeEstimator<T extends DownloadItem.Track> {
+        long estimateSize(T track);
+    }
+
+    private final long budgetBytes;
+
+    TrackSelectionPolicy(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    @NonNull
+    <T extends DownloadItem.Track> Map<DownloadItem.TrackType, List<T>> select(@NonNull Map<DownloadItem.TrackType, List<T>> availableTracks,
+                                                                           @NonNull SizeEstimator<T> estimator) {
+
+        List<T> videoTracks = byBitrate(availableTracks.get(DownloadItem.TrackType.VIDEO));
+        List<T> audioTracks = byBitrate(firstLanguage(availableTracks.get(DownloadItem.TrackType.AUDIO)));
+        List<T> textTracks = availableTracks.get(DownloadItem.TrackType.TEXT);
+        T textTrack = textTracks == null || textTracks.isEmpty() ? null : textTracks.get(0);
+
+        T video;
+        T audio;
+        T text = textTrack;
+        if (budgetBytes == UNLIMITED) {
+            // No need to estimate anything.
+            video = first(videoTracks);
+            audio = first(audioTracks);
+
+        } else {
+            List<T> combination = null;
+            if (textTrack != null) {
+                combination = findBest(videoTracks, audioTracks, budgetBytes - estimator.estimateSize(textTrack), estimator);
+            }
+            if (combination == null) {
+                text = null;
+                combination = findBest(videoTracks, audioTracks, budgetBytes, estimator);
+            }
+            if (combination == null) {
+                Log.w(TAG, "No track combination fits " + budgetBytes + " bytes; selecting the smallest");
+                combination = new ArrayList<>(2);
+                combination.add(last(videoTracks));
+                combination.add(last(audioTracks));
+            }
+            video = combination.get(0);
+            audio = combination.get(1);
+        }
+
+        Map<DownloadItem.TrackType, List<T>> selected = new HashMap<>();
+        for (DownloadItem.TrackType type : DownloadItem.TrackType.values()) {
+            selected.put(type, new ArrayList<T>(1));
+        }
+        if (video != null) {
+            selected.get(DownloadItem.TrackType.VIDEO).add(video);
+        }
+        if (audio != null) {
+            selected.get(DownloadItem.TrackType.AUDIO).add(audio);
+        }
+        if (text != null) {
+            selected.get(DownloadItem.TrackType.TEXT).add(text);
+        }
+        return selected;
+    }
+
+    // The best video with the best audio that fit; a missing type counts as a null track of size 0.
+    private static <T extends DownloadItem.Track> List<T> findBest(List<T> videoTracks, List<T> audioTracks, long budget,
+                                                                   SizeEstimator<T> estimator) {
+        List<T> videos = orNull(videoTracks);
+        List<T> audios = orNull(audioTracks);
+        for (T video : videos) {
+            long videoSize = video == null ? 0 : estimator.estimateSize(video);
+            for (T audio : audios) {
+                long audioSize = audio == null ? 0 : estimator.estimateSize(audio);
+                if (videoSize + audioSize <= budget) {
+                    List<T> combination = new ArrayList<>(2);
+                    combination.add(video);
+                    combination.add(audio);
+                    return combination;
+                }
+            }
+        }
+        return null;
+    }
+
+    // Highest bitrate first; tracks with the same bitrate keep their order.
+    private static <T extends DownloadItem.Track> List<T> byBitrate(List<T> tracks) {
+        List<T> sorted = tracks == null ? new ArrayList<T>() : new ArrayList<>(tracks);
+        Collections.sort(sorted, Collections.reverseOrder(DownloadItem.Track.bitrateComparator));
+        return sorted;
+    }
+
+    private static <T extends DownloadItem.Track> List<T> firstLanguage(List<T> tracks) {
+        if (tracks == null || tracks.isEmpty() || tracks.get(0).getLanguage() == null) {
+            return tracks;
+        }
+        String language = tracks.get(0).getLanguage();
+        List<T> filtered = new ArrayList<>();
+        for (T track : tracks) {
+            if (language.equals(track.getLanguage())) {
+                filtered.add(track);
+            }
+        }
+        return filtered;
+    }
+
+    private static <T> List<T> orNull(List<T> tracks) {
+        return tracks.isEmpty() ? Collections.<T>singletonList(null) : tracks;
+    }
+
+    private static <T> T first(List<T> tracks) {
+        return tracks.isEmpty() ? null : tracks.get(0);
+    }
+
+    private static <T> T last(List<T> tracks) {
+        return tracks.isEmpty() ? null : tracks.get(tracks.size() - 1);
+    }
+}